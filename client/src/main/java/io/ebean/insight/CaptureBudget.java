@@ -0,0 +1,73 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+import java.util.List;
+
+/**
+ * Adaptive budget for each collection of captured query plans.
+ * <p>
+ * The max count follows the backlog of pending captures (between a minimum of
+ * 10 and the max count) so a large backlog drains in fewer cycles. The max
+ * time adapts to the observed cost of capturing the plans relative to the
+ * query execution time: it is halved when capturing costs more than
+ * {@code COST_RATIO} times the query time (the database is busy or the
+ * plans are expensive to explain) and otherwise grows back by a quarter up to
+ * the max time.
+ * <p>
+ * The budget limits how many plans are collected, not which: ebean explains
+ * the pending plans in its own order until the count or time is reached.
+ * {@link QueryPlanCapture} orders only the collected plans, most expensive
+ * first, for the listeners and upload.
+ */
+final class CaptureBudget {
+
+  private static final int MIN_COUNT = 10;
+  private static final long COST_RATIO = 2;
+
+  private final int maxCount;
+  private final long maxTimeMillis;
+  private final long minTimeMillis;
+  private long timeMillis;
+
+  CaptureBudget(int maxCount, long maxTimeMillis) {
+    this.maxCount = maxCount;
+    this.maxTimeMillis = maxTimeMillis;
+    this.minTimeMillis = Math.max(1, maxTimeMillis / 10);
+    this.timeMillis = maxTimeMillis;
+  }
+
+  /**
+   * Return the max number of plans to collect given the pending captures.
+   */
+  int maxCount(int pending) {
+    return Math.min(maxCount, Math.max(MIN_COUNT, pending));
+  }
+
+  /**
+   * Return the current max time to spend collecting plans.
+   */
+  synchronized long maxTimeMillis() {
+    return timeMillis;
+  }
+
+  /**
+   * Adjust the time budget from the capture cost of the collected plans.
+   */
+  synchronized void observe(List<MetaQueryPlan> plans) {
+    if (plans.isEmpty()) {
+      return;
+    }
+    long captureMicros = 0;
+    long queryMicros = 0;
+    for (MetaQueryPlan plan : plans) {
+      captureMicros += plan.captureMicros();
+      queryMicros += plan.queryTimeMicros();
+    }
+    if (captureMicros > COST_RATIO * Math.max(1, queryMicros)) {
+      timeMillis = Math.max(minTimeMillis, timeMillis / 2);
+    } else {
+      timeMillis = Math.min(maxTimeMillis, timeMillis + Math.max(1, timeMillis / 4));
+    }
+  }
+}
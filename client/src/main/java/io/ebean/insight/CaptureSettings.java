@@ -0,0 +1,87 @@
+package io.ebean.insight;
+
+/**
+ * The settings of the query plan capture of each database, taken from the
+ * builder. The defaults are those of the builder.
+ */
+final class CaptureSettings {
+
+  private int freqSecs = 10;
+  private int captureDelaySecs = 60;
+  private int maxPending = 1000;
+  private long pendingTtlMillis = 30 * 60_000L;
+  private int maxCount = 10;
+  private long maxTimeMillis = 10_000;
+
+  /**
+   * Set the frequency pending captures and initialisations are retried at.
+   */
+  CaptureSettings freqSecs(int freqSecs) {
+    this.freqSecs = freqSecs;
+    return this;
+  }
+
+  /**
+   * Set the delay after initialising a capture before it is collected.
+   */
+  CaptureSettings captureDelaySecs(int captureDelaySecs) {
+    this.captureDelaySecs = captureDelaySecs;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of pending captures and initialisations.
+   */
+  CaptureSettings maxPending(int maxPending) {
+    this.maxPending = maxPending;
+    return this;
+  }
+
+  /**
+   * Set the time after which a pending capture or initialisation is evicted.
+   */
+  CaptureSettings pendingTtlMillis(long pendingTtlMillis) {
+    this.pendingTtlMillis = pendingTtlMillis;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of plans collected at a time.
+   */
+  CaptureSettings maxCount(int maxCount) {
+    this.maxCount = maxCount;
+    return this;
+  }
+
+  /**
+   * Set the maximum time spent collecting plans at a time.
+   */
+  CaptureSettings maxTimeMillis(long maxTimeMillis) {
+    this.maxTimeMillis = maxTimeMillis;
+    return this;
+  }
+
+  int freqSecs() {
+    return freqSecs;
+  }
+
+  int captureDelaySecs() {
+    return captureDelaySecs;
+  }
+
+  int maxPending() {
+    return maxPending;
+  }
+
+  long pendingTtlMillis() {
+    return pendingTtlMillis;
+  }
+
+  int maxCount() {
+    return maxCount;
+  }
+
+  long maxTimeMillis() {
+    return maxTimeMillis;
+  }
+}
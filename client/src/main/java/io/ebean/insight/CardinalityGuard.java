@@ -0,0 +1,251 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Counter;
+import io.avaje.metrics.GaugeDouble;
+import io.avaje.metrics.GaugeLong;
+import io.avaje.metrics.Meter;
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Tags;
+import io.avaje.metrics.Timer;
+import io.avaje.metrics.stats.CounterStats;
+import io.avaje.metrics.stats.MeterStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps the number of distinct metric series reported per database and for
+ * the Avaje metrics.
+ * <p>
+ * The series seen are remembered across cycles in a primitive hash set (bounded
+ * by the cap). Once the cap is reached the metrics of new series are folded
+ * into an overflow series and a {@code insight.series.dropped} count reports
+ * how many were folded in the cycle (not reported when none were). Gauges of
+ * new series are dropped as they can't be meaningfully combined.
+ * <p>
+ * The overflow query and timed metrics have placeholder location, type and
+ * sql values, see {@link DbQueryMetric#aggregate}.
+ */
+final class CardinalityGuard {
+
+  static final String OVERFLOW = "insight.overflow";
+  static final String DROPPED = "insight.series.dropped";
+
+  private static final Metric.ID OVERFLOW_SUMMARY = Metric.ID.of(OVERFLOW, Tags.of("type:summary"));
+  private static final Metric.ID OVERFLOW_COUNTER = Metric.ID.of(OVERFLOW, Tags.of("type:counter"));
+  private static final Metric.ID DROPPED_ID = Metric.ID.of(DROPPED, Tags.of());
+
+  private final int maxDatabaseSeries;
+  private final int maxMetricSeries;
+  private final Map<String, LongHashSet> databaseSeries = new HashMap<>();
+  private final LongHashSet metricSeries;
+  private final Overflow overflow = new Overflow();
+
+  /**
+   * Create with the caps, a cap of 0 or less meaning unlimited.
+   */
+  CardinalityGuard(int maxDatabaseSeries, int maxMetricSeries) {
+    this.maxDatabaseSeries = maxDatabaseSeries;
+    this.maxMetricSeries = maxMetricSeries;
+    this.metricSeries = maxMetricSeries > 0 ? new LongHashSet(Math.min(maxMetricSeries, 1024)) : null;
+  }
+
+  /**
+   * Return the Avaje metrics with new series over the cap folded into the overflow series.
+   */
+  synchronized List<Metric.Statistics> guardMetrics(List<Metric.Statistics> metrics) {
+    if (metricSeries == null || metrics == null || metrics.isEmpty()) {
+      return metrics;
+    }
+    List<Metric.Statistics> result = new ArrayList<>(metrics.size());
+    overflow.reset();
+    for (Metric.Statistics metric : metrics) {
+      if (admit(metricSeries, maxMetricSeries, SeriesKey.of(metric.id()))) {
+        result.add(metric);
+      } else {
+        metric.visit(overflow);
+      }
+    }
+    overflow.addTo(result);
+    return result;
+  }
+
+  /**
+   * Return the database snapshots with new series over the cap folded into the overflow series.
+   */
+  synchronized List<ServerMetrics> guardDatabases(List<ServerMetrics> databaseMetrics) {
+    if (maxDatabaseSeries <= 0 || databaseMetrics == null || databaseMetrics.isEmpty()) {
+      return databaseMetrics;
+    }
+    List<ServerMetrics> result = new ArrayList<>(databaseMetrics.size());
+    for (ServerMetrics metrics : databaseMetrics) {
+      result.add(guard(metrics));
+    }
+    return result;
+  }
+
+  private ServerMetrics guard(ServerMetrics metrics) {
+    String db = metrics.name();
+    LongHashSet seen = databaseSeries.computeIfAbsent(db, name -> new LongHashSet(Math.min(maxDatabaseSeries, 1024)));
+    if (admitsAll(seen, db, metrics.timedMetrics()) && admitsAll(seen, db, metrics.queryMetrics()) && admitsAll(seen, db, metrics.countMetrics())) {
+      return metrics;
+    }
+    var result = new BasicMetricVisitor(db, MetricNamingMatch.INSTANCE, false, true, true, true);
+    long dropped = 0;
+    long count = 0;
+    long total = 0;
+    long max = 0;
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      if (admit(seen, maxDatabaseSeries, SeriesKey.of(db, metric))) {
+        result.visitTimed(metric);
+      } else {
+        dropped++;
+        count += metric.count();
+        total += metric.total();
+        max = Math.max(max, metric.max());
+      }
+    }
+    if (count > 0) {
+      result.visitTimed(new DbTimedMetric(OVERFLOW, OVERFLOW, count, total, max));
+    }
+    count = 0;
+    total = 0;
+    max = 0;
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      if (admit(seen, maxDatabaseSeries, SeriesKey.of(db, metric))) {
+        result.visitQuery(metric);
+      } else {
+        dropped++;
+        count += metric.count();
+        total += metric.total();
+        max = Math.max(max, metric.max());
+      }
+    }
+    if (count > 0) {
+      result.visitQuery(DbQueryMetric.aggregate(OVERFLOW, OVERFLOW, "-- queries over the series cap", count, total, max));
+    }
+    count = 0;
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      if (admit(seen, maxDatabaseSeries, SeriesKey.of(db, metric))) {
+        result.visitCount(metric);
+      } else {
+        dropped++;
+        count += metric.count();
+      }
+    }
+    if (count > 0) {
+      result.visitCount(new DbCountMetric(OVERFLOW, count));
+    }
+    if (dropped == 0) {
+      // the new series all fit under the cap
+      return metrics;
+    }
+    result.visitCount(new DbCountMetric(DROPPED, dropped));
+    return result;
+  }
+
+  private boolean admitsAll(LongHashSet seen, String db, List<? extends MetaMetric> metrics) {
+    if (seen.size() + metrics.size() <= maxDatabaseSeries) {
+      // all fit, register them
+      for (MetaMetric metric : metrics) {
+        seen.add(SeriesKey.of(db, metric));
+      }
+      return true;
+    }
+    for (MetaMetric metric : metrics) {
+      if (!seen.contains(SeriesKey.of(db, metric))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return true if the series is known or there is room to add it.
+   */
+  private static boolean admit(LongHashSet seen, int max, long key) {
+    if (seen.contains(key)) {
+      return true;
+    }
+    if (seen.size() < max) {
+      seen.add(key);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Accumulates the Avaje metrics of the dropped series (guarded by the outer lock).
+   */
+  private static final class Overflow implements Metric.Visitor {
+
+    private long dropped;
+    private long count;
+    private long total;
+    private long max;
+    private long counter;
+
+    void reset() {
+      dropped = 0;
+      count = 0;
+      total = 0;
+      max = 0;
+      counter = 0;
+    }
+
+    void addTo(List<Metric.Statistics> result) {
+      if (dropped == 0) {
+        return;
+      }
+      if (count > 0) {
+        result.add(new MeterStats(OVERFLOW_SUMMARY, count, total, max));
+      }
+      if (counter > 0) {
+        result.add(new CounterStats(OVERFLOW_COUNTER, counter));
+      }
+      result.add(new CounterStats(DROPPED_ID, dropped));
+    }
+
+    @Override
+    public void visit(Timer.Stats value) {
+      summary(value);
+    }
+
+    @Override
+    public void visit(Meter.Stats value) {
+      summary(value);
+    }
+
+    private void summary(Meter.Stats value) {
+      dropped++;
+      count += value.count();
+      total += value.total();
+      max = Math.max(max, value.max());
+    }
+
+    @Override
+    public void visit(Counter.Stats value) {
+      dropped++;
+      counter += value.count();
+    }
+
+    @Override
+    public void visit(GaugeDouble.Stats value) {
+      dropped++;
+    }
+
+    @Override
+    public void visit(GaugeLong.Stats value) {
+      dropped++;
+    }
+  }
+}
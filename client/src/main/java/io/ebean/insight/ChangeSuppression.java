@@ -0,0 +1,187 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Counter;
+import io.avaje.metrics.GaugeDouble;
+import io.avaje.metrics.GaugeLong;
+import io.avaje.metrics.Meter;
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Timer;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops the metrics that carry no new information for this cycle - timers,
+ * meters and counters with a zero count and gauges whose value is the same as
+ * the last reported value.
+ * <p>
+ * The last reported gauge values are held in a primitive table keyed by
+ * {@link SeriesKey}. They are recorded as the payload is built, so when a
+ * payload is lost (dropped or failed to send) they are forgotten via
+ * {@link #lost(long)} and every gauge is sent again.
+ */
+final class ChangeSuppression {
+
+  private final LongLongMap lastGaugeValue = new LongLongMap(256);
+  private final Changed changed = new Changed();
+  private long lost;
+
+  /**
+   * Forget the last reported gauge values when the count of lost payloads
+   * changed since the last call, as those values may not have been received.
+   */
+  synchronized void lost(long lostPayloads) {
+    if (lostPayloads != lost) {
+      lost = lostPayloads;
+      lastGaugeValue.clear();
+    }
+  }
+
+  /**
+   * Return the Avaje metrics that changed since the last cycle.
+   */
+  synchronized List<Metric.Statistics> filterMetrics(List<Metric.Statistics> metrics) {
+    if (metrics == null || metrics.isEmpty()) {
+      return metrics;
+    }
+    List<Metric.Statistics> result = new ArrayList<>(metrics.size());
+    for (Metric.Statistics metric : metrics) {
+      metric.visit(changed);
+      if (changed.result(metric)) {
+        result.add(metric);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the database snapshots with the zero count metrics removed, and
+   * without the databases that have no metrics left.
+   */
+  List<ServerMetrics> filterDatabases(List<ServerMetrics> databaseMetrics) {
+    if (databaseMetrics == null || databaseMetrics.isEmpty()) {
+      return databaseMetrics;
+    }
+    List<ServerMetrics> result = new ArrayList<>(databaseMetrics.size());
+    for (ServerMetrics metrics : databaseMetrics) {
+      ServerMetrics filtered = filter(metrics);
+      if (!isEmpty(filtered)) {
+        result.add(filtered);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the snapshot without the zero count metrics. The same instance is
+   * returned when there are none.
+   */
+  static ServerMetrics filter(ServerMetrics metrics) {
+    if (!hasZeroCount(metrics)) {
+      return metrics;
+    }
+    var filtered = new BasicMetricVisitor(metrics.name(), MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      if (metric.count() != 0) {
+        filtered.visitTimed(metric);
+      }
+    }
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      if (metric.count() != 0) {
+        filtered.visitQuery(metric);
+      }
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      if (metric.count() != 0) {
+        filtered.visitCount(metric);
+      }
+    }
+    return filtered;
+  }
+
+  static boolean isEmpty(ServerMetrics metrics) {
+    return metrics.timedMetrics().isEmpty() && metrics.queryMetrics().isEmpty() && metrics.countMetrics().isEmpty();
+  }
+
+  private static boolean hasZeroCount(ServerMetrics metrics) {
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      if (metric.count() == 0) {
+        return true;
+      }
+    }
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      if (metric.count() == 0) {
+        return true;
+      }
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      if (metric.count() == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reusable visitor determining if a metric changed (guarded by the outer lock).
+   */
+  private final class Changed implements Metric.Visitor {
+
+    private boolean gauge;
+    private boolean changed;
+    private long valueBits;
+
+    boolean result(Metric.Statistics metric) {
+      if (!gauge) {
+        return changed;
+      }
+      long key = SeriesKey.of(metric.id());
+      if (lastGaugeValue.containsKey(key) && lastGaugeValue.get(key, 0) == valueBits) {
+        return false;
+      }
+      lastGaugeValue.put(key, valueBits);
+      return true;
+    }
+
+    @Override
+    public void visit(Timer.Stats value) {
+      count(value.count());
+    }
+
+    @Override
+    public void visit(Meter.Stats value) {
+      count(value.count());
+    }
+
+    @Override
+    public void visit(Counter.Stats value) {
+      count(value.count());
+    }
+
+    @Override
+    public void visit(GaugeDouble.Stats value) {
+      gauge(Double.doubleToLongBits(value.value()));
+    }
+
+    @Override
+    public void visit(GaugeLong.Stats value) {
+      gauge(value.value());
+    }
+
+    private void count(long count) {
+      gauge = false;
+      changed = count != 0;
+    }
+
+    private void gauge(long bits) {
+      gauge = true;
+      valueBits = bits;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package io.ebean.insight;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static java.lang.System.Logger.Level.*;
+
+/**
+ * Registers before checkpoint and after restore hooks with CRaC (and AWS
+ * Lambda SnapStart) via {@code org.crac} loaded reflectively, so there is no
+ * dependency on it when not present.
+ * <p>
+ * The CRaC context only holds a weak reference to the registered resource, so
+ * the hooks hold the resource and must themselves be held by the client.
+ */
+final class CheckpointHooks implements InvocationHandler {
+
+  private static final System.Logger log = InsightClient.log;
+
+  static final String CRAC = "org.crac.";
+
+  private final Runnable beforeCheckpoint;
+  private final Runnable afterRestore;
+  private Object resource;
+
+  private CheckpointHooks(Runnable beforeCheckpoint, Runnable afterRestore) {
+    this.beforeCheckpoint = beforeCheckpoint;
+    this.afterRestore = afterRestore;
+  }
+
+  /**
+   * Register the hooks returning null when CRaC is not available.
+   *
+   * @param prefix the package prefix of the Core, Context and Resource types
+   */
+  static CheckpointHooks register(String prefix, Runnable beforeCheckpoint, Runnable afterRestore) {
+    try {
+      ClassLoader loader = CheckpointHooks.class.getClassLoader();
+      Class<?> core = Class.forName(prefix + "Core", true, loader);
+      Class<?> context = Class.forName(prefix + "Context", true, loader);
+      Class<?> resourceType = Class.forName(prefix + "Resource", true, loader);
+
+      CheckpointHooks hooks = new CheckpointHooks(beforeCheckpoint, afterRestore);
+      hooks.resource = Proxy.newProxyInstance(resourceType.getClassLoader(), new Class<?>[]{resourceType}, hooks);
+      Object globalContext = core.getMethod("getGlobalContext").invoke(null);
+      context.getMethod("register", resourceType).invoke(globalContext, hooks.resource);
+      log.log(DEBUG, "Registered insight checkpoint restore hooks");
+      return hooks;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (Throwable e) {
+      log.log(WARNING, "Unable to register insight checkpoint restore hooks", e);
+      return null;
+    }
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "beforeCheckpoint":
+        run(beforeCheckpoint, "before checkpoint");
+        return null;
+      case "afterRestore":
+        run(afterRestore, "after restore");
+        return null;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "InsightCheckpointHooks";
+      default:
+        return null;
+    }
+  }
+
+  private static void run(Runnable hook, String when) {
+    try {
+      hook.run();
+    } catch (Exception e) {
+      // never fail the checkpoint or restore
+      log.log(WARNING, "Error in insight " + when + " hook", e);
+    }
+  }
+}
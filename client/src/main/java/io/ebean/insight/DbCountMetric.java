@@ -0,0 +1,27 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaCountMetric;
+
+/**
+ * Count database metric with a client computed (merged or aggregated) count.
+ */
+final class DbCountMetric implements MetaCountMetric {
+
+  private final String name;
+  private final long count;
+
+  DbCountMetric(String name, long count) {
+    this.name = name;
+    this.count = count;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public long count() {
+    return count;
+  }
+}
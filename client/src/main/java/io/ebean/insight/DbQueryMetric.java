@@ -0,0 +1,60 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryMetric;
+
+/**
+ * Query metric with client computed (merged or aggregated) values, keeping the
+ * identity (type, label, sql and hash) of the source query.
+ */
+final class DbQueryMetric extends DbTimedMetric implements MetaQueryMetric {
+
+  private final Class<?> type;
+  private final String label;
+  private final String sql;
+  private final String hash;
+
+  DbQueryMetric(MetaQueryMetric source, long count, long total, long max) {
+    this(source.name(), source.location(), source.type(), source.label(), source.sql(), source.hash(), count, total, max);
+  }
+
+  DbQueryMetric(String name, String location, Class<?> type, String label, String sql, String hash, long count, long total, long max) {
+    super(name, location, count, total, max);
+    this.type = type;
+    this.label = label;
+    this.sql = sql;
+    this.hash = hash;
+  }
+
+  /**
+   * Return a metric aggregating several queries, with placeholder location,
+   * type and sql values (rather than null) as the payload has them for every
+   * query metric.
+   *
+   * @param name  the name, also used as the hash
+   * @param label the label, also used as the location
+   * @param sql   a sql comment describing the aggregated queries
+   */
+  static DbQueryMetric aggregate(String name, String label, String sql, long count, long total, long max) {
+    return new DbQueryMetric(name, label, Object.class, label, sql, name, count, total, max);
+  }
+
+  @Override
+  public Class<?> type() {
+    return type;
+  }
+
+  @Override
+  public String label() {
+    return label;
+  }
+
+  @Override
+  public String sql() {
+    return sql;
+  }
+
+  @Override
+  public String hash() {
+    return hash;
+  }
+}
@@ -0,0 +1,58 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaTimedMetric;
+
+/**
+ * Timed database metric with client computed (merged or aggregated) values.
+ */
+class DbTimedMetric implements MetaTimedMetric {
+
+  private final String name;
+  private final String location;
+  private final long count;
+  private final long total;
+  private final long max;
+
+  DbTimedMetric(String name, String location, long count, long total, long max) {
+    this.name = name;
+    this.location = location;
+    this.count = count;
+    this.total = total;
+    this.max = max;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public String location() {
+    return location;
+  }
+
+  @Override
+  public long count() {
+    return count;
+  }
+
+  @Override
+  public long total() {
+    return total;
+  }
+
+  @Override
+  public long max() {
+    return max;
+  }
+
+  @Override
+  public long mean() {
+    return count == 0 ? 0 : total / count;
+  }
+
+  @Override
+  public String toString() {
+    return name + " count:" + count + " total:" + total + " max:" + max;
+  }
+}
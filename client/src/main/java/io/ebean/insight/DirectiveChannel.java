@@ -0,0 +1,197 @@
+package io.ebean.insight;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.lang.System.Logger.Level.*;
+
+/**
+ * Server-Sent Events subscription to the ingest service over which query plan
+ * directives are pushed, so a capture is armed within seconds rather than on
+ * the response to the next metrics report.
+ * <p>
+ * The data of each event is a directive message as would otherwise be returned
+ * in the metrics response. The subscription is held open on a daemon thread
+ * and re-established after the reconnect delay when the server ends it, with
+ * the delay doubling (up to a minute) while the server is unavailable or does
+ * not support the channel.
+ * <pre>
+ *   : keep alive
+ *
+ *   data: v1|qp:100:hashA
+ *
+ * </pre>
+ */
+final class DirectiveChannel implements Runnable {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private static final long MAX_RECONNECT_MILLIS = 60_000;
+
+  private final Supplier<HttpClient> httpClient;
+  private final URI uri;
+  private final String key;
+  private final long reconnectMillis;
+  private final Consumer<String> directives;
+  private final StringBuilder data = new StringBuilder();
+  private final Object lock = new Object();
+  private Thread thread;
+  private Stream<String> lines;
+
+  /**
+   * Create with the http client supplied per subscription (the client is
+   * replaced on checkpoint restore).
+   */
+  DirectiveChannel(Supplier<HttpClient> httpClient, URI uri, String key, long reconnectMillis, Consumer<String> directives) {
+    this.httpClient = httpClient;
+    this.uri = uri;
+    this.key = key;
+    this.reconnectMillis = reconnectMillis;
+    this.directives = directives;
+  }
+
+  void start() {
+    synchronized (lock) {
+      if (thread == null) {
+        thread = new Thread(this, "ebeanInsightDirectives");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+  }
+
+  /**
+   * Stop, closing the current subscription. The channel can be started again.
+   */
+  void stop() {
+    synchronized (lock) {
+      if (thread != null) {
+        thread.interrupt();
+        thread = null;
+      }
+      if (lines != null) {
+        lines.close();
+        lines = null;
+      }
+    }
+  }
+
+  boolean isRunning() {
+    synchronized (lock) {
+      return thread != null;
+    }
+  }
+
+  private boolean isCurrent() {
+    synchronized (lock) {
+      return thread == Thread.currentThread();
+    }
+  }
+
+  @Override
+  public void run() {
+    long delay = reconnectMillis;
+    while (isCurrent()) {
+      boolean connected = false;
+      try {
+        connected = subscribe();
+      } catch (InterruptedException e) {
+        break;
+      } catch (Exception e) {
+        if (isCurrent()) {
+          log.log(DEBUG, "Query plan directive channel lost - {0}", e.toString());
+        }
+      }
+      if (connected) {
+        delay = reconnectMillis;
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (!connected) {
+        delay = Math.min(MAX_RECONNECT_MILLIS, delay * 2);
+      }
+    }
+  }
+
+  /**
+   * Subscribe processing the events until the server ends the stream, returning
+   * false when the subscription was not accepted.
+   */
+  private boolean subscribe() throws Exception {
+    final HttpRequest request = HttpRequest.newBuilder()
+      .GET()
+      .uri(uri)
+      .setHeader("Accept", "text/event-stream")
+      .setHeader("Insight-Key", key)
+      .build();
+
+    // no request timeout, the stream is held open by the server
+    final HttpResponse<Stream<String>> response = httpClient.get().send(request, HttpResponse.BodyHandlers.ofLines());
+    try (Stream<String> body = response.body()) {
+      if (response.statusCode() != 200) {
+        log.log(DEBUG, "Query plan directive channel not available - response code:{0}", response.statusCode());
+        return false;
+      }
+      synchronized (lock) {
+        if (thread != Thread.currentThread()) {
+          return true;
+        }
+        lines = body;
+      }
+      log.log(DEBUG, "Query plan directive channel connected");
+      data.setLength(0);
+      body.forEach(this::line);
+      return true;
+    } finally {
+      synchronized (lock) {
+        lines = null;
+      }
+    }
+  }
+
+  /**
+   * Process a line of the event stream, a blank line ends the event.
+   */
+  void line(String line) {
+    if (line.isEmpty()) {
+      if (data.length() > 0) {
+        dispatch(data.toString());
+        data.setLength(0);
+      }
+      return;
+    }
+    if (line.startsWith(":")) {
+      // comment, used as keep alive
+      return;
+    }
+    int colon = line.indexOf(':');
+    String field = colon == -1 ? line : line.substring(0, colon);
+    if ("data".equals(field)) {
+      String value = colon == -1 ? "" : line.substring(colon + 1);
+      if (value.startsWith(" ")) {
+        value = value.substring(1);
+      }
+      if (data.length() > 0) {
+        data.append('\n');
+      }
+      data.append(value);
+    }
+    // event, id and retry fields are not used
+  }
+
+  private void dispatch(String message) {
+    try {
+      directives.accept(message);
+    } catch (RuntimeException e) {
+      log.log(WARNING, "Error processing query plan directive " + message, e);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package io.ebean.insight;
+
+/**
+ * Decides when the metrics buffered across Lambda invocations are flushed.
+ * <p>
+ * A flush is due every {@code everyInvocations} invocations, when
+ * {@code everyMillis} has passed since the last flush or when the buffered
+ * metrics exceed {@code maxBytes} (each check disabled with 0). Without
+ * background threads the time is only checked as invocations report.
+ * <p>
+ * The triggers are independent, so setting only the time or size does not
+ * also flush on every invocation.
+ */
+final class FlushPolicy {
+
+  private final int everyInvocations;
+  private final long everyMillis;
+  private final long maxBytes;
+  private int invocations;
+  private long lastFlush;
+
+  FlushPolicy(int everyInvocations, long everyMillis, long maxBytes, long now) {
+    this.everyInvocations = everyInvocations;
+    this.everyMillis = everyMillis;
+    this.maxBytes = maxBytes;
+    this.lastFlush = now;
+  }
+
+  /**
+   * Return the policy for the triggers, or null when every invocation is sent
+   * (no trigger set, or a count of 1 without a time or size trigger).
+   */
+  static FlushPolicy of(int everyInvocations, long everyMillis, long maxBytes, long now) {
+    if (everyInvocations > 1 || everyMillis > 0 || maxBytes > 0) {
+      return new FlushPolicy(everyInvocations, everyMillis, maxBytes, now);
+    }
+    return null;
+  }
+
+  /**
+   * Count the invocation returning true when a flush is due, in which case the
+   * caller flushes and the counts are reset.
+   */
+  synchronized boolean due(long bufferedBytes, long now) {
+    invocations++;
+    if ((everyInvocations > 0 && invocations >= everyInvocations)
+      || (everyMillis > 0 && now - lastFlush >= everyMillis)
+      || (maxBytes > 0 && bufferedBytes >= maxBytes)) {
+      reset(now);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reset the counts after a flush.
+   */
+  synchronized void reset(long now) {
+    invocations = 0;
+    lastFlush = now;
+  }
+}
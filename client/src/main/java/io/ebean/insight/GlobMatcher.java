@@ -0,0 +1,250 @@
+package io.ebean.insight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * Matches values against a set of glob patterns ({@code *} any run of
+ * characters, {@code ?} any single character).
+ * <p>
+ * The patterns are compiled up front into a deterministic automaton with a flat
+ * transition table, so matching walks each character once, never backtracks and
+ * does not allocate.
+ * <p>
+ * When the patterns need more than {@code MAX_STATES} states a warning is
+ * logged and the patterns are instead matched by tracking the set of pattern
+ * positions reached as each character is read, which is slower and allocates
+ * but is bounded by the total length of the patterns.
+ */
+final class GlobMatcher {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private static final int MAX_STATES = 10_000;
+  private static final int DEAD = -1;
+
+  /**
+   * Distinct literal characters used by the patterns (sorted), the last column
+   * of the transition table is for any other character.
+   */
+  private final char[] alphabet;
+  private final int[] transitions;
+  private final boolean[] accept;
+  /** Matches over the pattern positions when too many states, otherwise null. */
+  private final Compiler positions;
+
+  private GlobMatcher(char[] alphabet, int[] transitions, boolean[] accept) {
+    this.alphabet = alphabet;
+    this.transitions = transitions;
+    this.accept = accept;
+    this.positions = null;
+  }
+
+  private GlobMatcher(Compiler positions) {
+    this.alphabet = null;
+    this.transitions = null;
+    this.accept = null;
+    this.positions = positions;
+  }
+
+  /**
+   * Compile the patterns returning null when there are no patterns.
+   */
+  static GlobMatcher of(List<String> patterns) {
+    if (patterns == null || patterns.isEmpty()) {
+      return null;
+    }
+    Compiler compiler = new Compiler(patterns);
+    GlobMatcher matcher = compiler.compile();
+    if (matcher == null) {
+      log.log(WARNING, "{0} glob patterns exceed {1} states, matching without a compiled automaton", patterns.size(), MAX_STATES);
+      return new GlobMatcher(compiler);
+    }
+    return matcher;
+  }
+
+  /**
+   * Return true if the value matches any of the patterns.
+   */
+  boolean matches(String value) {
+    if (positions != null) {
+      return positions.accepts(positions.step(positions.start(), value));
+    }
+    return accepts(step(0, value));
+  }
+
+  /**
+   * Return true if the concatenation of prefix and value matches any of the
+   * patterns (without building the concatenated string).
+   */
+  boolean matches(String prefix, String value) {
+    if (positions != null) {
+      return positions.accepts(positions.step(positions.step(positions.start(), prefix), value));
+    }
+    return accepts(step(step(0, prefix), value));
+  }
+
+  private boolean accepts(int state) {
+    return state != DEAD && accept[state];
+  }
+
+  private int step(int state, String value) {
+    final int columns = alphabet.length + 1;
+    final int len = value.length();
+    for (int i = 0; i < len && state != DEAD; i++) {
+      int col = Arrays.binarySearch(alphabet, value.charAt(i));
+      state = transitions[state * columns + (col < 0 ? alphabet.length : col)];
+    }
+    return state;
+  }
+
+  /**
+   * Subset construction over the positions of all the patterns.
+   */
+  private static final class Compiler {
+
+    private static final char END = 0;
+
+    /** Pattern character at each position, END marks an accepting position. */
+    private final char[] tokens;
+    private final char[] alphabet;
+
+    Compiler(List<String> patterns) {
+      var literals = new TreeSet<Character>();
+      var sb = new StringBuilder();
+      for (String pattern : patterns) {
+        for (int i = 0; i < pattern.length(); i++) {
+          char c = pattern.charAt(i);
+          if (c != '*' && c != '?') {
+            literals.add(c);
+          }
+        }
+        sb.append(pattern).append(END);
+      }
+      this.tokens = sb.toString().toCharArray();
+      this.alphabet = new char[literals.size()];
+      int i = 0;
+      for (Character literal : literals) {
+        alphabet[i++] = literal;
+      }
+    }
+
+    /**
+     * Return the automaton, or null when it exceeds the max states.
+     */
+    GlobMatcher compile() {
+      final int columns = alphabet.length + 1;
+      List<BitSet> states = new ArrayList<>();
+      Map<BitSet, Integer> index = new HashMap<>();
+
+      BitSet start = start();
+      states.add(start);
+      index.put(start, 0);
+
+      List<int[]> rows = new ArrayList<>();
+      for (int s = 0; s < states.size(); s++) {
+        int[] row = new int[columns];
+        for (int col = 0; col < columns; col++) {
+          BitSet next = move(states.get(s), col < alphabet.length ? alphabet[col] : END, col == alphabet.length);
+          if (next.isEmpty()) {
+            row[col] = DEAD;
+          } else {
+            Integer target = index.get(next);
+            if (target == null) {
+              if (states.size() == MAX_STATES) {
+                return null;
+              }
+              target = states.size();
+              states.add(next);
+              index.put(next, target);
+            }
+            row[col] = target;
+          }
+        }
+        rows.add(row);
+      }
+
+      int[] transitions = new int[states.size() * columns];
+      boolean[] accept = new boolean[states.size()];
+      for (int s = 0; s < states.size(); s++) {
+        System.arraycopy(rows.get(s), 0, transitions, s * columns, columns);
+        BitSet state = states.get(s);
+        for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+          if (tokens[p] == END) {
+            accept[s] = true;
+            break;
+          }
+        }
+      }
+      return new GlobMatcher(alphabet, transitions, accept);
+    }
+
+    /**
+     * Return the positions at the start of each pattern.
+     */
+    BitSet start() {
+      BitSet start = new BitSet(tokens.length);
+      for (int p = 0; p < tokens.length; p++) {
+        if (p == 0 || tokens[p - 1] == END) {
+          start.set(p);
+        }
+      }
+      closure(start);
+      return start;
+    }
+
+    /**
+     * Return the positions reached after reading the value.
+     */
+    BitSet step(BitSet state, String value) {
+      for (int i = 0; i < value.length() && !state.isEmpty(); i++) {
+        state = move(state, value.charAt(i), false);
+      }
+      return state;
+    }
+
+    /**
+     * Return true if the positions include the end of a pattern.
+     */
+    boolean accepts(BitSet state) {
+      for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+        if (tokens[p] == END) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private BitSet move(BitSet state, char c, boolean other) {
+      BitSet next = new BitSet(tokens.length);
+      for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+        char token = tokens[p];
+        if (token == '*') {
+          next.set(p);
+        } else if (token == '?' || (token != END && !other && token == c)) {
+          next.set(p + 1);
+        }
+      }
+      closure(next);
+      return next;
+    }
+
+    /**
+     * A {@code *} may match nothing so also include the position after it.
+     */
+    private void closure(BitSet state) {
+      for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+        if (tokens[p] == '*') {
+          state.set(p + 1);
+        }
+      }
+    }
+  }
+}
@@ -8,6 +8,7 @@ import io.avaje.metrics.Metrics;
 import io.avaje.metrics.ebean.DatabaseMetricSupplier;
 import io.ebean.Database;
 import io.ebean.meta.MetaQueryPlan;
+import io.ebean.meta.QueryPlanInit;
 import io.ebean.meta.ServerMetrics;
 import io.ebean.meta.ServerMetricsAsJson;
 
@@ -20,6 +21,12 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.zip.GZIPOutputStream;
 
@@ -77,15 +84,25 @@ import static java.net.http.HttpResponse.BodyHandlers.ofString;
  * drives {@code accept()} so the Lambda's {@code scheduledTask.waitIfRunning()}
  * drain covers insight reporting too. See {@link Builder#lambdaMode(boolean)}.
  */
-public class InsightClient implements Consumer<ServerMetrics> {
+public class InsightClient implements Consumer<ServerMetrics>, AutoCloseable {
 
   static final System.Logger log = AppLog.getLogger("io.ebean.Insight");
 
+  /** Maximum number of snapshots waiting for the reporter thread. */
+  private static final int REPORTER_QUEUE_SIZE = 64;
+  /** Query plan payloads held for the next invocation in lambdaMode. */
+  private static final int MAX_HELD_PLANS = 4;
+  /** The least time to attempt a plans POST in lambdaMode. */
+  private static final long MIN_PLAN_POST_MILLIS = 500;
+
   private final boolean enabled;
   private final String key;
   private final String environment;
   private final String appName;
-  private final String instanceId;
+  /** Refreshed after a checkpoint restore unless set explicitly. */
+  private volatile String instanceId;
+  private final String instanceIdBase;
+  private final boolean refreshInstanceId;
   private final String version;
   private final Map<String, String> resAttrs;
   private final URI ingestUri;
@@ -97,18 +114,56 @@ public class InsightClient implements Consumer<ServerMetrics> {
   private final boolean collectAvajeMetrics;
   private final boolean metricsV2;
   private final boolean lambdaMode;
+  private final long lambdaPlanBudgetMillis;
+  private final long lambdaMinRemainingMillis;
   private final List<Database> databaseList = new ArrayList<>();
   private final Timer timer;
-  private final HttpClient httpClient;
-  private final QueryPlanCapture planCapture;
+  /** Replaced around a checkpoint so stale connections are not used after restore. */
+  private volatile HttpClient httpClient;
+  private final boolean prewarmOnRestore;
+  /** Held as the CRaC context only weakly references the registered hooks, released on close. */
+  private volatile CheckpointHooks checkpointHooks;
+  private final PlanCaptureRouter planCapture;
+  private final DirectiveChannel directiveChannel;
+  private final MetricFilter metricFilter;
+  private final ChangeSuppression changeSuppression;
+  private final MetricRollup rollup;
+  private final TopQueries topQueries;
+  private final CardinalityGuard cardinalityGuard;
+  private final int maxPayloadBytes;
+  private final ReporterThread reporter;
+  private final ListenerDispatcher listenerDispatcher;
+  private final RecentPlans recentPlans;
+  private final ParallelCollector<ServerMetrics> parallelCollect;
+  private final ParallelCollector<String> parallelJson;
+  private final LoadMonitor loadMonitor;
+  private final MetricRollup deferred;
+  /** Metrics buffered across invocations in lambdaMode, flushed per the flush policy. */
+  private final MetricRollup batch;
+  private final FlushPolicy flushPolicy;
+  private final PlanTrigger planTrigger;
   private final int timeoutSecs;
+  private final int planTimeoutSecs;
+  /** The epoch millis lambdaMode plan posts must complete by, 0 for none. */
+  private volatile long planPostDeadline;
+  private final ArrayDeque<PlanUpload> heldPlans = new ArrayDeque<>();
+  private final SendLane<byte[]> metricsLane;
+  private final SendLane<PlanUpload> plansLane;
+  private final PlanTracker planTracker;
+  private final PlanPayloadWriter planWriter;
   private final boolean ping;
-  private boolean active;
+  private volatile boolean active;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  /** Held by the metrics timer task while reporting, so the final report on close does not overlap it. */
+  private final ReentrantLock sendLock = new ReentrantLock();
+  /** Metrics payloads that failed to send in lambdaMode. */
+  private final AtomicLong metricsSyncFailed = new AtomicLong();
+  private final long closeTimeoutMillis;
 
   private long latencyMillis;
   private long collectMicros;
   private long reportMicros;
-  private long lastEventTime;
+  private volatile long lastEventTime;
 
   /**
    * Create a new builder for InsightClient.
@@ -138,11 +193,17 @@ public class InsightClient implements Consumer<ServerMetrics> {
     this.environment = builder.environment;
     this.appName = builder.appName;
     this.instanceId = builder.instanceId;
+    this.instanceIdBase = builder.instanceId;
+    this.refreshInstanceId = !builder.instanceIdExplicit;
+    this.prewarmOnRestore = builder.prewarmOnRestore;
+    this.closeTimeoutMillis = builder.closeTimeoutMillis;
     this.version = builder.version;
     this.resAttrs = Map.copyOf(builder.resAttrs);
     this.gzip = builder.gzip;
     this.ping = builder.ping;
     this.timeoutSecs = builder.timeoutSecs;
+    this.planTimeoutSecs = builder.planTimeoutSecs;
+    this.planWriter = new PlanPayloadWriter(environment, appName, builder.maxPlanChars, builder.maxPlanSqlChars, builder.maxPlanBindChars, builder.plansPerRequest);
     this.periodSecs = builder.periodSecs;
     if (!builder.databaseList.isEmpty()) {
       this.databaseList.addAll(builder.databaseList);
@@ -151,19 +212,217 @@ public class InsightClient implements Consumer<ServerMetrics> {
     this.collectAvajeMetrics = builder.isCollectAvajeMetrics();
     this.metricsV2 = builder.metricsV2;
     this.lambdaMode = builder.lambdaMode;
+    this.lambdaPlanBudgetMillis = builder.lambdaPlanBudgetMillis;
+    this.lambdaMinRemainingMillis = builder.lambdaMinRemainingMillis;
+    this.metricFilter = MetricFilter.of(builder.metricsInclude, builder.metricsExclude);
+    this.changeSuppression = builder.suppressUnchanged ? new ChangeSuppression() : null;
+    this.rollup = builder.uploadEveryPeriods > 1 ? new MetricRollup(builder.uploadEveryPeriods, periodSecs, 256) : null;
+    this.topQueries = builder.topQueries > 0 ? new TopQueries(builder.topQueries, builder.topQueriesByCount) : null;
+    this.maxPayloadBytes = builder.maxPayloadBytes;
+    this.cardinalityGuard = builder.maxDatabaseSeries > 0 || builder.maxMetricSeries > 0
+      ? new CardinalityGuard(builder.maxDatabaseSeries, builder.maxMetricSeries) : null;
+    if (builder.capturePlans() && (builder.planTriggerMeanMicros > 0 || builder.planTriggerMaxMicros > 0 || builder.planTriggerTopN > 0)) {
+      this.planTrigger = new PlanTrigger(builder.planTriggerMeanMicros, builder.planTriggerMaxMicros, builder.planTriggerTopN,
+        builder.planTriggerMaxPerCycle, builder.planTriggerIntervalMins * 60_000L);
+    } else {
+      this.planTrigger = null;
+    }
+    if (builder.overloadCpuPercent > 0 || builder.overloadGcPercent > 0 || builder.cycleBudgetMillis > 0) {
+      this.loadMonitor = LoadMonitor.of(builder.overloadCpuPercent, builder.overloadGcPercent, builder.cycleBudgetMillis, builder.maxDeferredCycles);
+      // forwarded snapshots of deferred cycles are merged here (unless rolled up anyway)
+      this.deferred = rollup == null ? new MetricRollup(1, periodSecs, 64) : null;
+    } else {
+      this.loadMonitor = null;
+      this.deferred = null;
+    }
+    final FlushPolicy policy = lambdaMode ? FlushPolicy.of(builder.lambdaFlushEvery, builder.lambdaFlushSecs * 1000, builder.lambdaFlushBytes, System.currentTimeMillis()) : null;
+    if (policy != null) {
+      this.batch = new MetricRollup(1, periodSecs, 256);
+      this.flushPolicy = policy;
+    } else {
+      this.batch = null;
+      this.flushPolicy = null;
+    }
+    if (builder.collectThreads > 1 && databaseList.size() > 1) {
+      if (transformMetrics()) {
+        this.parallelCollect = new ParallelCollector<>(builder.collectThreads, builder.collectBudgetMillis, db -> db.metaInfo().collectMetrics());
+        this.parallelJson = null;
+      } else {
+        this.parallelCollect = null;
+        this.parallelJson = new ParallelCollector<>(builder.collectThreads, builder.collectBudgetMillis, this::collectDatabaseJson);
+      }
+    } else {
+      this.parallelCollect = null;
+      this.parallelJson = null;
+    }
     this.timer = new Timer("ebeanInsight", true);
-    this.httpClient = HttpClient.newBuilder()
-      .version(HttpClient.Version.HTTP_1_1)
-      .connectTimeout(Duration.ofSeconds(15))
-      .build();
+    // metrics have priority, plans are only sent when no metrics are in flight
+    this.metricsLane = new SendLane<>("metrics", 2, 8, builder.metricsRetries, 1000, 0, null,
+      input -> httpPostAsync(ingestUri, input, timeoutSecs, null));
+    this.plansLane = new SendLane<>("query plans", 1, 4, builder.planRetries, 5000, 1000, metricsLane,
+      upload -> httpPostAsync(ingestPlansUri, upload.body, planTimeoutSecs, upload.onSent));
+    this.reporter = builder.reporterThread && !lambdaMode ? new ReporterThread("ebeanInsightReporter", REPORTER_QUEUE_SIZE) : null;
+    this.httpClient = newHttpClient();
+    this.checkpointHooks = builder.checkpointRestore && enabled ? CheckpointHooks.register(CheckpointHooks.CRAC, this::beforeCheckpoint, this::afterRestore) : null;
 
     if (builder.capturePlans() && !databaseList.isEmpty()) {
-      planCapture = new QueryPlanCapture(databaseList.get(0), this, 10, builder.captureDelaySecs(), builder.queryPlanListener());
+      Consumer<MetaQueryPlan> planListener = ListenerDispatcher.all(builder.queryPlanListeners);
+      Consumer<QueryPlanEvent> eventListener = ListenerDispatcher.all(builder.queryPlanEventListeners);
+      if (builder.planListenerQueueSize > 0 && !lambdaMode && (planListener != null || eventListener != null)) {
+        // listeners are notified on their own thread rather than the capture thread
+        listenerDispatcher = new ListenerDispatcher("ebeanInsightPlanListener", builder.planListenerQueueSize, builder.planListenerOverflow);
+        planListener = planListener == null ? null : listenerDispatcher.async(planListener);
+        eventListener = eventListener == null ? null : listenerDispatcher.async(eventListener);
+      } else {
+        listenerDispatcher = null;
+      }
+      final RecentPlans recent = builder.recentPlansMaxBytes > 0 ? new RecentPlans(builder.recentPlansMaxBytes) : null;
+      recentPlans = recent;
+      PlanTracker tracker = builder.planCacheSize > 0 || eventListener != null
+        ? new PlanTracker(builder.planCacheSize > 0 ? builder.planCacheSize : 1000, builder.planCacheSize > 0, builder.planRegressionPercent, eventListener)
+        : null;
+      planTracker = tracker;
+      CaptureSettings settings = new CaptureSettings()
+        .captureDelaySecs(builder.captureDelaySecs())
+        .maxPending(builder.maxPendingPlans)
+        .pendingTtlMillis(builder.pendingPlanTtlMins * 60_000L)
+        .maxCount(builder.planCaptureMaxCount)
+        .maxTimeMillis(builder.planCaptureMaxTimeMillis);
+      // one capture per database scheduled on the database's own executor
+      List<QueryPlanCapture> captures = new ArrayList<>(databaseList.size());
+      for (Database database : databaseList) {
+        Consumer<MetaQueryPlan> listener = planListener;
+        if (recent != null) {
+          // stored on the capture thread, ahead of the (possibly queued) listeners
+          final String name = database.name();
+          Consumer<MetaQueryPlan> store = plan -> recent.add(name, plan);
+          listener = listener == null ? store : store.andThen(listener);
+        }
+        captures.add(new QueryPlanCapture(database, settings, this::sendPlans, listener, tracker));
+      }
+      planCapture = new PlanCaptureRouter(captures);
+      directiveChannel = builder.directiveChannel && !lambdaMode
+        ? new DirectiveChannel(() -> httpClient, URI.create(builder.url + "/api/ingest/directives"), key, builder.directiveReconnectSecs * 1000L, planCapture::process)
+        : null;
     } else {
       planCapture = null;
+      planTracker = null;
+      directiveChannel = null;
+      listenerDispatcher = null;
+      recentPlans = null;
     }
   }
 
+  /**
+   * Return the most recently captured plan for the query hash (on any of the
+   * databases), or null when not held in the recent plans store.
+   */
+  public MetaQueryPlan recentPlan(String hash) {
+    return recentPlans == null ? null : recentPlans.get(hash);
+  }
+
+  /**
+   * Return the most recently captured plan for the query hash on the named
+   * database, or null when not held in the recent plans store.
+   */
+  public MetaQueryPlan recentPlan(String database, String hash) {
+    return recentPlans == null ? null : recentPlans.get(database, hash);
+  }
+
+  /**
+   * Return the recently captured plans held in the recent plans store, newest
+   * first (see {@link Builder#recentPlansMaxBytes(long)}).
+   */
+  public List<MetaQueryPlan> recentPlans() {
+    return recentPlans == null ? List.of() : recentPlans.all();
+  }
+
+  /**
+   * Return the recently captured plans for queries with the label, newest first.
+   */
+  public List<MetaQueryPlan> recentPlans(String label) {
+    return recentPlans == null ? List.of() : recentPlans.byLabel(label);
+  }
+
+  /**
+   * Return the recently captured plans for queries on the bean type, newest first.
+   */
+  public List<MetaQueryPlan> recentPlans(Class<?> beanType) {
+    return recentPlans == null ? List.of() : recentPlans.byType(beanType);
+  }
+
+  private static HttpClient newHttpClient() {
+    return HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .connectTimeout(Duration.ofSeconds(15))
+      .build();
+  }
+
+  /**
+   * Close the connections before the checkpoint, so they are not captured in
+   * the snapshot and found stale after restore.
+   */
+  void beforeCheckpoint() {
+    if (closed.get()) {
+      return;
+    }
+    if (directiveChannel != null) {
+      directiveChannel.stop();
+    }
+    HttpClient old = httpClient;
+    httpClient = newHttpClient();
+    closeHttpClient(old);
+    log.log(DEBUG, "insight before checkpoint");
+  }
+
+  private static void closeHttpClient(HttpClient client) {
+    if (client instanceof AutoCloseable) {
+      // HttpClient is AutoCloseable from Java 21
+      try {
+        ((AutoCloseable) client).close();
+      } catch (Exception e) {
+        log.log(DEBUG, "Error closing http client {0}", e.toString());
+      }
+    }
+  }
+
+  /**
+   * After restore start the metrics window from now, use new connections and
+   * refresh the instance id (many instances can restore from one snapshot).
+   */
+  void afterRestore() {
+    if (closed.get()) {
+      // the http client is closed, nothing to restore
+      return;
+    }
+    beforeCheckpoint();
+    lastEventTime = System.currentTimeMillis();
+    if (refreshInstanceId) {
+      instanceId = restoredInstanceId(instanceIdBase, Config.getNullable("app.instanceId", System.getenv("HOSTNAME")));
+    }
+    log.log(INFO, "insight restored instanceId:{0}", instanceId);
+    if (directiveChannel != null && active && !closed.get()) {
+      directiveChannel.start();
+    }
+    if (prewarmOnRestore && enabled && active) {
+      // establish a connection ahead of the first report
+      ping();
+    }
+  }
+
+  /**
+   * Return the instance id after restore, the resolved id unless it is the
+   * same as the snapshot in which case a random suffix makes it unique.
+   */
+  static String restoredInstanceId(String snapshotId, String resolvedId) {
+    if (resolvedId != null && !resolvedId.isBlank() && !resolvedId.equals(snapshotId)) {
+      return resolvedId;
+    }
+    // SecureRandom based, a seed captured in the snapshot would repeat across instances
+    String suffix = UUID.randomUUID().toString().substring(0, 8);
+    return snapshotId == null ? suffix : snapshotId + "-" + suffix;
+  }
+
   /**
    * Return true if this is actively reporting metrics.
    */
@@ -244,14 +503,129 @@ public class InsightClient implements Consumer<ServerMetrics> {
         Date first = new Date(lastEventTime + periodMillis);
         timer.schedule(new Task(), first, periodMillis);
       }
+      if (reporter != null) {
+        reporter.start();
+      }
+      if (listenerDispatcher != null) {
+        listenerDispatcher.start();
+      }
       if (planCapture != null && !lambdaMode) {
         planCapture.start();
       }
+      if (directiveChannel != null) {
+        directiveChannel.start();
+      }
       log.log(INFO, "insight enabled");
     }
     return this;
   }
 
+  /**
+   * Stop reporting, sending the metrics of the last partial period.
+   * <p>
+   * The timer and query plan capture schedule are cancelled, the metrics since
+   * the last report (once any report in progress has completed) and any
+   * buffered metrics are sent, and the requests in
+   * flight are waited for. All of this is bounded by
+   * {@link Builder#closeTimeoutMillis(long)}, after which the remaining
+   * requests are abandoned and the threads and http client released.
+   */
+  @Override
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    timer.cancel();
+    if (directiveChannel != null) {
+      directiveChannel.stop();
+    }
+    if (planCapture != null) {
+      planCapture.stop();
+    }
+    final long deadline = System.currentTimeMillis() + closeTimeoutMillis;
+    if (enabled && active) {
+      if (reporter == null) {
+        sendFinalAfterTimer(deadline);
+      } else if (reporter.offer(this::sendFinal)) {
+        // runs after the reports already handed off rather than at the same time
+        awaitUntil(deadline, reporter::isIdle);
+      } else {
+        awaitUntil(deadline, reporter::isIdle);
+        if (reporter.isIdle()) {
+          sendFinal();
+        } else {
+          log.log(WARNING, "insight final metrics not sent, reporting did not complete within {0} millis", closeTimeoutMillis);
+        }
+      }
+      // the reports have submitted their payloads, wait for them to be sent
+      awaitUntil(deadline, () -> metricsLane.isIdle() && plansLane.isIdle());
+    }
+    active = false;
+    if (reporter != null) {
+      reporter.stop();
+    }
+    if (listenerDispatcher != null) {
+      listenerDispatcher.stop();
+    }
+    if (parallelCollect != null) {
+      parallelCollect.shutdown();
+    }
+    if (parallelJson != null) {
+      parallelJson.shutdown();
+    }
+    // no longer held so the CRaC registration can be collected
+    checkpointHooks = null;
+    closeHttpClient(httpClient);
+    log.log(INFO, "insight closed");
+  }
+
+  /**
+   * Collect and send the metrics since the last report (not deferred for
+   * load) and any buffered metrics.
+   */
+  private void sendFinal() {
+    if (!lambdaMode && (collectEbeanMetrics || collectAvajeMetrics)) {
+      try {
+        writeJsonContent(metricsSink());
+      } catch (Throwable e) {
+        log.log(WARNING, "Error reporting final metrics", e);
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Send the final metrics once a timer task already running has completed
+   * (cancelling the timer does not wait for it), so the two do not collect
+   * and report overlapping windows.
+   */
+  private void sendFinalAfterTimer(long deadline) {
+    try {
+      if (!sendLock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+        log.log(WARNING, "insight final metrics not sent, reporting did not complete within {0} millis", closeTimeoutMillis);
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      sendFinal();
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  private static void awaitUntil(long deadline, BooleanSupplier done) {
+    try {
+      while (!done.getAsBoolean() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void processBody(String responseBody) {
     if (planCapture != null) {
       if (responseBody != null && !responseBody.isEmpty()) {
@@ -260,25 +634,59 @@ public class InsightClient implements Consumer<ServerMetrics> {
     }
   }
 
+  /**
+   * A query plans request body with the callback run once it is accepted.
+   */
+  private static final class PlanUpload {
+
+    private final byte[] body;
+    private final Runnable onSent;
+
+    PlanUpload(byte[] body, Runnable onSent) {
+      this.body = body;
+      this.onSent = onSent;
+    }
+  }
+
   private class Task extends TimerTask {
     @Override
     public void run() {
-      send();
+      sendLock.lock();
+      try {
+        if (!closed.get()) {
+          send();
+        }
+      } finally {
+        sendLock.unlock();
+      }
     }
   }
 
   private void send() {
     try {
+      if (loadMonitor != null && loadMonitor.defer()) {
+        // not collected, so the metrics and startEventTime carry over to the next cycle
+        return;
+      }
       long timeStart = System.nanoTime();
-      final String json = buildJsonContent();
-      long timeCollect = System.nanoTime();
-      long contentLength = post(ingestUri, json);
-      if (log.isLoggable(TRACE)) {
-        log.log(TRACE, "send metrics {0}", json);
+      // content length and nanos spent posting, over all the parts
+      final long[] report = new long[2];
+      final long reportId = metricsLane.newReport();
+      boolean written = writeJsonContent(json -> {
+        long postStart = System.nanoTime();
+        report[0] += postMetrics(json, reportId);
+        report[1] += System.nanoTime() - postStart;
+      });
+      if (!written) {
+        return;
       }
       long timeFinish = System.nanoTime();
-      collectMicros = (timeCollect - timeStart) / 1000;
-      reportMicros = (timeFinish - timeCollect) / 1000;
+      long contentLength = report[0];
+      reportMicros = report[1] / 1000;
+      collectMicros = (timeFinish - timeStart) / 1000 - reportMicros;
+      if (loadMonitor != null) {
+        loadMonitor.cycleTime(collectMicros);
+      }
       if (log.isLoggable(DEBUG)) {
         log.log(DEBUG, "metrics collect:{0} report:{1} length:{2} latency:{3}", collectMicros, reportMicros, contentLength, latencyMillis);
       }
@@ -288,14 +696,72 @@ public class InsightClient implements Consumer<ServerMetrics> {
     }
   }
 
-  void sendPlans(List<MetaQueryPlan> plans) {
+  /**
+   * Return a sink posting the parts of one report (dropped together when the
+   * metrics lane is full).
+   */
+  private Consumer<String> metricsSink() {
+    final long reportId = metricsLane.newReport();
+    return json -> postMetrics(json, reportId);
+  }
+
+  private long postMetrics(String json, long reportId) {
+    if (log.isLoggable(TRACE)) {
+      log.log(TRACE, "send metrics {0}", json);
+    }
     try {
-      post(ingestPlansUri, buildPlansJson(plans));
+      byte[] input = gzip ? gzip(json) : json.getBytes(StandardCharsets.UTF_8);
+      if (lambdaMode) {
+        // synchronous POST so the response (which carries query-plan capture
+        // directives) is processed on the caller's thread before returning -
+        // no background HttpClient callback that could be suspended by a Lambda
+        // freeze.
+        if (!httpPostSync(ingestUri, input, Duration.ofSeconds(timeoutSecs))) {
+          metricsSyncFailed.incrementAndGet();
+        }
+      } else {
+        metricsLane.submit(input, reportId);
+      }
+      return input.length;
+    } catch (IOException e) {
+      log.log(WARNING, "Error reporting metrics", e);
+      return 0;
+    }
+  }
+
+  void sendPlans(String database, List<MetaQueryPlan> plans, Set<String> unchanged) {
+    try {
+      planWriter.write(database, plans, unchanged, gzip, (input, sent) -> sendPlans(new PlanUpload(input, planSent(database, sent, unchanged))));
     } catch (Throwable e) {
       log.log(WARNING, "Error reporting query plans", e);
     }
   }
 
+  private void sendPlans(PlanUpload upload) {
+    if (lambdaMode) {
+      postPlansSync(upload);
+    } else {
+      plansLane.submit(upload);
+    }
+  }
+
+  /**
+   * Return the callback recording the plans uploaded in full once the upload
+   * succeeds, so later captures of the same plan are sent without the text.
+   */
+  private Runnable planSent(String database, List<MetaQueryPlan> plans, Set<String> unchanged) {
+    if (planTracker == null || !planTracker.skipUnchanged()) {
+      return null;
+    }
+    return () -> {
+      for (MetaQueryPlan plan : plans) {
+        if (!unchanged.contains(plan.hash())) {
+          planTracker.sent(database, plan);
+        }
+      }
+    };
+  }
+
   /**
    * Accept an externally-collected {@link ServerMetrics} snapshot and POST it
    * to insight-server immediately. Lets an upstream collector (e.g.
@@ -331,26 +797,155 @@ public class InsightClient implements Consumer<ServerMetrics> {
    * interval.
    */
   public void sendNow(List<Metric.Statistics> avajeMetrics, List<ServerMetrics> databaseMetrics) {
+    sendNow(avajeMetrics, databaseMetrics, Long.MAX_VALUE);
+  }
+
+  /**
+   * Send the metrics as per {@link #sendNow(List, List)} given the time
+   * remaining in the invocation, for example from the Lambda context
+   * {@code getRemainingTimeInMillis()}.
+   * <p>
+   * In lambdaMode the inline query plan capture is limited to the time
+   * remaining less {@link Builder#lambdaMinRemainingMillis(long)}, and is
+   * skipped when less than that remains. Captures not completed are carried
+   * over to later invocations.
+   */
+  public void sendNow(List<Metric.Statistics> avajeMetrics, List<ServerMetrics> databaseMetrics, long remainingMillis) {
+    final long start = System.currentTimeMillis();
     if (!enabled || !active
       || ((databaseMetrics == null || databaseMetrics.isEmpty())
       && (avajeMetrics == null || avajeMetrics.isEmpty()))) {
       return;
     }
-    try {
-      post(ingestUri, buildJson(databaseMetrics, avajeMetrics));
-    } catch (Throwable e) {
-      log.log(WARNING, "Error reporting ebean metrics", e);
+    if (reporter != null) {
+      // hand off, serialization and the POST run on the reporter thread
+      if (!reporter.offer(() -> report(avajeMetrics, databaseMetrics))) {
+        log.log(WARNING, "Dropped metrics, {0} snapshots already waiting to be reported", reporter.size());
+      }
+      return;
     }
+    report(avajeMetrics, databaseMetrics);
     if (lambdaMode && planCapture != null) {
       // no background timer in lambdaMode - advance the query-plan capture
       // state machine inline so it runs on (and is awaited by) the caller's
       // thread. The metrics POST above is synchronous in lambdaMode, so its
       // response has already armed any new plans before we progress here.
-      planCapture.progress();
+      progressPlans(start, remainingMillis);
+    }
+  }
+
+  /**
+   * Send any metrics buffered for a later upload now, for example from a
+   * shutdown hook. This includes the metrics buffered across invocations in
+   * lambdaMode (see {@link Builder#lambdaFlushEvery(int)}), merged over several
+   * periods and deferred due to overload.
+   */
+  public void flush() {
+    if (!enabled || !active) {
+      return;
+    }
+    try {
+      if (flushPolicy != null) {
+        flushPolicy.reset(System.currentTimeMillis());
+      }
+      for (MetricRollup buffered : new MetricRollup[]{batch, rollup, deferred}) {
+        if (buffered != null && !buffered.isEmpty()) {
+          flushBuffered(buffered);
+        }
+      }
+      if (lambdaMode) {
+        sendHeldPlans();
+      }
+    } catch (Throwable e) {
+      log.log(WARNING, "Error flushing ebean metrics", e);
     }
   }
 
+  private void flushBuffered(MetricRollup buffered) {
+    MetricRollup.Window window = buffered.drain(System.currentTimeMillis());
+    writeJson(reduceDatabases(window.databaseMetrics()), reduceMetrics(window.avajeMetrics()), metricsSink());
+  }
+
+  /**
+   * Advance the query plan capture inline within the time budget.
+   */
+  private void progressPlans(long start, long remainingMillis) {
+    // the plans POST must also complete before the time reserved for the invocation
+    planPostDeadline = remainingMillis == Long.MAX_VALUE ? 0 : start + remainingMillis - lambdaMinRemainingMillis;
+    try {
+      sendHeldPlans();
+      long budget = lambdaPlanBudgetMillis > 0 ? lambdaPlanBudgetMillis : Long.MAX_VALUE;
+      if (remainingMillis != Long.MAX_VALUE) {
+        long available = remainingMillis - (System.currentTimeMillis() - start) - lambdaMinRemainingMillis;
+        if (available <= 0) {
+          log.log(DEBUG, "Skip query plan capture with {0} millis remaining", remainingMillis - (System.currentTimeMillis() - start));
+          return;
+        }
+        budget = Math.min(budget, available);
+      }
+      planCapture.progress(budget == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + budget);
+    } finally {
+      planPostDeadline = 0;
+    }
+  }
+
+  private void report(List<Metric.Statistics> avajeMetrics, List<ServerMetrics> databaseMetrics) {
+    try {
+      triggerPlans(databaseMetrics);
+      if (batch != null) {
+        batch.merge(admitDatabases(databaseMetrics), admitMetrics(avajeMetrics));
+        if (flushPolicy.due(batch.estimatedBytes(), System.currentTimeMillis())) {
+          flushBuffered(batch);
+        }
+        return;
+      }
+      if (loadMonitor != null && loadMonitor.defer()) {
+        // the snapshots are already collected, hold them for the next cycle
+        (rollup != null ? rollup : deferred).merge(admitDatabases(databaseMetrics), admitMetrics(avajeMetrics));
+        return;
+      }
+      final long timeStart = System.nanoTime();
+      final long[] postNanos = new long[1];
+      final Consumer<String> post = metricsSink();
+      final Consumer<String> sink = loadMonitor == null ? post : json -> {
+        long postStart = System.nanoTime();
+        post.accept(json);
+        postNanos[0] += System.nanoTime() - postStart;
+      };
+      if (rollup != null) {
+        MetricRollup.Window window = rollup.add(admitDatabases(databaseMetrics), admitMetrics(avajeMetrics), System.currentTimeMillis());
+        if (window != null) {
+          writeJson(reduceDatabases(window.databaseMetrics()), reduceMetrics(window.avajeMetrics()), sink);
+        }
+      } else if (deferred != null && !deferred.isEmpty()) {
+        deferred.merge(admitDatabases(databaseMetrics), admitMetrics(avajeMetrics));
+        MetricRollup.Window window = deferred.drain(System.currentTimeMillis());
+        writeJson(reduceDatabases(window.databaseMetrics()), reduceMetrics(window.avajeMetrics()), sink);
+      } else {
+        writeJson(reduceDatabases(admitDatabases(databaseMetrics)), reduceMetrics(admitMetrics(avajeMetrics)), sink);
+      }
+      if (loadMonitor != null) {
+        loadMonitor.cycleTime((System.nanoTime() - timeStart - postNanos[0]) / 1000);
+      }
+    } catch (Throwable e) {
+      log.log(WARNING, "Error reporting ebean metrics", e);
+    }
+  }
+
+  /**
+   * Build the payload for the metrics (the first part if split).
+   */
   String buildJson(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics) {
+    List<String> parts = new ArrayList<>(1);
+    writeJson(reduceDatabases(admitDatabases(databaseMetrics)), reduceMetrics(admitMetrics(avajeMetrics)), parts::add);
+    return parts.get(0);
+  }
+
+  /**
+   * Write the payload passing each part to the sink (a single part unless
+   * {@code maxPayloadBytes} is set and exceeded).
+   */
+  private void writeJson(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics, Consumer<String> sink) {
     final long eventTime;
     final long startEventTime;
     synchronized (this) {
@@ -358,101 +953,175 @@ public class InsightClient implements Consumer<ServerMetrics> {
       startEventTime = lastEventTime;
       lastEventTime = eventTime;
     }
-    JsonSimple json = new JsonSimple();
-    json.append("{");
-    json.keyVal("environment", environment);
-    json.keyVal("appName", appName);
-    json.keyVal("instanceId", instanceId);
-    json.keyVal("version", version);
-    json.keyVal("eventTime", eventTime);
-    json.keyVal("startEventTime", startEventTime);
-    json.keyValMap("resAttrs", resAttrs);
-    if (metricsV2) {
-      json.keyVal("v", 2);
+    final boolean heartbeat = isHeartbeat(databaseMetrics, avajeMetrics);
+    var writer = new PayloadWriter(maxPayloadBytes, metricsV2, json -> {
+      writeContentHeader(json, eventTime, startEventTime);
+      if (heartbeat) {
+        // nothing changed, just tell the server this instance is still alive
+        json.keyVal("heartbeat", true);
+      }
+    }, sink);
+    writer.write(databaseMetrics, avajeMetrics);
+  }
+
+  /**
+   * Return true when change suppression has removed every metric.
+   */
+  private boolean isHeartbeat(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics) {
+    return changeSuppression != null
+      && (databaseMetrics == null || databaseMetrics.isEmpty())
+      && (avajeMetrics == null || avajeMetrics.isEmpty());
+  }
+
+  /**
+   * Arm plan capture for the queries selected by the local trigger policy.
+   */
+  private void triggerPlans(List<ServerMetrics> databaseMetrics) {
+    if (planTrigger == null || planCapture == null) {
+      return;
     }
-    if (databaseMetrics != null && !databaseMetrics.isEmpty()) {
-      json.key("dbs");
-      json.append('[');
-      for (int i = 0; i < databaseMetrics.size(); i++) {
-        if (i > 0) {
-          json.append(',');
-        }
-        ServerMetrics metrics = databaseMetrics.get(i);
-        if (metricsV2) {
-          metrics.asJson().writeV2(json.buffer());
-        } else {
-          metrics.asJson().write(json.buffer());
-        }
+    final long now = System.currentTimeMillis();
+    for (QueryPlanCapture capture : planCapture.captures()) {
+      Map<String, Long> selected = planTrigger.select(databaseMetrics, capture.databaseName(), now);
+      if (!selected.isEmpty()) {
+        var init = new QueryPlanInit();
+        selected.forEach(init::add);
+        log.log(DEBUG, "Triggered query plan capture on {0} for {1}", capture.databaseName(), selected);
+        capture.arm(init);
       }
-      json.append(']');
     }
-    if (avajeMetrics != null && !avajeMetrics.isEmpty()) {
-      json.key("metrics");
-      json.append('[');
-      MetricStatisticsJson.write(json.buffer(), avajeMetrics, metricsV2);
-      json.append(']');
+  }
+
+  /**
+   * Return true if the collected metrics are filtered or transformed before
+   * being written (rather than written directly by the registry).
+   */
+  private boolean transformMetrics() {
+    return metricFilter != null || changeSuppression != null || rollup != null || topQueries != null
+      || cardinalityGuard != null || maxPayloadBytes > 0 || planTrigger != null;
+  }
+
+  /**
+   * Filter and cap the cardinality of the collected database metrics (before any roll-up).
+   */
+  private List<ServerMetrics> admitDatabases(List<ServerMetrics> databaseMetrics) {
+    if (metricFilter != null) {
+      databaseMetrics = metricFilter.filterDatabases(databaseMetrics);
     }
-    json.append("}");
-    return json.asJson();
+    if (cardinalityGuard != null) {
+      databaseMetrics = cardinalityGuard.guardDatabases(databaseMetrics);
+    }
+    return databaseMetrics;
   }
 
-  String buildPlansJson(List<MetaQueryPlan> plans) {
-    JsonSimple json = new JsonSimple();
-    json.begin('{');
-    json.keyVal("environment", environment);
-    json.keyVal("appName", appName);
-    json.key("plans");
-    json.begin('[');
-    for (int i = 0; i < plans.size(); i++) {
-      MetaQueryPlan metaQueryPlan = plans.get(i);
-      if (i > 0) {
-        json.append(',');
-      }
-      json.begin('{');
-      json.keyVal("hash", metaQueryPlan.hash());
-      json.keyVal("whenCaptured", metaQueryPlan.whenCaptured().toString());
-      // v2 identity: kind (orm/dto/sql), bean type, and a prefix-free label
-      String flatLabel = metaQueryPlan.label();
-      String kind = null;
-      String label = flatLabel;
-      if (flatLabel != null) {
-        int dot = flatLabel.indexOf('.');
-        if (dot > 0) {
-          String prefix = flatLabel.substring(0, dot);
-          if (prefix.equals("orm") || prefix.equals("dto") || prefix.equals("sql")) {
-            kind = prefix;
-            label = flatLabel.substring(dot + 1);
-          }
-        }
-      }
-      json.keyVal("kind", kind);
-      Class<?> beanType = metaQueryPlan.beanType();
-      json.keyVal("type", beanType == null ? null : beanType.getSimpleName());
-      json.keyVal("label", label);
-      json.keyVal("queryTimeMicros",metaQueryPlan.queryTimeMicros());
-      json.keyVal("captureMicros", metaQueryPlan.captureMicros());
-      json.keyVal("captureCount", metaQueryPlan.captureCount());
-      json.keyValEscape("bind", metaQueryPlan.bind());
-      json.keyValEscape("plan", metaQueryPlan.plan());
-      json.keyValEscape("sql", metaQueryPlan.sql());
-      json.end('}');
+  /**
+   * Filter and cap the cardinality of the collected Avaje metrics (before any roll-up).
+   */
+  private List<Metric.Statistics> admitMetrics(List<Metric.Statistics> avajeMetrics) {
+    if (metricFilter != null) {
+      avajeMetrics = metricFilter.filterMetrics(avajeMetrics);
+    }
+    if (cardinalityGuard != null) {
+      avajeMetrics = cardinalityGuard.guardMetrics(avajeMetrics);
+    }
+    return avajeMetrics;
+  }
+
+  /**
+   * Reduce the database metrics of the upload to the top queries and those that changed.
+   */
+  private List<ServerMetrics> reduceDatabases(List<ServerMetrics> databaseMetrics) {
+    if (topQueries != null) {
+      databaseMetrics = topQueries.apply(databaseMetrics);
+    }
+    if (changeSuppression != null) {
+      databaseMetrics = changeSuppression.filterDatabases(databaseMetrics);
+    }
+    return databaseMetrics;
+  }
+
+  /**
+   * Reduce the Avaje metrics of the upload to those that changed.
+   */
+  private List<Metric.Statistics> reduceMetrics(List<Metric.Statistics> avajeMetrics) {
+    if (changeSuppression != null) {
+      // gauges reported in a lost payload are sent again
+      changeSuppression.lost(metricsLane.dropped() + metricsLane.failed() + metricsSyncFailed.get());
+      avajeMetrics = changeSuppression.filterMetrics(avajeMetrics);
     }
-    json.end(']');
-    json.end('}');
-    return json.toString();
+    return avajeMetrics;
   }
 
+  String buildPlansJson(List<MetaQueryPlan> plans) {
+    return planWriter.json(plans, Set.of());
+  }
+
+  /**
+   * Collect the metrics and build the payload (the first part if split),
+   * returning null when the collected metrics are rolled up into a later upload.
+   */
   String buildJsonContent() {
+    List<String> parts = new ArrayList<>(1);
+    return writeJsonContent(parts::add) ? parts.get(0) : null;
+  }
+
+  /**
+   * Collect the metrics and write the payload passing each part to the sink.
+   *
+   * @return false when the collected metrics are rolled up into a later upload
+   */
+  private boolean writeJsonContent(Consumer<String> sink) {
+    List<Metric.Statistics> avajeMetrics = null;
+    List<ServerMetrics> databaseMetrics = null;
+    if (transformMetrics()) {
+      // filtering needs the collected statistics rather than registry written json
+      avajeMetrics = collectAvajeMetrics ? admitMetrics(Metrics.collectMetrics()) : null;
+      databaseMetrics = collectEbeanMetrics ? admitDatabases(collectDatabaseMetrics()) : null;
+      triggerPlans(databaseMetrics);
+      if (rollup != null) {
+        MetricRollup.Window window = rollup.add(databaseMetrics, avajeMetrics, System.currentTimeMillis());
+        if (window == null) {
+          return false;
+        }
+        avajeMetrics = window.avajeMetrics();
+        databaseMetrics = window.databaseMetrics();
+      }
+      avajeMetrics = reduceMetrics(avajeMetrics);
+      databaseMetrics = reduceDatabases(databaseMetrics);
+    }
     final long eventTime = System.currentTimeMillis();
     final long startEventTime = lastEventTime;
-    // Advance immediately: collectMetrics(reset=true) below captures the delta
+    // Advance immediately: collectMetrics(reset=true) captures the delta
     // since the previous collect regardless of whether this POST succeeds, so
     // the next request's window must start at this eventTime.
     lastEventTime = eventTime;
 
+    if (transformMetrics()) {
+      final boolean heartbeat = isHeartbeat(databaseMetrics, avajeMetrics);
+      var writer = new PayloadWriter(maxPayloadBytes, metricsV2, json -> {
+        writeContentHeader(json, eventTime, startEventTime);
+        if (heartbeat) {
+          json.keyVal("heartbeat", true);
+        }
+      }, sink);
+      writer.write(databaseMetrics, avajeMetrics);
+      return true;
+    }
     JsonSimple json = new JsonSimple();
-
     json.append("{");
+    writeContentHeader(json, eventTime, startEventTime);
+    if (collectAvajeMetrics) {
+      addAvajeMetrics(json);
+    }
+    if (collectEbeanMetrics) {
+      addDatabaseMetrics(json);
+    }
+    json.append("}");
+    sink.accept(json.asJson());
+    return true;
+  }
+
+  private void writeContentHeader(JsonSimple json, long eventTime, long startEventTime) {
     json.keyVal("environment", environment);
     json.keyVal("appName", appName);
     json.keyVal("instanceId", instanceId);
@@ -463,18 +1132,20 @@ public class InsightClient implements Consumer<ServerMetrics> {
     json.keyVal("report", reportMicros);
     json.keyVal("latency", latencyMillis);
     json.keyValMap("resAttrs", resAttrs);
-
     if (metricsV2) {
       json.keyVal("v", 2);
     }
-    if (collectAvajeMetrics) {
-      addAvajeMetrics(json);
+  }
+
+  private List<ServerMetrics> collectDatabaseMetrics() {
+    if (parallelCollect != null) {
+      return parallelCollect.collect(databaseList);
     }
-    if (collectEbeanMetrics) {
-      addDatabaseMetrics(json);
+    List<ServerMetrics> metrics = new ArrayList<>(databaseList.size());
+    for (Database database : databaseList) {
+      metrics.add(database.metaInfo().collectMetrics());
     }
-    json.append("}");
-    return json.asJson();
+    return metrics;
   }
 
   private void addAvajeMetrics(JsonSimple json) {
@@ -494,20 +1165,43 @@ public class InsightClient implements Consumer<ServerMetrics> {
     }
     json.key("dbs");
     json.append('[');
-    for (int i = 0; i < databaseList.size(); i++) {
-      if (i > 0) {
-        json.buffer().append(',');
+    if (parallelJson != null) {
+      List<String> dbs = parallelJson.collect(databaseList);
+      for (int i = 0; i < dbs.size(); i++) {
+        if (i > 0) {
+          json.buffer().append(',');
+        }
+        json.buffer().append(dbs.get(i));
       }
-      ServerMetricsAsJson asJson = databaseList.get(i).metaInfo().collectMetrics().asJson();
-      if (metricsV2) {
-        asJson.writeV2(json.buffer());
-      } else {
-        asJson.write(json.buffer());
+    } else {
+      for (int i = 0; i < databaseList.size(); i++) {
+        if (i > 0) {
+          json.buffer().append(',');
+        }
+        writeDatabaseJson(databaseList.get(i), json.buffer());
       }
     }
     json.append(']');
   }
 
+  /**
+   * Collect and serialize the metrics of one database into its own buffer.
+   */
+  private String collectDatabaseJson(Database database) {
+    StringBuilder buffer = new StringBuilder(1024);
+    writeDatabaseJson(database, buffer);
+    return buffer.toString();
+  }
+
+  private void writeDatabaseJson(Database database, StringBuilder buffer) {
+    ServerMetricsAsJson asJson = database.metaInfo().collectMetrics().asJson();
+    if (metricsV2) {
+      asJson.writeV2(buffer);
+    } else {
+      asJson.write(buffer);
+    }
+  }
+
   static byte[] gzip(String str) throws IOException {
     ByteArrayOutputStream obj = new ByteArrayOutputStream();
     GZIPOutputStream gzip = new GZIPOutputStream(obj);
@@ -516,50 +1210,106 @@ public class InsightClient implements Consumer<ServerMetrics> {
     return obj.toByteArray();
   }
 
-  private long post(URI uri, String json) throws IOException {
-    byte[] input = gzip ? gzip(json) : json.getBytes(StandardCharsets.UTF_8);
-    httpPost(uri, input, gzip);
-    return input.length;
+  /**
+   * Post the plans in lambdaMode within the time left for the invocation,
+   * holding them for the next invocation when too little time is left.
+   */
+  private void postPlansSync(PlanUpload upload) {
+    Duration timeout = Duration.ofSeconds(Math.min(timeoutSecs, planTimeoutSecs));
+    final long deadline = planPostDeadline;
+    if (deadline > 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining < MIN_PLAN_POST_MILLIS) {
+        holdPlans(upload);
+        return;
+      }
+      timeout = timeout.toMillis() < remaining ? timeout : Duration.ofMillis(remaining);
+    }
+    if (httpPostSync(ingestPlansUri, upload.body, timeout) && upload.onSent != null) {
+      upload.onSent.run();
+    }
+  }
+
+  private void holdPlans(PlanUpload upload) {
+    synchronized (heldPlans) {
+      if (heldPlans.size() >= MAX_HELD_PLANS) {
+        heldPlans.pollFirst();
+        log.log(WARNING, "Dropped query plans, {0} already held for the next invocation", MAX_HELD_PLANS);
+      }
+      heldPlans.addLast(upload);
+    }
+    log.log(DEBUG, "Query plans held for the next invocation");
+  }
+
+  /**
+   * Post the plans held by earlier invocations (those that do not fit are held again).
+   */
+  private void sendHeldPlans() {
+    int size;
+    synchronized (heldPlans) {
+      size = heldPlans.size();
+    }
+    for (int i = 0; i < size; i++) {
+      PlanUpload upload;
+      synchronized (heldPlans) {
+        upload = heldPlans.pollFirst();
+      }
+      if (upload == null) {
+        return;
+      }
+      postPlansSync(upload);
+    }
   }
 
-  private void httpPost(URI uri, byte[] input, boolean gzipped) {
+  private HttpRequest request(URI uri, byte[] input, Duration timeout) {
     final HttpRequest.Builder builder = HttpRequest.newBuilder()
-      .timeout(Duration.ofSeconds(timeoutSecs))
+      .timeout(timeout)
       .POST(ofByteArray(input))
       .uri(uri)
       .setHeader("Content-Type", "application/json; utf-8")
       .setHeader("Insight-Key", key);
 
-    if (gzipped) {
+    if (gzip) {
       builder.setHeader("Content-Encoding", "gzip");
     }
+    return builder.build();
+  }
 
+  /**
+   * Send returning true when the server accepted the payload.
+   */
+  private boolean httpPostSync(URI uri, byte[] input, Duration timeout) {
     final long latencyStart = System.currentTimeMillis();
-    if (lambdaMode) {
-      // synchronous POST so the response (which carries query-plan capture
-      // directives) is processed on the caller's thread before returning -
-      // no background HttpClient callback that could be suspended by a Lambda
-      // freeze.
-      try {
-        HttpResponse<String> res = httpClient.send(builder.build(), ofString());
+    try {
+      HttpResponse<String> res = httpClient.send(request(uri, input, timeout), ofString());
+      latencyMillis = System.currentTimeMillis() - latencyStart;
+      handleResponse(res.statusCode(), res.body());
+      return res.statusCode() < 300;
+    } catch (IOException e) {
+      log.log(WARNING, "Failed to send metrics - {0}", e.toString());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.log(WARNING, "Interrupted sending metrics - {0}", e.toString());
+    }
+    return false;
+  }
+
+  /**
+   * Send asynchronously completing with false when the server had an error
+   * and the request should be retried.
+   *
+   * @param onSent run when the server accepted the payload, can be null
+   */
+  private CompletableFuture<Boolean> httpPostAsync(URI uri, byte[] input, int timeoutSecs, Runnable onSent) {
+    final long latencyStart = System.currentTimeMillis();
+    return httpClient.sendAsync(request(uri, input, Duration.ofSeconds(timeoutSecs)), ofString())
+      .thenApply(res -> {
         latencyMillis = System.currentTimeMillis() - latencyStart;
         handleResponse(res.statusCode(), res.body());
-      } catch (IOException e) {
-        log.log(WARNING, "Failed to send metrics - {0}", e.toString());
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        log.log(WARNING, "Interrupted sending metrics - {0}", e.toString());
-      }
-      return;
-    }
-    httpClient.sendAsync(builder.build(), ofString())
-      .whenComplete((res, ex) -> {
-        if (ex != null) {
-          log.log(WARNING, "Failed to send metrics - {0}", ex.toString());
-          return;
+        if (onSent != null && res.statusCode() < 300) {
+          onSent.run();
         }
-        latencyMillis = System.currentTimeMillis() - latencyStart;
-        handleResponse(res.statusCode(), res.body());
+        return res.statusCode() < 500;
       });
   }
 
@@ -594,14 +1344,42 @@ public class InsightClient implements Consumer<ServerMetrics> {
     private boolean enabled;
     private boolean capturePlans;
     private int captureDelaySecs;
-    private Consumer<MetaQueryPlan> queryPlanListener;
+    private final List<Consumer<MetaQueryPlan>> queryPlanListeners = new ArrayList<>();
+    private final List<Consumer<QueryPlanEvent>> queryPlanEventListeners = new ArrayList<>();
+    private int planListenerQueueSize;
+    private ListenerOverflow planListenerOverflow;
+    private long recentPlansMaxBytes;
+    private int planRegressionPercent;
+    private long planTriggerMeanMicros;
+    private long planTriggerMaxMicros;
+    private int planTriggerTopN;
+    private int planTriggerMaxPerCycle;
+    private int planTriggerIntervalMins;
+    private int maxPendingPlans;
+    private int pendingPlanTtlMins;
+    private int planCaptureMaxCount;
+    private long planCaptureMaxTimeMillis;
     private String url;
     private String key;
     private String environment;
     private String appName;
     private String instanceId;
+    private boolean instanceIdExplicit;
+    private boolean checkpointRestore;
+    private boolean prewarmOnRestore;
+    private long closeTimeoutMillis;
+    private boolean directiveChannel;
+    private int directiveReconnectSecs;
     private String version;
     private int timeoutSecs;
+    private int planTimeoutSecs;
+    private int metricsRetries;
+    private int planRetries;
+    private int maxPlanChars;
+    private int maxPlanSqlChars;
+    private int maxPlanBindChars;
+    private int plansPerRequest;
+    private int planCacheSize;
     private long periodSecs;
     private boolean gzip;
     private boolean ping;
@@ -609,8 +1387,29 @@ public class InsightClient implements Consumer<ServerMetrics> {
     private boolean collectAvajeMetrics;
     private boolean metricsV2;
     private boolean lambdaMode;
+    private long lambdaPlanBudgetMillis;
+    private long lambdaMinRemainingMillis;
+    private int lambdaFlushEvery;
+    private long lambdaFlushSecs;
+    private long lambdaFlushBytes;
+    private boolean reporterThread;
+    private int collectThreads;
+    private long collectBudgetMillis;
+    private int overloadCpuPercent;
+    private int overloadGcPercent;
+    private long cycleBudgetMillis;
+    private int maxDeferredCycles;
+    private boolean suppressUnchanged;
+    private int uploadEveryPeriods;
+    private int topQueries;
+    private boolean topQueriesByCount;
+    private int maxDatabaseSeries;
+    private int maxMetricSeries;
+    private int maxPayloadBytes;
     private final List<Database> databaseList = new ArrayList<>();
     private final Map<String, String> resAttrs = new LinkedHashMap<>();
+    private final List<String> metricsInclude = new ArrayList<>();
+    private final List<String> metricsExclude = new ArrayList<>();
 
     Builder() {
       this.enabled = Config.getBool("ebean.insight.enabled", true);
@@ -618,13 +1417,60 @@ public class InsightClient implements Consumer<ServerMetrics> {
       this.url = Config.get("ebean.insight.url", "https://ebean.co");
       this.periodSecs = Config.getLong("ebean.insight.periodSecs", 60);
       this.timeoutSecs = Config.getInt("ebean.insight.timeoutSecs", 15);
+      this.planTimeoutSecs = Config.getInt("ebean.insight.planTimeoutSecs", 60);
+      this.metricsRetries = Config.getInt("ebean.insight.metricsRetries", 0);
+      this.planRetries = Config.getInt("ebean.insight.planRetries", 2);
+      this.maxPlanChars = Config.getInt("ebean.insight.queryPlan.maxPlanChars", 0);
+      this.maxPlanSqlChars = Config.getInt("ebean.insight.queryPlan.maxSqlChars", 0);
+      this.maxPlanBindChars = Config.getInt("ebean.insight.queryPlan.maxBindChars", 0);
+      this.plansPerRequest = Config.getInt("ebean.insight.queryPlan.plansPerRequest", 0);
+      this.planCacheSize = Config.getInt("ebean.insight.queryPlan.cacheSize", 0);
+      this.planRegressionPercent = Config.getInt("ebean.insight.queryPlan.regressionPercent", 100);
+      this.planListenerQueueSize = Config.getInt("ebean.insight.queryPlan.listenerQueueSize", 0);
+      this.planListenerOverflow = ListenerOverflow.valueOf(Config.get("ebean.insight.queryPlan.listenerOverflow", "DROP_NEWEST"));
+      this.recentPlansMaxBytes = Config.getLong("ebean.insight.queryPlan.recentMaxBytes", 0);
+      this.planTriggerMeanMicros = Config.getLong("ebean.insight.queryPlan.triggerMeanMicros", 0);
+      this.planTriggerMaxMicros = Config.getLong("ebean.insight.queryPlan.triggerMaxMicros", 0);
+      this.planTriggerTopN = Config.getInt("ebean.insight.queryPlan.triggerTopN", 0);
+      this.planTriggerMaxPerCycle = Config.getInt("ebean.insight.queryPlan.triggerMaxPerCycle", 5);
+      this.planTriggerIntervalMins = Config.getInt("ebean.insight.queryPlan.triggerIntervalMins", 60);
+      this.maxPendingPlans = Config.getInt("ebean.insight.queryPlan.maxPending", 1000);
+      this.pendingPlanTtlMins = Config.getInt("ebean.insight.queryPlan.pendingTtlMins", 30);
+      this.planCaptureMaxCount = Config.getInt("ebean.insight.queryPlan.captureMaxCount", 10);
+      this.planCaptureMaxTimeMillis = Config.getLong("ebean.insight.queryPlan.captureMaxTimeMillis", 10_000);
       this.gzip = Config.getBool("ebean.insight.gzip", true);
       this.ping = Config.getBool("ebean.insight.ping", false);
       this.collectEbeanMetrics = Config.getBool("ebean.insight.collectEbeanMetrics", false);
       this.collectAvajeMetrics = Config.getBool("ebean.insight.collectAvajeMetrics", false);
       this.metricsV2 = Config.getBool("ebean.insight.metricsV2", false);
       this.lambdaMode = Config.getBool("ebean.insight.lambdaMode", false);
+      this.checkpointRestore = Config.getBool("ebean.insight.checkpointRestore", false);
+      this.prewarmOnRestore = Config.getBool("ebean.insight.prewarmOnRestore", false);
+      this.closeTimeoutMillis = Config.getLong("ebean.insight.closeTimeoutMillis", 5000);
+      this.directiveChannel = Config.getBool("ebean.insight.queryPlan.directiveChannel", false);
+      this.directiveReconnectSecs = Config.getInt("ebean.insight.queryPlan.directiveReconnectSecs", 5);
+      this.lambdaPlanBudgetMillis = Config.getLong("ebean.insight.lambdaPlanBudgetMillis", 1000);
+      this.lambdaMinRemainingMillis = Config.getLong("ebean.insight.lambdaMinRemainingMillis", 3000);
+      this.lambdaFlushEvery = Config.getInt("ebean.insight.lambdaFlushEvery", 0);
+      this.lambdaFlushSecs = Config.getLong("ebean.insight.lambdaFlushSecs", 0);
+      this.lambdaFlushBytes = Config.getLong("ebean.insight.lambdaFlushBytes", 0);
+      this.reporterThread = Config.getBool("ebean.insight.reporterThread", false);
+      this.collectThreads = Config.getInt("ebean.insight.collectThreads", 1);
+      this.collectBudgetMillis = Config.getLong("ebean.insight.collectBudgetMillis", 5000);
+      this.overloadCpuPercent = Config.getInt("ebean.insight.overloadCpuPercent", 0);
+      this.overloadGcPercent = Config.getInt("ebean.insight.overloadGcPercent", 0);
+      this.cycleBudgetMillis = Config.getLong("ebean.insight.cycleBudgetMillis", 0);
+      this.maxDeferredCycles = Config.getInt("ebean.insight.maxDeferredCycles", 3);
+      this.suppressUnchanged = Config.getBool("ebean.insight.suppressUnchanged", false);
+      this.uploadEveryPeriods = Config.getInt("ebean.insight.uploadEveryPeriods", 1);
+      this.topQueries = Config.getInt("ebean.insight.topQueries", 0);
+      this.topQueriesByCount = Config.getBool("ebean.insight.topQueriesByCount", false);
+      this.maxDatabaseSeries = Config.getInt("ebean.insight.maxDatabaseSeries", 0);
+      this.maxMetricSeries = Config.getInt("ebean.insight.maxMetricSeries", 0);
+      this.maxPayloadBytes = Config.getInt("ebean.insight.maxPayloadBytes", 0);
       this.captureDelaySecs = Config.getInt("ebean.insight.queryPlan.captureDelaySecs", 60);
+      this.metricsInclude.addAll(patterns(Config.getNullable("ebean.insight.metrics.include")));
+      this.metricsExclude.addAll(patterns(Config.getNullable("ebean.insight.metrics.exclude")));
       this.appName = Config.getNullable("app.name");
       // Primary is the avaje standard 'app.environment'; fall back to the
       // 'app.env' property / APP_ENV env var used by some apps. OTEL resource
@@ -646,61 +1492,154 @@ public class InsightClient implements Consumer<ServerMetrics> {
     /**
      * Set the ebean insight key.
      */
-    public Builder key(String key) {
-      this.key = key;
+    public Builder key(String key) {
+      this.key = key;
+      return this;
+    }
+
+    /**
+     * Set the url to send the metrics to.
+     */
+    public Builder url(String url) {
+      this.url = url;
+      return this;
+    }
+
+    /**
+     * Set the environment this server is running in (dev, test, prod etc).
+     * <p>
+     * When not set explicitly (here or via the {@code app.environment} or
+     * {@code app.env} property / {@code APP_ENV} env var) it falls back to the
+     * {@code deployment.environment.name} OTEL resource attribute, so OTEL-native
+     * deployments report the correct environment.
+     */
+    public Builder environment(String environment) {
+      this.environment = environment;
+      return this;
+    }
+
+    /**
+     * Set the application name.
+     */
+    public Builder appName(String appName) {
+      this.appName = appName;
+      return this;
+    }
+
+    /**
+     * Set whether to use gzip content encoding.
+     */
+    public Builder gzip(boolean gzip) {
+      this.gzip = gzip;
+      return this;
+    }
+
+    /**
+     * Set true to skip ping check on startup.
+     */
+    public Builder ping(boolean ping) {
+      this.ping = ping;
+      return this;
+    }
+
+    /**
+     * Set request timeout in seconds. Default timeout when unset is 15 secs.
+     */
+    public Builder timeoutSecs(int timeoutSecs) {
+      this.timeoutSecs = timeoutSecs;
+      return this;
+    }
+
+    /**
+     * Set the request timeout in seconds for sending query plans. Default 60 secs
+     * (config {@code ebean.insight.planTimeoutSecs}).
+     * <p>
+     * Query plans are sent on their own lane: one request at a time, at most
+     * one per second and only when no metrics request is in flight, so a large
+     * plans payload does not delay the metrics.
+     * <p>
+     * In lambdaMode the plans are sent on the invocation thread, with a
+     * timeout of at most {@link #timeoutSecs(int)} and no later than the time
+     * reserved by {@link #lambdaMinRemainingMillis(long)}.
+     */
+    public Builder planTimeoutSecs(int planTimeoutSecs) {
+      this.planTimeoutSecs = planTimeoutSecs;
+      return this;
+    }
+
+    /**
+     * Set the number of times a failed metrics request is retried. Default 0
+     * (config {@code ebean.insight.metricsRetries}).
+     * <p>
+     * Requests that fail with a connection error, timeout or a 5xx response
+     * are retried. Ignored in lambdaMode.
+     */
+    public Builder metricsRetries(int metricsRetries) {
+      this.metricsRetries = metricsRetries;
       return this;
     }
 
     /**
-     * Set the url to send the metrics to.
+     * Set the number of times a failed query plans request is retried.
+     * Default 2 (config {@code ebean.insight.planRetries}). Ignored in lambdaMode.
      */
-    public Builder url(String url) {
-      this.url = url;
+    public Builder planRetries(int planRetries) {
+      this.planRetries = planRetries;
       return this;
     }
 
     /**
-     * Set the environment this server is running in (dev, test, prod etc).
+     * Truncate the query plan text of captured plans to this many characters.
+     * Defaults to 0 meaning no limit (config {@code ebean.insight.queryPlan.maxPlanChars}).
      * <p>
-     * When not set explicitly (here or via the {@code app.environment} or
-     * {@code app.env} property / {@code APP_ENV} env var) it falls back to the
-     * {@code deployment.environment.name} OTEL resource attribute, so OTEL-native
-     * deployments report the correct environment.
+     * A plan with truncated plan, sql or bind text is sent with {@code "truncated":true}.
      */
-    public Builder environment(String environment) {
-      this.environment = environment;
+    public Builder maxPlanChars(int maxPlanChars) {
+      this.maxPlanChars = maxPlanChars;
       return this;
     }
 
     /**
-     * Set the application name.
+     * Truncate the sql of captured plans to this many characters. Defaults to 0
+     * meaning no limit (config {@code ebean.insight.queryPlan.maxSqlChars}).
      */
-    public Builder appName(String appName) {
-      this.appName = appName;
+    public Builder maxPlanSqlChars(int maxPlanSqlChars) {
+      this.maxPlanSqlChars = maxPlanSqlChars;
       return this;
     }
 
     /**
-     * Set whether to use gzip content encoding.
+     * Truncate the bind values of captured plans to this many characters.
+     * Defaults to 0 meaning no limit (config {@code ebean.insight.queryPlan.maxBindChars}).
      */
-    public Builder gzip(boolean gzip) {
-      this.gzip = gzip;
+    public Builder maxPlanBindChars(int maxPlanBindChars) {
+      this.maxPlanBindChars = maxPlanBindChars;
       return this;
     }
 
     /**
-     * Set true to skip ping check on startup.
+     * Send the captured plans in requests of at most this many plans. Defaults
+     * to 0 meaning all the captured plans are sent in one request (config
+     * {@code ebean.insight.queryPlan.plansPerRequest}).
      */
-    public Builder ping(boolean ping) {
-      this.ping = ping;
+    public Builder plansPerRequest(int plansPerRequest) {
+      this.plansPerRequest = plansPerRequest;
       return this;
     }
 
     /**
-     * Set request timeout in seconds. Default timeout when unset is 15 secs.
+     * Remember a fingerprint of the last captured plan for up to this many
+     * query hashes. Defaults to 0 meaning off (config
+     * {@code ebean.insight.queryPlan.cacheSize}).
+     * <p>
+     * When a plan is re-captured and its normalized plan text is the same as
+     * the plan last uploaded successfully it is sent with only its hash,
+     * timings and {@code "samePlan":true}, rather
+     * than the full sql, bind and plan text again. The least recently captured
+     * hashes are evicted beyond this size.
      */
-    public Builder timeoutSecs(int timeoutSecs) {
-      this.timeoutSecs = timeoutSecs;
+    public Builder planCacheSize(int planCacheSize) {
+      this.planCacheSize = planCacheSize;
       return this;
     }
 
@@ -716,6 +1655,54 @@ public class InsightClient implements Consumer<ServerMetrics> {
       return this;
     }
 
+    /**
+     * Add glob patterns ({@code *} and {@code ?} wildcards) for the metrics to
+     * report. When include patterns are set only metrics whose name or a tag
+     * matches one of them are reported. Applies to both the Avaje metrics and
+     * the database ({@code dbs}) metrics, where the database is matched as the
+     * tag {@code db:<name>}.
+     * <p>
+     * A tag is matched as the whole {@code key:value} string, so to match on a
+     * tag value the pattern includes the key: {@code db:h2} (or {@code *:h2})
+     * matches the h2 database while {@code h2} only matches a metric named h2.
+     *
+     * <pre>{@code
+     *   .metricsInclude("db.query.*", "jvm.memory.*", "db:tenant*")
+     * }</pre>
+     * <p>
+     * Defaults from the comma separated {@code ebean.insight.metrics.include} property.
+     */
+    public Builder metricsInclude(String... patterns) {
+      this.metricsInclude.addAll(List.of(patterns));
+      return this;
+    }
+
+    /**
+     * Add glob patterns ({@code *} and {@code ?} wildcards) for metrics to
+     * exclude from reporting, matched against the metric name and tags as per
+     * {@link #metricsInclude(String...)}. Exclude wins over include.
+     * <p>
+     * Defaults from the comma separated {@code ebean.insight.metrics.exclude} property.
+     */
+    public Builder metricsExclude(String... patterns) {
+      this.metricsExclude.addAll(List.of(patterns));
+      return this;
+    }
+
+    /**
+     * Set true to only report metrics that changed in the cycle. Timers, meters
+     * and counters with a zero count are skipped, as are gauges whose value is
+     * unchanged since it was last reported. When nothing changed a minimal
+     * {@code "heartbeat":true} payload is sent instead.
+     * <p>
+     * Defaults to false (config {@code ebean.insight.suppressUnchanged}). Only
+     * enable this once the receiving insight-server carries gauge values forward.
+     */
+    public Builder suppressUnchanged(boolean suppressUnchanged) {
+      this.suppressUnchanged = suppressUnchanged;
+      return this;
+    }
+
     /**
      * Set the application version.
      */
@@ -763,6 +1750,7 @@ public class InsightClient implements Consumer<ServerMetrics> {
      */
     public Builder instanceId(String instanceId) {
       this.instanceId = instanceId;
+      this.instanceIdExplicit = true;
       return this;
     }
 
@@ -774,6 +1762,89 @@ public class InsightClient implements Consumer<ServerMetrics> {
       return this;
     }
 
+    /**
+     * Set the number of periods merged into each upload. Defaults to 1
+     * (config {@code ebean.insight.uploadEveryPeriods}).
+     * <p>
+     * With for example {@code periodSecs(10)} and {@code uploadEveryPeriods(6)}
+     * metrics are collected every 10 seconds but uploaded once a minute.
+     * The collected metrics are merged locally: timer, meter and counter counts
+     * and totals are summed with the max of the max values, and gauges report
+     * their last value. For the forwarder role the period is the upstream
+     * collection period, so set {@code periodSecs} to match it.
+     */
+    public Builder uploadEveryPeriods(int uploadEveryPeriods) {
+      this.uploadEveryPeriods = uploadEveryPeriods;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of query metrics reported per database each cycle.
+     * Defaults to 0 meaning no limit (config {@code ebean.insight.topQueries}).
+     * <p>
+     * When set only the top queries by total execution time are reported, and
+     * the remaining queries are collapsed into one {@code orm.other},
+     * {@code dto.other} or {@code sql.other} metric per query kind so that the
+     * totals still reconcile.
+     */
+    public Builder topQueries(int topQueries) {
+      this.topQueries = topQueries;
+      return this;
+    }
+
+    /**
+     * Set true to select the {@link #topQueries(int)} by execution count rather
+     * than total execution time. Defaults to false
+     * (config {@code ebean.insight.topQueriesByCount}).
+     */
+    public Builder topQueriesByCount(boolean topQueriesByCount) {
+      this.topQueriesByCount = topQueriesByCount;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of distinct metric series reported per database.
+     * Defaults to 0 meaning no limit (config {@code ebean.insight.maxDatabaseSeries}).
+     * <p>
+     * This protects against a deployment that produces unbounded distinct queries
+     * (for example dynamic SQL). Once the limit is reached the metrics of new
+     * series are folded into an {@code insight.overflow} series and the
+     * {@code insight.series.dropped} count reports how many were folded.
+     */
+    public Builder maxDatabaseSeries(int maxDatabaseSeries) {
+      this.maxDatabaseSeries = maxDatabaseSeries;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of distinct Avaje metric series reported. Defaults
+     * to 0 meaning no limit (config {@code ebean.insight.maxMetricSeries}).
+     * <p>
+     * As per {@link #maxDatabaseSeries(int)} timers, meters and counters of new
+     * series over the limit are folded into {@code insight.overflow}. Gauges of
+     * new series over the limit are dropped.
+     */
+    public Builder maxMetricSeries(int maxMetricSeries) {
+      this.maxMetricSeries = maxMetricSeries;
+      return this;
+    }
+
+    /**
+     * Set the maximum uncompressed size of a metrics payload. Defaults to 0
+     * meaning no limit (config {@code ebean.insight.maxPayloadBytes}).
+     * <p>
+     * Larger payloads are split into several self-contained requests that have
+     * the same {@code eventTime} and {@code startEventTime} plus a {@code part}
+     * index, with {@code lastPart} marking the final part. Each part is sent as
+     * soon as it is written (in parallel, or in sequence in lambdaMode) so the
+     * full payload is never held in memory. The size is measured in characters
+     * which is the byte size for ASCII content.
+     */
+    public Builder maxPayloadBytes(int maxPayloadBytes) {
+      this.maxPayloadBytes = maxPayloadBytes;
+      return this;
+    }
+
     /**
      * Add an explicit database to collect metrics on.
      * <p>
@@ -871,14 +1942,230 @@ public class InsightClient implements Consumer<ServerMetrics> {
       return this;
     }
 
+    /**
+     * Set the maximum time in millis spent on query plan capture inline per
+     * invocation in lambdaMode. Captures not completed within the budget are
+     * carried over to later invocations. Set to 0 for no limit. Defaults to
+     * 1000 (config {@code ebean.insight.lambdaPlanBudgetMillis}).
+     */
+    public Builder lambdaPlanBudgetMillis(long lambdaPlanBudgetMillis) {
+      this.lambdaPlanBudgetMillis = lambdaPlanBudgetMillis;
+      return this;
+    }
+
+    /**
+     * Set the time in millis to leave remaining in the invocation when the
+     * remaining time is supplied via
+     * {@link InsightClient#sendNow(List, List, long)}. Query plan capture is
+     * skipped when less than this remains, and the captured plans are held
+     * for the next invocation when their POST could not complete before this
+     * remains. Defaults to 3000 (config
+     * {@code ebean.insight.lambdaMinRemainingMillis}).
+     */
+    public Builder lambdaMinRemainingMillis(long lambdaMinRemainingMillis) {
+      this.lambdaMinRemainingMillis = lambdaMinRemainingMillis;
+      return this;
+    }
+
+    /**
+     * Set true to register checkpoint and restore hooks with CRaC (also used
+     * by AWS Lambda SnapStart) when {@code org.crac} is available. The hooks
+     * are registered with the global CRaC context, which has no way to
+     * deregister them, so they only take effect until the client is closed.
+     * <p>
+     * Before a checkpoint the http connections are closed. After restore new
+     * connections are used, the metrics window starts from the restore and the
+     * instance id is refreshed (unless set explicitly via
+     * {@link #instanceId(String)}) as many instances can restore from the same
+     * snapshot. Defaults to false (config {@code ebean.insight.checkpointRestore}).
+     */
+    public Builder checkpointRestore(boolean checkpointRestore) {
+      this.checkpointRestore = checkpointRestore;
+      return this;
+    }
+
+    /**
+     * Set true to connect to the insight host after a checkpoint restore, so
+     * the first report after restore does not pay the connection latency.
+     * Defaults to false (config {@code ebean.insight.prewarmOnRestore}).
+     */
+    public Builder prewarmOnRestore(boolean prewarmOnRestore) {
+      this.prewarmOnRestore = prewarmOnRestore;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in millis {@link InsightClient#close()} waits for
+     * the final metrics to be sent. Defaults to 5000 (config
+     * {@code ebean.insight.closeTimeoutMillis}).
+     */
+    public Builder closeTimeoutMillis(long closeTimeoutMillis) {
+      this.closeTimeoutMillis = closeTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Set to true to subscribe to query plan directives pushed by the server
+     * (Server-Sent Events) so plans are captured within seconds of being
+     * requested rather than after the next metrics report. Defaults to false
+     * (config {@code ebean.insight.queryPlan.directiveChannel}).
+     * <p>
+     * Not used in lambdaMode.
+     */
+    public Builder directiveChannel(boolean directiveChannel) {
+      this.directiveChannel = directiveChannel;
+      return this;
+    }
+
+    /**
+     * Set the delay in seconds before re-subscribing to the directive channel
+     * after the server ends it. Defaults to 5 (config
+     * {@code ebean.insight.queryPlan.directiveReconnectSecs}).
+     */
+    public Builder directiveReconnectSecs(int directiveReconnectSecs) {
+      this.directiveReconnectSecs = directiveReconnectSecs;
+      return this;
+    }
+
+    /**
+     * In lambdaMode buffer the metrics across invocations and send them every
+     * N invocations, rather than sending on every invocation. The buffered
+     * metrics are merged (counts and totals summed) and can also be flushed by
+     * time ({@link #lambdaFlushSecs(long)}), by size
+     * ({@link #lambdaFlushBytes(long)}) or explicitly via
+     * {@link InsightClient#flush()}, whichever comes first. Defaults to 0
+     * meaning not by count, where without a time or size trigger the metrics
+     * are sent on every invocation (config {@code ebean.insight.lambdaFlushEvery}).
+     */
+    public Builder lambdaFlushEvery(int lambdaFlushEvery) {
+      this.lambdaFlushEvery = lambdaFlushEvery;
+      return this;
+    }
+
+    /**
+     * In lambdaMode send the buffered metrics on the first invocation at least
+     * this many seconds after the last send. Defaults to 0 meaning not by time
+     * (config {@code ebean.insight.lambdaFlushSecs}).
+     */
+    public Builder lambdaFlushSecs(long lambdaFlushSecs) {
+      this.lambdaFlushSecs = lambdaFlushSecs;
+      return this;
+    }
+
+    /**
+     * In lambdaMode send the buffered metrics when their approximate payload
+     * size reaches this many bytes. Defaults to 0 meaning not by size (config
+     * {@code ebean.insight.lambdaFlushBytes}).
+     */
+    public Builder lambdaFlushBytes(long lambdaFlushBytes) {
+      this.lambdaFlushBytes = lambdaFlushBytes;
+      return this;
+    }
+
+    /**
+     * Set true to serialize and send the snapshots passed to
+     * {@link InsightClient#accept(ServerMetrics)} on a dedicated reporter thread.
+     * <p>
+     * {@code accept()} then only queues the snapshot and returns, so the
+     * upstream poll thread (and the other consumers it forwards snapshots to)
+     * is not held up building, compressing and sending the payload. Snapshots
+     * are reported in the order accepted. When more than 64 snapshots are
+     * waiting, because the insight server is slow or unreachable, further
+     * snapshots are dropped with a warning.
+     * <p>
+     * Ignored in lambdaMode which sends on the calling thread. Defaults to false
+     * (config {@code ebean.insight.reporterThread}).
+     */
+    public Builder reporterThread(boolean reporterThread) {
+      this.reporterThread = reporterThread;
+      return this;
+    }
+
+    /**
+     * Set the number of threads used to collect the metrics of the databases in
+     * parallel. Defaults to 1 which collects the databases one after another on
+     * the timer thread (config {@code ebean.insight.collectThreads}).
+     * <p>
+     * Use this when collecting metrics on many databases (for example one per
+     * tenant). Each database is collected and serialized into its own buffer
+     * and the results are reported in the order of the databases.
+     */
+    public Builder collectThreads(int collectThreads) {
+      this.collectThreads = collectThreads;
+      return this;
+    }
+
+    /**
+     * Set the time the collection waits for each database when using
+     * {@link #collectThreads(int)}, measured from when the database starts
+     * being collected. Defaults to 5000 (config
+     * {@code ebean.insight.collectBudgetMillis}).
+     * <p>
+     * A database that takes longer is left out of the report and is not
+     * collected again until its collection completes, so one slow database
+     * does not hold up the others. The late result is dropped rather than
+     * reported in a later window.
+     */
+    public Builder collectBudgetMillis(long collectBudgetMillis) {
+      this.collectBudgetMillis = collectBudgetMillis;
+      return this;
+    }
+
+    /**
+     * Defer the report cycle when the process CPU load is at or above this
+     * percentage. Defaults to 0 meaning not checked (config
+     * {@code ebean.insight.overloadCpuPercent}).
+     * <p>
+     * A deferred cycle is folded into the next one. When collecting, the
+     * metrics are simply not collected, and forwarded snapshots are merged and
+     * held. Either way the next payload keeps the original
+     * {@code startEventTime} so nothing is lost. See {@link #maxDeferredCycles(int)}.
+     */
+    public Builder overloadCpuPercent(int overloadCpuPercent) {
+      this.overloadCpuPercent = overloadCpuPercent;
+      return this;
+    }
+
+    /**
+     * Defer the report cycle when the JVM spent at least this percentage of
+     * the time since the previous cycle in GC. Defaults to 0 meaning not checked
+     * (config {@code ebean.insight.overloadGcPercent}).
+     */
+    public Builder overloadGcPercent(int overloadGcPercent) {
+      this.overloadGcPercent = overloadGcPercent;
+      return this;
+    }
+
+    /**
+     * Defer the report cycle that follows a cycle where collecting and
+     * serializing the metrics took longer than this. Defaults to 0 meaning not
+     * checked (config {@code ebean.insight.cycleBudgetMillis}).
+     */
+    public Builder cycleBudgetMillis(long cycleBudgetMillis) {
+      this.cycleBudgetMillis = cycleBudgetMillis;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of report cycles in a row deferred due to
+     * overload. Defaults to 3 (config {@code ebean.insight.maxDeferredCycles}).
+     */
+    public Builder maxDeferredCycles(int maxDeferredCycles) {
+      this.maxDeferredCycles = maxDeferredCycles;
+      return this;
+    }
+
     /**
      * Register a listener notified for each query plan as it is captured.
+     * Multiple listeners can be registered.
      * <p>
-     * The listener is invoked once per captured {@link MetaQueryPlan} on Ebean's
-     * background executor thread, independent of whether the plan is successfully
-     * sent to the insight server. This allows the application to log captured plans
-     * (for example, as SLF4J structured key/value logs). Any exception thrown by the
-     * listener is caught and logged so it cannot disrupt capture or sending.
+     * The listener is invoked once per captured {@link MetaQueryPlan} on the
+     * capture thread, or a dedicated listener thread when
+     * {@link #planListenerQueueSize(int)} is set, independent of whether the plan is successfully sent to the insight
+     * server. This allows the application to log captured plans (for example,
+     * as SLF4J structured key/value logs). Any exception thrown by the listener
+     * is caught and logged so it cannot disrupt capture, sending or the other
+     * listeners.
      *
      * <pre>{@code
      *
@@ -895,7 +2182,177 @@ public class InsightClient implements Consumer<ServerMetrics> {
      * }</pre>
      */
     public Builder onQueryPlanCaptured(Consumer<MetaQueryPlan> listener) {
-      this.queryPlanListener = listener;
+      this.queryPlanListeners.add(listener);
+      return this;
+    }
+
+    /**
+     * Register a listener notified with a {@link QueryPlanEvent} for each
+     * captured query plan, comparing it to the previous capture of the same
+     * query hash on the same database.
+     * <p>
+     * The event type is NEW, UNCHANGED, CHANGED or REGRESSED. A changed plan is
+     * REGRESSED when it now has a full table scan it did not have before, or its
+     * query time is higher by at least {@link #planRegressionPercent(int)}.
+     * This allows plan regressions to be acted on within one capture cycle
+     * without waiting for analysis on the insight server.
+     * <p>
+     * The plans of up to {@link #planCacheSize(int)} query hashes (1000 when not
+     * set) are remembered, as a fingerprint rather than the plan text. Like
+     * {@link #onQueryPlanCaptured(Consumer)} the listener is invoked on the
+     * capture (or listener) thread and any exception it throws is caught and logged.
+     * Multiple listeners can be registered.
+     */
+    public Builder onQueryPlanEvent(Consumer<QueryPlanEvent> listener) {
+      this.queryPlanEventListeners.add(listener);
+      return this;
+    }
+
+    /**
+     * Set the maximum number of query plan notifications queued for the
+     * listeners, notifying them on a dedicated thread so a slow listener does
+     * not delay capture and the upload of plans. Defaults to 0 meaning the
+     * listeners are notified on the capture thread, in capture order (config
+     * {@code ebean.insight.queryPlan.listenerQueueSize}).
+     * <p>
+     * In lambdaMode the listeners are always notified on the capture thread.
+     */
+    public Builder planListenerQueueSize(int planListenerQueueSize) {
+      this.planListenerQueueSize = planListenerQueueSize;
+      return this;
+    }
+
+    /**
+     * Set what happens to a notification when the listener queue is full.
+     * Defaults to {@link ListenerOverflow#DROP_NEWEST} (config
+     * {@code ebean.insight.queryPlan.listenerOverflow}).
+     */
+    public Builder planListenerOverflow(ListenerOverflow planListenerOverflow) {
+      this.planListenerOverflow = planListenerOverflow;
+      return this;
+    }
+
+    /**
+     * Set the maximum size in bytes of the plan text (sql, bind and plan) of
+     * the recently captured plans kept in memory, queryable via
+     * {@link InsightClient#recentPlans(String)} and related methods. The least
+     * recently used plans are evicted when over the max, for example 1048576
+     * for 1MB. Defaults to 0 meaning recent plans are not kept (config
+     * {@code ebean.insight.queryPlan.recentMaxBytes}).
+     */
+    public Builder recentPlansMaxBytes(long recentPlansMaxBytes) {
+      this.recentPlansMaxBytes = recentPlansMaxBytes;
+      return this;
+    }
+
+    /**
+     * Set the increase in query time, as a percentage of the previously
+     * captured query time, at which a changed plan is treated as a regression.
+     * Defaults to 100 meaning the query time doubled (config
+     * {@code ebean.insight.queryPlan.regressionPercent}).
+     */
+    public Builder planRegressionPercent(int planRegressionPercent) {
+      this.planRegressionPercent = planRegressionPercent;
+      return this;
+    }
+
+    /**
+     * Capture the plan of a query when its mean execution time for the period
+     * is at least this many micros, without waiting for the insight server to
+     * request it. Defaults to 0 meaning not triggered by mean time (config
+     * {@code ebean.insight.queryPlan.triggerMeanMicros}).
+     */
+    public Builder planTriggerMeanMicros(long planTriggerMeanMicros) {
+      this.planTriggerMeanMicros = planTriggerMeanMicros;
+      return this;
+    }
+
+    /**
+     * Capture the plan of a query when its max execution time for the period
+     * is at least this many micros. Defaults to 0 meaning not triggered by max
+     * time (config {@code ebean.insight.queryPlan.triggerMaxMicros}).
+     * <p>
+     * The plan captured is that of an execution taking at least the mean time
+     * of the query for the period (rather than the max, which may not recur).
+     */
+    public Builder planTriggerMaxMicros(long planTriggerMaxMicros) {
+      this.planTriggerMaxMicros = planTriggerMaxMicros;
+      return this;
+    }
+
+    /**
+     * Capture the plans of the top N queries by total execution time for the
+     * period, each for an execution taking at least the mean time of the query
+     * for the period. Defaults to 0 (config {@code ebean.insight.queryPlan.triggerTopN}).
+     */
+    public Builder planTriggerTopN(int planTriggerTopN) {
+      this.planTriggerTopN = planTriggerTopN;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of plan captures triggered locally per period.
+     * Defaults to 5 (config {@code ebean.insight.queryPlan.triggerMaxPerCycle}).
+     */
+    public Builder planTriggerMaxPerCycle(int planTriggerMaxPerCycle) {
+      this.planTriggerMaxPerCycle = planTriggerMaxPerCycle;
+      return this;
+    }
+
+    /**
+     * Set the minimum interval in minutes before the plan of the same query is
+     * triggered locally again. Defaults to 60 (config
+     * {@code ebean.insight.queryPlan.triggerIntervalMins}).
+     */
+    public Builder planTriggerIntervalMins(int planTriggerIntervalMins) {
+      this.planTriggerIntervalMins = planTriggerIntervalMins;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of pending query plan initialisations and the
+     * maximum number of pending captures, the oldest are evicted when full.
+     * Defaults to 1000 (config {@code ebean.insight.queryPlan.maxPending}).
+     */
+    public Builder maxPendingPlans(int maxPendingPlans) {
+      this.maxPendingPlans = maxPendingPlans;
+      return this;
+    }
+
+    /**
+     * Set the time in minutes after which a pending query plan initialisation
+     * or capture is evicted, for example when the query is not executed
+     * again. Defaults to 30 (config {@code ebean.insight.queryPlan.pendingTtlMins}).
+     */
+    public Builder pendingPlanTtlMins(int pendingPlanTtlMins) {
+      this.pendingPlanTtlMins = pendingPlanTtlMins;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of query plans collected per capture cycle. The
+     * number collected follows the backlog of pending captures (at least 10)
+     * up to this max. Defaults to 10 (config
+     * {@code ebean.insight.queryPlan.captureMaxCount}).
+     */
+    public Builder planCaptureMaxCount(int planCaptureMaxCount) {
+      this.planCaptureMaxCount = planCaptureMaxCount;
+      return this;
+    }
+
+    /**
+     * Set the maximum time in millis spent collecting query plans per capture
+     * cycle. The time used is reduced when capturing plans is expensive
+     * relative to the query execution time. Defaults to 10000 (config
+     * {@code ebean.insight.queryPlan.captureMaxTimeMillis}).
+     * <p>
+     * Ebean decides which of the pending plans are explained within the time,
+     * the request has no ordering. Ordering by query time (most expensive
+     * first) only applies to the plans collected, as they are passed to the
+     * listeners and uploaded.
+     */
+    public Builder planCaptureMaxTimeMillis(long planCaptureMaxTimeMillis) {
+      this.planCaptureMaxTimeMillis = planCaptureMaxTimeMillis;
       return this;
     }
 
@@ -926,8 +2383,12 @@ public class InsightClient implements Consumer<ServerMetrics> {
       return lambdaMode;
     }
 
-    Consumer<MetaQueryPlan> queryPlanListener() {
-      return queryPlanListener;
+    boolean suppressUnchanged() {
+      return suppressUnchanged;
+    }
+
+    int uploadEveryPeriods() {
+      return uploadEveryPeriods;
     }
 
     private boolean validKey() {
@@ -979,6 +2440,19 @@ public class InsightClient implements Consumer<ServerMetrics> {
       return (v == null || v.isBlank()) ? null : v;
     }
 
+    static List<String> patterns(String commaSeparated) {
+      if (commaSeparated == null || commaSeparated.isBlank()) {
+        return List.of();
+      }
+      List<String> patterns = new ArrayList<>();
+      for (String pattern : commaSeparated.split(",")) {
+        if (!pattern.isBlank()) {
+          patterns.add(pattern.trim());
+        }
+      }
+      return patterns;
+    }
+
     boolean isCollectAvajeMetrics() {
       return collectAvajeMetrics && detectAvajeMetrics();
     }
@@ -22,6 +22,14 @@ final class JsonSimple {
     keyPrefix = false;
   }
 
+  /**
+   * Clear the content to reuse the buffer.
+   */
+  void reset() {
+    buffer.setLength(0);
+    keyPrefix = false;
+  }
+
   void key(String key) {
     preKey();
     str(key);
@@ -44,6 +52,13 @@ final class JsonSimple {
     buffer.append(val);
   }
 
+  void keyVal(String key, boolean val) {
+    preKey();
+    str(key);
+    buffer.append(':');
+    buffer.append(val);
+  }
+
   void keyValEscape(String key, String val) {
     preKey();
     str(key);
@@ -0,0 +1,130 @@
+package io.ebean.insight;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.lang.System.Logger.Level.*;
+
+/**
+ * Delivers query plan notifications to the listeners on a dedicated daemon
+ * thread so a slow listener does not stall capture or delay the plan upload.
+ * <p>
+ * Notifications are queued up to {@code capacity}, when full the overflow
+ * policy drops the newest or oldest notification (counted as dropped) or runs
+ * the listeners on the calling thread.
+ */
+final class ListenerDispatcher implements Runnable {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final BlockingQueue<Runnable> queue;
+  private final ListenerOverflow overflow;
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  ListenerDispatcher(String name, int capacity, ListenerOverflow overflow) {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.overflow = overflow;
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Stop the thread once the listener being notified returns (it is not
+   * interrupted), notifications still queued are not delivered.
+   */
+  void stop() {
+    stopped = true;
+    // wake the thread when waiting, when full it is busy and checks stopped next
+    queue.offer(() -> { });
+  }
+
+  /**
+   * Return a listener that queues the notification for the given listener.
+   */
+  <T> Consumer<T> async(Consumer<T> listener) {
+    return value -> dispatch(() -> listener.accept(value));
+  }
+
+  void dispatch(Runnable task) {
+    if (queue.offer(task)) {
+      return;
+    }
+    switch (overflow) {
+      case CALLER_RUNS:
+        task.run();
+        return;
+      case DROP_OLDEST:
+        while (!queue.offer(task)) {
+          if (queue.poll() != null) {
+            dropped.incrementAndGet();
+          }
+        }
+        break;
+      default:
+        dropped.incrementAndGet();
+    }
+    log.log(DEBUG, "Query plan listener queue full, {0} dropped", dropped.get());
+  }
+
+  /**
+   * Return the number of notifications waiting to be delivered.
+   */
+  int size() {
+    return queue.size();
+  }
+
+  /**
+   * Return the number of notifications dropped because the queue was full.
+   */
+  long dropped() {
+    return dropped.get();
+  }
+
+  @Override
+  public void run() {
+    while (!stopped) {
+      try {
+        Runnable task = queue.take();
+        if (!stopped) {
+          task.run();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Throwable e) {
+        log.log(WARNING, "Error in query plan listener", e);
+      }
+    }
+  }
+
+  /**
+   * Return a listener notifying each of the listeners (null when there are none).
+   * An exception thrown by one listener does not stop the others being notified.
+   */
+  static <T> Consumer<T> all(List<Consumer<T>> listeners) {
+    if (listeners.isEmpty()) {
+      return null;
+    }
+    if (listeners.size() == 1) {
+      return listeners.get(0);
+    }
+    return value -> {
+      for (Consumer<T> listener : listeners) {
+        try {
+          listener.accept(value);
+        } catch (Exception e) {
+          log.log(WARNING, "Error in query plan listener", e);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,23 @@
+package io.ebean.insight;
+
+/**
+ * What to do with a query plan notification when the listener queue is full.
+ */
+public enum ListenerOverflow {
+
+  /**
+   * Drop the new notification.
+   */
+  DROP_NEWEST,
+
+  /**
+   * Drop the oldest queued notification to make room for the new one.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Notify the listeners on the capture thread (slowing capture down to the
+   * pace of the listeners).
+   */
+  CALLER_RUNS
+}
@@ -0,0 +1,135 @@
+package io.ebean.insight;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import static java.lang.System.Logger.Level.DEBUG;
+
+/**
+ * Decides when to defer a report cycle because the JVM is overloaded.
+ * <p>
+ * The signals are the process CPU load, the fraction of wall time spent in GC
+ * since the previous check and the time the previous report cycle took. A
+ * deferred cycle is folded into the next one. At most {@code maxDeferred}
+ * cycles in a row are deferred so metrics are still reported under sustained
+ * load.
+ */
+final class LoadMonitor {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final double maxCpuLoad;
+  private final double maxGcLoad;
+  private final long budgetMicros;
+  private final int maxDeferred;
+  private final DoubleSupplier cpuLoad;
+  private final LongSupplier gcMillis;
+  private final LongSupplier clock;
+
+  private long lastGcMillis;
+  private long lastCheckMillis;
+  private long lastCycleMicros;
+  private int deferred;
+  private long deferredTotal;
+
+  LoadMonitor(int maxCpuPercent, int maxGcPercent, long budgetMillis, int maxDeferred,
+              DoubleSupplier cpuLoad, LongSupplier gcMillis, LongSupplier clock) {
+    this.maxCpuLoad = maxCpuPercent / 100D;
+    this.maxGcLoad = maxGcPercent / 100D;
+    this.budgetMicros = budgetMillis * 1000;
+    this.maxDeferred = maxDeferred;
+    this.cpuLoad = cpuLoad;
+    this.gcMillis = gcMillis;
+    this.clock = clock;
+    this.lastGcMillis = gcMillis.getAsLong();
+    this.lastCheckMillis = clock.getAsLong();
+  }
+
+  /**
+   * Create using the platform MXBeans for the CPU load and GC time.
+   */
+  static LoadMonitor of(int maxCpuPercent, int maxGcPercent, long budgetMillis, int maxDeferred) {
+    return new LoadMonitor(maxCpuPercent, maxGcPercent, budgetMillis, maxDeferred,
+      LoadMonitor::processCpuLoad, LoadMonitor::gcMillis, System::currentTimeMillis);
+  }
+
+  /**
+   * Return true if this cycle should be deferred.
+   */
+  synchronized boolean defer() {
+    final long now = clock.getAsLong();
+    final long gc = gcMillis.getAsLong();
+    final long elapsed = now - lastCheckMillis;
+    final double gcLoad = elapsed <= 0 ? 0 : (double) (gc - lastGcMillis) / elapsed;
+    lastCheckMillis = now;
+    lastGcMillis = gc;
+
+    final long cycleMicros = lastCycleMicros;
+    // a slow cycle only defers the one that follows it
+    lastCycleMicros = 0;
+    if (deferred >= maxDeferred) {
+      deferred = 0;
+      return false;
+    }
+    final double cpu = maxCpuLoad > 0 ? cpuLoad.getAsDouble() : 0;
+    if ((maxCpuLoad > 0 && cpu >= maxCpuLoad)
+      || (maxGcLoad > 0 && gcLoad >= maxGcLoad)
+      || (budgetMicros > 0 && cycleMicros > budgetMicros)) {
+      deferred++;
+      deferredTotal++;
+      if (log.isLoggable(DEBUG)) {
+        log.log(DEBUG, "defer metrics cycle cpu:{0} gc:{1} cycleMicros:{2}", cpu, gcLoad, cycleMicros);
+      }
+      return true;
+    }
+    deferred = 0;
+    return false;
+  }
+
+  /**
+   * Record the time taken to collect and serialize a report cycle.
+   */
+  synchronized void cycleTime(long micros) {
+    lastCycleMicros = micros;
+  }
+
+  /**
+   * Return the total number of deferred cycles.
+   */
+  synchronized long deferredCount() {
+    return deferredTotal;
+  }
+
+  /**
+   * Return the recent CPU load of the JVM process (0 to 1), or -1 when not available.
+   */
+  static double processCpuLoad() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      Object load = server.getAttribute(new ObjectName("java.lang:type=OperatingSystem"), "ProcessCpuLoad");
+      return load instanceof Number ? ((Number) load).doubleValue() : -1;
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Return the accumulated GC time of all the collectors.
+   */
+  static long gcMillis() {
+    long total = 0;
+    List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    for (GarbageCollectorMXBean collector : collectors) {
+      long time = collector.getCollectionTime();
+      if (time > 0) {
+        total += time;
+      }
+    }
+    return total;
+  }
+}
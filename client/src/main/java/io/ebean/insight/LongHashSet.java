@@ -0,0 +1,81 @@
+package io.ebean.insight;
+
+/**
+ * Open addressing hash set of primitive long values. Not thread safe.
+ */
+final class LongHashSet {
+
+  private static final long EMPTY = 0L;
+
+  private long[] keys;
+  private int mask;
+  private int size;
+  private boolean hasZero;
+
+  LongHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2) - 1) << 1;
+    this.keys = new long[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Return the number of values in the set.
+   */
+  int size() {
+    return size + (hasZero ? 1 : 0);
+  }
+
+  /**
+   * Return true if the set contains the value.
+   */
+  boolean contains(long value) {
+    if (value == EMPTY) {
+      return hasZero;
+    }
+    return keys[slot(value)] == value;
+  }
+
+  /**
+   * Add the value returning true if it was not already in the set.
+   */
+  boolean add(long value) {
+    if (value == EMPTY) {
+      boolean added = !hasZero;
+      hasZero = true;
+      return added;
+    }
+    int slot = slot(value);
+    if (keys[slot] == value) {
+      return false;
+    }
+    keys[slot] = value;
+    if (++size * 2 > keys.length) {
+      resize();
+    }
+    return true;
+  }
+
+  private int slot(long value) {
+    int slot = mix(value) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != value) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    keys = new long[oldKeys.length * 2];
+    mask = keys.length - 1;
+    for (long key : oldKeys) {
+      if (key != EMPTY) {
+        keys[slot(key)] = key;
+      }
+    }
+  }
+
+  private static int mix(long value) {
+    long h = value * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,117 @@
+package io.ebean.insight;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map of primitive long keys to long values.
+ * <p>
+ * Used to hold per series state across reporting cycles without boxing or a
+ * node allocation per entry. Not thread safe.
+ */
+final class LongLongMap {
+
+  private static final long EMPTY = 0L;
+
+  private long[] keys;
+  private long[] values;
+  private int mask;
+  private int size;
+  private boolean hasZeroKey;
+  private long zeroValue;
+
+  LongLongMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2) - 1) << 1;
+    this.keys = new long[capacity];
+    this.values = new long[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Return the number of entries.
+   */
+  int size() {
+    return size + (hasZeroKey ? 1 : 0);
+  }
+
+  /**
+   * Return true if the map contains the key.
+   */
+  boolean containsKey(long key) {
+    if (key == EMPTY) {
+      return hasZeroKey;
+    }
+    return keys[slot(key)] == key;
+  }
+
+  /**
+   * Return the value for the key or the given missing value when not present.
+   */
+  long get(long key, long missing) {
+    if (key == EMPTY) {
+      return hasZeroKey ? zeroValue : missing;
+    }
+    int slot = slot(key);
+    return keys[slot] == key ? values[slot] : missing;
+  }
+
+  /**
+   * Put the value for the key.
+   */
+  void put(long key, long value) {
+    if (key == EMPTY) {
+      hasZeroKey = true;
+      zeroValue = value;
+      return;
+    }
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      values[slot] = value;
+      return;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 2 > keys.length) {
+      resize();
+    }
+  }
+
+  /**
+   * Remove all the entries.
+   */
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+    hasZeroKey = false;
+  }
+
+  /**
+   * Return the slot holding the key or the empty slot it would be put into.
+   */
+  private int slot(long key) {
+    int slot = mix(key) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new long[oldValues.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
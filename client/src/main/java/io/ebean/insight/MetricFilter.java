@@ -0,0 +1,150 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client side include / exclude of metrics using glob patterns.
+ * <p>
+ * A pattern is matched against the metric name and each of its tags. Avaje
+ * tags are the {@code key:value} strings and database metrics have a
+ * {@code db:<database name>} tag, so {@code db:tenant*} matches all the
+ * metrics of the tenant databases. A tag is only matched as the whole
+ * {@code key:value} string, never the value alone. A metric is reported when
+ * it matches an include pattern (or there are no include patterns) and
+ * matches no exclude pattern.
+ */
+final class MetricFilter {
+
+  private static final String DB_TAG = "db:";
+
+  private final GlobMatcher include;
+  private final GlobMatcher exclude;
+
+  private MetricFilter(GlobMatcher include, GlobMatcher exclude) {
+    this.include = include;
+    this.exclude = exclude;
+  }
+
+  /**
+   * Compile the patterns returning null when there is nothing to filter.
+   */
+  static MetricFilter of(List<String> include, List<String> exclude) {
+    GlobMatcher includeMatcher = GlobMatcher.of(include);
+    GlobMatcher excludeMatcher = GlobMatcher.of(exclude);
+    if (includeMatcher == null && excludeMatcher == null) {
+      return null;
+    }
+    return new MetricFilter(includeMatcher, excludeMatcher);
+  }
+
+  /**
+   * Return true if the Avaje metric should be reported.
+   */
+  boolean include(Metric.Statistics metric) {
+    Metric.ID id = metric.id();
+    String[] tags = id.tags().array();
+    return (include == null || matches(include, id.name(), tags))
+      && (exclude == null || !matches(exclude, id.name(), tags));
+  }
+
+  /**
+   * Return true if the database metric should be reported.
+   */
+  boolean include(String db, MetaMetric metric) {
+    return (include == null || matches(include, db, metric.name()))
+      && (exclude == null || !matches(exclude, db, metric.name()));
+  }
+
+  private static boolean matches(GlobMatcher matcher, String name, String[] tags) {
+    if (matcher.matches(name)) {
+      return true;
+    }
+    for (String tag : tags) {
+      if (matcher.matches(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(GlobMatcher matcher, String db, String name) {
+    return matcher.matches(name) || (db != null && matcher.matches(DB_TAG, db));
+  }
+
+  /**
+   * Return the Avaje metrics that should be reported.
+   */
+  List<Metric.Statistics> filterMetrics(List<Metric.Statistics> metrics) {
+    if (metrics == null || metrics.isEmpty()) {
+      return metrics;
+    }
+    List<Metric.Statistics> result = new ArrayList<>(metrics.size());
+    for (Metric.Statistics metric : metrics) {
+      if (include(metric)) {
+        result.add(metric);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the database snapshots with the excluded metrics removed.
+   */
+  List<ServerMetrics> filterDatabases(List<ServerMetrics> databaseMetrics) {
+    if (databaseMetrics == null || databaseMetrics.isEmpty()) {
+      return databaseMetrics;
+    }
+    List<ServerMetrics> result = new ArrayList<>(databaseMetrics.size());
+    for (ServerMetrics metrics : databaseMetrics) {
+      result.add(filter(metrics));
+    }
+    return result;
+  }
+
+  /**
+   * Return the snapshot with the excluded metrics removed. The same instance
+   * is returned when every metric is included.
+   */
+  ServerMetrics filter(ServerMetrics metrics) {
+    String db = metrics.name();
+    if (includesAll(db, metrics.timedMetrics()) && includesAll(db, metrics.queryMetrics()) && includesAll(db, metrics.countMetrics())) {
+      return metrics;
+    }
+    var filtered = new BasicMetricVisitor(db, MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      if (include(db, metric)) {
+        filtered.visitTimed(metric);
+      }
+    }
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      if (include(db, metric)) {
+        filtered.visitQuery(metric);
+      }
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      if (include(db, metric)) {
+        filtered.visitCount(metric);
+      }
+    }
+    return filtered;
+  }
+
+  private boolean includesAll(String db, List<? extends MetaMetric> metrics) {
+    for (MetaMetric metric : metrics) {
+      if (!include(db, metric)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,297 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Counter;
+import io.avaje.metrics.GaugeDouble;
+import io.avaje.metrics.GaugeLong;
+import io.avaje.metrics.Meter;
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Timer;
+import io.avaje.metrics.stats.CounterStats;
+import io.avaje.metrics.stats.GaugeDoubleStats;
+import io.avaje.metrics.stats.GaugeLongStats;
+import io.avaje.metrics.stats.MeterStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the metrics collected over several periods into one upload.
+ * <p>
+ * Timers, meters and counters sum their counts and totals and take the max of
+ * the max values, gauges keep the last value. The per series values are held
+ * in primitive arrays indexed via a {@link SeriesKey} table, which are reused
+ * from one upload window to the next.
+ */
+final class MetricRollup {
+
+  private static final byte SUMMARY = 1;
+  private static final byte COUNTER = 2;
+  private static final byte GAUGE_LONG = 3;
+  private static final byte GAUGE_DOUBLE = 4;
+  private static final byte DB_TIMED = 5;
+  private static final byte DB_QUERY = 6;
+  private static final byte DB_COUNT = 7;
+  /** Approximate payload size of a series excluding the sql of queries. */
+  private static final int SERIES_BYTES = 80;
+
+  private final long windowMillis;
+  private final LongLongMap index;
+  private final Merge merge = new Merge();
+  private long windowStart;
+  private int size;
+  private long bytes;
+  private byte[] kind;
+  private long[] count;
+  private long[] total;
+  private long[] max;
+  /** The last metric of each series providing the identity (id, name, sql etc). */
+  private Object[] source;
+  private String[] db;
+
+  /**
+   * Create with the number of periods to merge into each upload.
+   */
+  MetricRollup(int periods, long periodSecs, int initialCapacity) {
+    // upload at the collection that lands closest to the end of the window
+    this.windowMillis = (periods * periodSecs * 1000) - (periodSecs * 500);
+    this.windowStart = System.currentTimeMillis();
+    this.index = new LongLongMap(initialCapacity);
+    this.kind = new byte[initialCapacity];
+    this.count = new long[initialCapacity];
+    this.total = new long[initialCapacity];
+    this.max = new long[initialCapacity];
+    this.source = new Object[initialCapacity];
+    this.db = new String[initialCapacity];
+  }
+
+  /**
+   * Add the metrics collected for one period.
+   *
+   * @return the merged metrics when the upload window is complete, otherwise null
+   */
+  synchronized Window add(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics, long now) {
+    merge(databaseMetrics, avajeMetrics);
+    if (now - windowStart < windowMillis) {
+      return null;
+    }
+    return drain(now);
+  }
+
+  /**
+   * Merge the metrics into the current window without checking if it is complete.
+   */
+  synchronized void merge(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics) {
+    if (databaseMetrics != null) {
+      for (ServerMetrics metrics : databaseMetrics) {
+        addDatabase(metrics);
+      }
+    }
+    if (avajeMetrics != null) {
+      for (Metric.Statistics metric : avajeMetrics) {
+        metric.visit(merge.with(metric));
+      }
+    }
+  }
+
+  /**
+   * Return true if no metrics have been merged into the current window.
+   */
+  synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Return the approximate size of the payload for the merged metrics.
+   */
+  synchronized long estimatedBytes() {
+    return bytes;
+  }
+
+  /**
+   * Return the merged metrics, starting the next window.
+   */
+  synchronized Window drain(long now) {
+    windowStart = now;
+    return drain();
+  }
+
+  private void addDatabase(ServerMetrics metrics) {
+    String name = metrics.name();
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      mergeSummary(slot(DB_TIMED, name, metric), metric.count(), metric.total(), metric.max());
+    }
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      mergeSummary(slot(DB_QUERY, name, metric), metric.count(), metric.total(), metric.max());
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      int slot = slot(DB_COUNT, name, metric);
+      count[slot] += metric.count();
+    }
+  }
+
+  private int slot(byte type, String dbName, MetaMetric metric) {
+    int slot = slot(SeriesKey.of(dbName, metric), type, metric);
+    db[slot] = dbName;
+    return slot;
+  }
+
+  private int slot(long key, byte type, Object metric) {
+    int slot = (int) index.get(key, -1);
+    if (slot == -1) {
+      slot = size++;
+      ensureCapacity(size);
+      index.put(key, slot);
+      kind[slot] = type;
+      bytes += type == DB_QUERY ? SERIES_BYTES + sqlLength((MetaQueryMetric) metric) : SERIES_BYTES;
+      count[slot] = 0;
+      total[slot] = 0;
+      max[slot] = 0;
+    }
+    source[slot] = metric;
+    return slot;
+  }
+
+  private static int sqlLength(MetaQueryMetric metric) {
+    String sql = metric.sql();
+    return sql == null ? 0 : sql.length();
+  }
+
+  private void mergeSummary(int slot, long count, long total, long max) {
+    this.count[slot] += count;
+    this.total[slot] += total;
+    this.max[slot] = Math.max(this.max[slot], max);
+  }
+
+  private void ensureCapacity(int required) {
+    if (required > kind.length) {
+      int capacity = kind.length * 2;
+      kind = Arrays.copyOf(kind, capacity);
+      count = Arrays.copyOf(count, capacity);
+      total = Arrays.copyOf(total, capacity);
+      max = Arrays.copyOf(max, capacity);
+      source = Arrays.copyOf(source, capacity);
+      db = Arrays.copyOf(db, capacity);
+    }
+  }
+
+  /**
+   * Build the merged metrics and reset for the next window.
+   */
+  private Window drain() {
+    List<Metric.Statistics> metrics = new ArrayList<>();
+    Map<String, BasicMetricVisitor> databases = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      switch (kind[i]) {
+        case SUMMARY:
+          metrics.add(new MeterStats(((Metric.Statistics) source[i]).id(), count[i], total[i], max[i]));
+          break;
+        case COUNTER:
+          metrics.add(new CounterStats(((Metric.Statistics) source[i]).id(), count[i]));
+          break;
+        case GAUGE_LONG:
+          metrics.add(new GaugeLongStats(((Metric.Statistics) source[i]).id(), count[i]));
+          break;
+        case GAUGE_DOUBLE:
+          metrics.add(new GaugeDoubleStats(((Metric.Statistics) source[i]).id(), Double.longBitsToDouble(count[i])));
+          break;
+        case DB_TIMED:
+          var timed = (MetaTimedMetric) source[i];
+          database(databases, db[i]).visitTimed(new DbTimedMetric(timed.name(), timed.location(), count[i], total[i], max[i]));
+          break;
+        case DB_QUERY:
+          database(databases, db[i]).visitQuery(new DbQueryMetric((MetaQueryMetric) source[i], count[i], total[i], max[i]));
+          break;
+        default:
+          database(databases, db[i]).visitCount(new DbCountMetric(((MetaCountMetric) source[i]).name(), count[i]));
+      }
+    }
+    Arrays.fill(source, 0, size, null);
+    Arrays.fill(db, 0, size, null);
+    index.clear();
+    size = 0;
+    bytes = 0;
+    return new Window(new ArrayList<>(databases.values()), metrics);
+  }
+
+  private static BasicMetricVisitor database(Map<String, BasicMetricVisitor> databases, String name) {
+    return databases.computeIfAbsent(name, n -> new BasicMetricVisitor(n, MetricNamingMatch.INSTANCE, false, true, true, true));
+  }
+
+  /**
+   * The merged metrics of an upload window.
+   */
+  static final class Window {
+
+    private final List<ServerMetrics> databaseMetrics;
+    private final List<Metric.Statistics> avajeMetrics;
+
+    Window(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics) {
+      this.databaseMetrics = databaseMetrics;
+      this.avajeMetrics = avajeMetrics;
+    }
+
+    List<ServerMetrics> databaseMetrics() {
+      return databaseMetrics;
+    }
+
+    List<Metric.Statistics> avajeMetrics() {
+      return avajeMetrics;
+    }
+  }
+
+  /**
+   * Reusable visitor merging an Avaje metric into its series (guarded by the outer lock).
+   * Gauges hold their last value in the count array.
+   */
+  private final class Merge implements Metric.Visitor {
+
+    private Metric.Statistics metric;
+
+    Merge with(Metric.Statistics metric) {
+      this.metric = metric;
+      return this;
+    }
+
+    @Override
+    public void visit(Timer.Stats value) {
+      summary(value);
+    }
+
+    @Override
+    public void visit(Meter.Stats value) {
+      summary(value);
+    }
+
+    private void summary(Meter.Stats value) {
+      mergeSummary(slot(SeriesKey.of(metric.id()), SUMMARY, metric), value.count(), value.total(), value.max());
+    }
+
+    @Override
+    public void visit(Counter.Stats value) {
+      int slot = slot(SeriesKey.of(metric.id()), COUNTER, metric);
+      count[slot] += value.count();
+    }
+
+    @Override
+    public void visit(GaugeDouble.Stats value) {
+      int slot = slot(SeriesKey.of(metric.id()), GAUGE_DOUBLE, metric);
+      count[slot] = Double.doubleToLongBits(value.value());
+    }
+
+    @Override
+    public void visit(GaugeLong.Stats value) {
+      int slot = slot(SeriesKey.of(metric.id()), GAUGE_LONG, metric);
+      count[slot] = value.value();
+    }
+  }
+}
@@ -31,7 +31,7 @@ final class MetricStatisticsJson {
     }
   }
 
-  private static void writeMetric(StringBuilder buffer, Metric.Statistics metric, boolean v2) {
+  static void writeMetric(StringBuilder buffer, Metric.Statistics metric, boolean v2) {
     buffer.append('{');
     field(buffer, "name", metric.name());
     metric.visit(new Metric.Visitor() {
@@ -0,0 +1,145 @@
+package io.ebean.insight;
+
+import io.ebean.Database;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * Collects (and serializes) the metrics of many databases in parallel.
+ * <p>
+ * Each database is collected by a task on a small pool of daemon threads and
+ * the results are returned in the order of the databases. Each database has
+ * its own budget of {@code budgetMillis} measured from when its task starts
+ * running, so a slow database does not use up the time of those queued behind
+ * it. A database that takes longer is left out of this cycle and is not
+ * collected again while its task is still running. The late result is dropped
+ * rather than reported in a later window it does not belong to, so the
+ * metrics of the slow database up to that collect are lost.
+ */
+final class ParallelCollector<T> {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final ExecutorService executor;
+  private final Function<Database, T> task;
+  private final long budgetMillis;
+  private final Map<Database, Pending<T>> pending = new IdentityHashMap<>();
+
+  ParallelCollector(int threads, long budgetMillis, Function<Database, T> task) {
+    this.budgetMillis = budgetMillis;
+    this.task = task;
+    this.executor = Executors.newFixedThreadPool(threads, new DaemonFactory());
+  }
+
+  /**
+   * Collect the databases returning the results completed within the budget
+   * of each database.
+   */
+  synchronized List<T> collect(List<Database> databases) {
+    for (Database database : databases) {
+      Pending<T> late = pending.get(database);
+      if (late != null && late.future.isDone()) {
+        pending.remove(database);
+        log.log(DEBUG, "Dropped late metrics collected for database {0}", database.name());
+        late = null;
+      }
+      if (late == null) {
+        pending.put(database, new Pending<>(executor, () -> task.apply(database)));
+      }
+    }
+    final long budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    List<T> results = new ArrayList<>(databases.size());
+    for (Database database : databases) {
+      Pending<T> collecting = pending.get(database);
+      try {
+        T result = collecting.get(budgetNanos);
+        pending.remove(database);
+        if (result != null) {
+          results.add(result);
+        }
+      } catch (TimeoutException e) {
+        log.log(WARNING, "Collecting metrics for database {0} exceeded {1} millis, not reported in this cycle", database.name(), budgetMillis);
+      } catch (ExecutionException e) {
+        pending.remove(database);
+        log.log(WARNING, "Error collecting metrics for database " + database.name(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Stop the threads, the running tasks are interrupted.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * The collect task of a database with when it started running.
+   */
+  private static final class Pending<T> {
+
+    private final Future<T> future;
+    /** The nano time the task started running, 0 while queued. */
+    private volatile long started;
+
+    Pending(ExecutorService executor, Callable<T> callable) {
+      this.future = executor.submit(() -> {
+        started = System.nanoTime();
+        return callable.call();
+      });
+    }
+
+    /**
+     * Wait for the result up to the budget from when the task started. A task
+     * still queued after waiting the budget is timed out.
+     */
+    T get(long budgetNanos) throws InterruptedException, ExecutionException, TimeoutException {
+      long begin = started;
+      long wait = begin == 0 ? budgetNanos : begin + budgetNanos - System.nanoTime();
+      while (true) {
+        try {
+          return future.get(Math.max(0, wait), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          if (begin != 0 || started == 0) {
+            throw e;
+          }
+          // started while waiting, wait the rest of its own budget
+          begin = started;
+          wait = begin + budgetNanos - System.nanoTime();
+        }
+      }
+    }
+  }
+
+  private static final class DaemonFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "ebeanInsightCollect-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
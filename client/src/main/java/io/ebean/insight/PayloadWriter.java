@@ -0,0 +1,226 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Writes the metrics payload in parts of at most {@code maxChars} characters.
+ * <p>
+ * Each part is a self-contained envelope with the same header (eventTime,
+ * startEventTime etc) and is passed to the sink as soon as it is complete, so
+ * the full document is never held in memory. When the payload is split each
+ * part has a {@code "part"} index and the last part has {@code "lastPart":true}.
+ * A payload that fits is written as a single envelope without these.
+ * <p>
+ * The {@code dbs} entries are written before the {@code metrics} entries. A
+ * database entry that is too large on its own is split into several entries
+ * of the same database.
+ */
+final class PayloadWriter {
+
+  private static final int NONE = 0;
+  private static final int DBS = 1;
+  private static final int METRICS = 2;
+  /** Room reserved for closing the part: {@code ] ,"part":n ,"lastPart":true}}. */
+  private static final int TRAILER = 40;
+
+  private final int maxChars;
+  private final boolean v2;
+  private final Consumer<JsonSimple> header;
+  private final Consumer<String> sink;
+
+  private JsonSimple json;
+  private int part;
+  private int entries;
+  private int section;
+  private int sectionEntries;
+  private int markSection;
+  private int markSectionEntries;
+
+  /**
+   * Create the writer.
+   *
+   * @param maxChars the maximum size of each part, 0 for no limit
+   * @param v2       true to write the v2 metrics format
+   * @param header   writes the envelope header keys of each part
+   * @param sink     receives each completed part
+   */
+  PayloadWriter(int maxChars, boolean v2, Consumer<JsonSimple> header, Consumer<String> sink) {
+    this.maxChars = maxChars;
+    this.v2 = v2;
+    this.header = header;
+    this.sink = sink;
+  }
+
+  /**
+   * Write all the metrics and finish the last part.
+   */
+  void write(List<ServerMetrics> databaseMetrics, List<Metric.Statistics> avajeMetrics) {
+    if (databaseMetrics != null) {
+      for (ServerMetrics metrics : databaseMetrics) {
+        database(metrics);
+      }
+    }
+    if (avajeMetrics != null) {
+      for (Metric.Statistics metric : avajeMetrics) {
+        metric(metric);
+      }
+    }
+    finish();
+  }
+
+  void database(ServerMetrics metrics) {
+    int mark = mark();
+    entry(DBS, "dbs");
+    writeDatabase(metrics);
+    if (!overflow()) {
+      entries++;
+      return;
+    }
+    boolean fresh = entries == 0;
+    reset(mark);
+    if (!fresh) {
+      flush(false);
+      database(metrics);
+    } else if (size(metrics) > 1) {
+      database(half(metrics, true));
+      database(half(metrics, false));
+    } else {
+      // a single metric larger than the limit, send it anyway
+      entry(DBS, "dbs");
+      writeDatabase(metrics);
+      entries++;
+    }
+  }
+
+  private void writeDatabase(ServerMetrics metrics) {
+    if (v2) {
+      metrics.asJson().writeV2(json.buffer());
+    } else {
+      metrics.asJson().write(json.buffer());
+    }
+  }
+
+  void metric(Metric.Statistics metric) {
+    int mark = mark();
+    entry(METRICS, "metrics");
+    MetricStatisticsJson.writeMetric(json.buffer(), metric, v2);
+    if (overflow() && entries > 0) {
+      reset(mark);
+      flush(false);
+      metric(metric);
+      return;
+    }
+    entries++;
+  }
+
+  /**
+   * Finish the last part (an envelope with no metrics when nothing was written).
+   */
+  void finish() {
+    begin();
+    flush(true);
+  }
+
+  private void begin() {
+    if (json == null) {
+      json = new JsonSimple();
+      json.append("{");
+      header.accept(json);
+      entries = 0;
+      section = NONE;
+      sectionEntries = 0;
+    }
+  }
+
+  private int mark() {
+    begin();
+    markSection = section;
+    markSectionEntries = sectionEntries;
+    return json.buffer().length();
+  }
+
+  private void reset(int mark) {
+    json.buffer().setLength(mark);
+    section = markSection;
+    sectionEntries = markSectionEntries;
+  }
+
+  private boolean overflow() {
+    return maxChars > 0 && json.buffer().length() + TRAILER > maxChars;
+  }
+
+  /**
+   * Open the section if needed and add the entry separator.
+   */
+  private void entry(int entrySection, String key) {
+    if (section == entrySection) {
+      if (sectionEntries > 0) {
+        json.append(',');
+      }
+    } else {
+      if (section != NONE) {
+        json.append(']');
+      }
+      json.key(key);
+      json.append('[');
+      section = entrySection;
+      sectionEntries = 0;
+    }
+    sectionEntries++;
+  }
+
+  private void flush(boolean last) {
+    if (section != NONE) {
+      json.append(']');
+    }
+    if (!last || part > 0) {
+      json.keyVal("part", part);
+    }
+    if (last && part > 0) {
+      json.keyVal("lastPart", true);
+    }
+    json.append("}");
+    String content = json.asJson();
+    json = null;
+    part++;
+    sink.accept(content);
+  }
+
+  private static int size(ServerMetrics metrics) {
+    return metrics.timedMetrics().size() + metrics.queryMetrics().size() + metrics.countMetrics().size();
+  }
+
+  /**
+   * Return the first or second half of the metrics of the database.
+   */
+  private static ServerMetrics half(ServerMetrics metrics, boolean first) {
+    int split = size(metrics) / 2;
+    var half = new BasicMetricVisitor(metrics.name(), MetricNamingMatch.INSTANCE, false, true, true, true);
+    int i = 0;
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      if ((i++ < split) == first) {
+        half.visitTimed(metric);
+      }
+    }
+    for (MetaQueryMetric metric : metrics.queryMetrics()) {
+      if ((i++ < split) == first) {
+        half.visitQuery(metric);
+      }
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      if ((i++ < split) == first) {
+        half.visitCount(metric);
+      }
+    }
+    return half;
+  }
+}
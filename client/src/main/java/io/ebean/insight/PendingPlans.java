@@ -0,0 +1,157 @@
+package io.ebean.insight;
+
+import io.ebean.meta.QueryPlanInit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.lang.System.Logger.Level.DEBUG;
+
+/**
+ * Bounded registry of the pending query plan initialisations and captures.
+ * <p>
+ * Initialisations are held in arrival order and captures in a deadline
+ * ordered index, so finding the earliest pending capture and expiring stale
+ * entries does not scan every entry. Entries older than the TTL are evicted
+ * (a query that never executes again is never initialised or captured) and
+ * when full the oldest entry is evicted. Evictions are counted.
+ */
+final class PendingPlans {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final int maxEntries;
+  private final long ttlMillis;
+  /** Pending initialisations in the order they were armed. */
+  private final LinkedHashMap<QueryPlanInit, Long> inits = new LinkedHashMap<>();
+  /** When each pending capture was initialised. */
+  private final Map<String, Long> captures = new HashMap<>();
+  /** The pending captures ordered by when initialised. */
+  private final TreeSet<Capture> deadlines = new TreeSet<>();
+  private long initEvicted;
+  private long captureEvicted;
+
+  PendingPlans(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+  }
+
+  synchronized void addInit(QueryPlanInit init, long now) {
+    inits.put(init, now);
+    if (inits.size() > maxEntries) {
+      Iterator<QueryPlanInit> iterator = inits.keySet().iterator();
+      iterator.next();
+      iterator.remove();
+      initEvicted++;
+    }
+  }
+
+  synchronized void removeInit(QueryPlanInit init) {
+    inits.remove(init);
+  }
+
+  /**
+   * Return a copy of the pending initialisations.
+   */
+  synchronized List<QueryPlanInit> inits() {
+    return new ArrayList<>(inits.keySet());
+  }
+
+  synchronized boolean hasInit() {
+    return !inits.isEmpty();
+  }
+
+  synchronized void addCapture(String hash, long now) {
+    Long previous = captures.put(hash, now);
+    if (previous != null) {
+      deadlines.remove(new Capture(previous, hash));
+    }
+    deadlines.add(new Capture(now, hash));
+    if (captures.size() > maxEntries) {
+      Capture oldest = deadlines.pollFirst();
+      captures.remove(oldest.hash);
+      captureEvicted++;
+    }
+  }
+
+  /**
+   * Remove the pending capture returning when it was initialised (or null).
+   */
+  synchronized Long removeCapture(String hash) {
+    Long when = captures.remove(hash);
+    if (when != null) {
+      deadlines.remove(new Capture(when, hash));
+    }
+    return when;
+  }
+
+  /**
+   * Return when the earliest pending capture was initialised or -1 when none.
+   */
+  synchronized long firstCapture() {
+    return deadlines.isEmpty() ? -1 : deadlines.first().when;
+  }
+
+  synchronized int captureSize() {
+    return captures.size();
+  }
+
+  synchronized Set<String> captureHashes() {
+    return Set.copyOf(captures.keySet());
+  }
+
+  /**
+   * Evict the initialisations and captures older than the TTL.
+   */
+  synchronized void expire(long now) {
+    final long expiry = now - ttlMillis;
+    Iterator<Long> initIterator = inits.values().iterator();
+    while (initIterator.hasNext() && initIterator.next() < expiry) {
+      initIterator.remove();
+      initEvicted++;
+    }
+    while (!deadlines.isEmpty() && deadlines.first().when < expiry) {
+      Capture capture = deadlines.pollFirst();
+      captures.remove(capture.hash);
+      captureEvicted++;
+      log.log(DEBUG, "Expired pending query plan capture for {0}", capture.hash);
+    }
+  }
+
+  /**
+   * Return the number of initialisations evicted (expired or over the max).
+   */
+  synchronized long initEvicted() {
+    return initEvicted;
+  }
+
+  /**
+   * Return the number of captures evicted (expired or over the max).
+   */
+  synchronized long captureEvicted() {
+    return captureEvicted;
+  }
+
+  private static final class Capture implements Comparable<Capture> {
+
+    private final long when;
+    private final String hash;
+
+    Capture(long when, String hash) {
+      this.when = when;
+      this.hash = hash;
+    }
+
+    @Override
+    public int compareTo(Capture other) {
+      int compare = Long.compare(when, other.when);
+      return compare != 0 ? compare : hash.compareTo(other.hash);
+    }
+  }
+}
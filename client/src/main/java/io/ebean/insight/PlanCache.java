@@ -0,0 +1,171 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of the last captured plan of each query (keyed by database and
+ * query hash by {@link PlanTracker}), holding a 64 bit
+ * fingerprint of the normalized plan text rather than the text itself.
+ * <p>
+ * The normalization collapses whitespace and replaces each number with a
+ * single {@code 0}, so that the costs, row estimates and timings that differ
+ * from one capture to the next do not change the fingerprint while a change
+ * in the plan shape (for example index scan to sequential scan) does. Digits
+ * that are part of an identifier (such as {@code idx_order_2} or
+ * {@code t_2025}) are not a number and are kept.
+ * <p>
+ * Each entry also holds the fingerprint of the plan last uploaded in full, so
+ * a plan is only sent without its text once the same plan has been received
+ * by the server.
+ */
+final class PlanCache {
+
+  private static final long OFFSET = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private final Map<String, Entry> entries;
+
+  PlanCache(int maxSize) {
+    this.entries = new LinkedHashMap<>(Math.min(maxSize, 1024), 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Return the entry for the captured plan.
+   */
+  static Entry entry(MetaQueryPlan plan) {
+    String text = plan.plan();
+    return new Entry(fingerprint(text), plan.queryTimeMicros(), fullScan(text));
+  }
+
+  /**
+   * Record the entry of a captured plan returning the entry of the previous
+   * capture of the same query, or null when it was not captured before
+   * (or was evicted).
+   */
+  synchronized Entry put(String key, Entry entry) {
+    Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      entry.sent = previous.sent;
+      entry.sentFingerprint = previous.sentFingerprint;
+    }
+    return previous;
+  }
+
+  /**
+   * Record that the plan with the fingerprint was uploaded in full.
+   */
+  synchronized void sent(String key, long fingerprint) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entry.sent = true;
+      entry.sentFingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * Return true if the last captured plan of the query is the plan last uploaded in full.
+   */
+  synchronized boolean unchangedSinceSent(String key) {
+    Entry entry = entries.get(key);
+    return entry != null && entry.sent && entry.sentFingerprint == entry.fingerprint;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Return true if the plan text includes a full table scan (Postgres, Oracle,
+   * SQL Server, MySQL, H2 and SQLite plan formats).
+   */
+  static boolean fullScan(String plan) {
+    return plan != null
+      && (plan.contains("Seq Scan")
+      || plan.contains("TABLE ACCESS FULL")
+      || plan.contains("Table Scan")
+      || plan.contains("\"access_type\": \"ALL\"")
+      || plan.contains("tableScan")
+      || plan.startsWith("SCAN ") || plan.contains("\nSCAN "));
+  }
+
+  /**
+   * Return the fingerprint of the normalized plan text.
+   */
+  static long fingerprint(String plan) {
+    if (plan == null) {
+      return 0;
+    }
+    long h = OFFSET;
+    boolean space = false;
+    boolean number = false;
+    for (int i = 0; i < plan.length(); i++) {
+      char c = plan.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+        number = false;
+        continue;
+      }
+      boolean digit = c >= '0' && c <= '9';
+      if (digit && !number && i > 0 && identifier(plan.charAt(i - 1))) {
+        // part of an identifier, not a number
+        digit = false;
+      }
+      if (number && (digit || (c == '.' && i + 1 < plan.length() && Character.isDigit(plan.charAt(i + 1))))) {
+        // rest of the number
+        continue;
+      }
+      if (space) {
+        h = (h ^ ' ') * PRIME;
+        space = false;
+      }
+      number = digit;
+      h = (h ^ (digit ? '0' : c)) * PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static boolean identifier(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  /**
+   * The fingerprint, query time and full scan flag of a captured plan.
+   */
+  static final class Entry {
+
+    private final long fingerprint;
+    private final long queryTimeMicros;
+    private final boolean fullScan;
+    private boolean sent;
+    private long sentFingerprint;
+
+    Entry(long fingerprint, long queryTimeMicros, boolean fullScan) {
+      this.fingerprint = fingerprint;
+      this.queryTimeMicros = queryTimeMicros;
+      this.fullScan = fullScan;
+    }
+
+    boolean fullScan() {
+      return fullScan;
+    }
+
+    long fingerprint() {
+      return fingerprint;
+    }
+
+    long queryTimeMicros() {
+      return queryTimeMicros;
+    }
+  }
+}
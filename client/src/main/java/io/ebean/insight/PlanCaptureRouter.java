@@ -0,0 +1,102 @@
+package io.ebean.insight;
+
+import io.ebean.meta.QueryPlanInit;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.System.Logger.Level.*;
+
+/**
+ * Routes query plan directives to the capture of each registered database.
+ * <p>
+ * Directives before any {@code db:<name>} line target the first database (so
+ * existing directives are unchanged), those after it target the named
+ * database. Each capture is scheduled on its own database's executor, so the
+ * capture on one database does not depend on the lifecycle of another.
+ * <pre>
+ *   v1|qp:100:hashA|db:reporting|th:500|qp:hashB
+ * </pre>
+ */
+final class PlanCaptureRouter {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final List<QueryPlanCapture> captures;
+  private final Map<String, QueryPlanCapture> byName = new LinkedHashMap<>();
+  /** The capture progressed first inline, rotated so none is starved. */
+  private int next;
+
+  PlanCaptureRouter(List<QueryPlanCapture> captures) {
+    this.captures = captures;
+    for (QueryPlanCapture capture : captures) {
+      byName.putIfAbsent(capture.databaseName(), capture);
+    }
+  }
+
+  /**
+   * Return the captures in database registration order.
+   */
+  List<QueryPlanCapture> captures() {
+    return captures;
+  }
+
+  void start() {
+    for (QueryPlanCapture capture : captures) {
+      capture.start();
+    }
+  }
+
+  void stop() {
+    for (QueryPlanCapture capture : captures) {
+      capture.stop();
+    }
+  }
+
+  /**
+   * Process the directives arming the capture of each targeted database.
+   */
+  void process(String rawMessage) {
+    QueryPlanCapture.parseDirectives(rawMessage).forEach(this::arm);
+  }
+
+  /**
+   * Arm the plan capture on the named database (or the first database for null).
+   */
+  void arm(String database, QueryPlanInit init) {
+    QueryPlanCapture capture = database == null ? captures.get(0) : byName.get(database);
+    if (capture == null) {
+      log.log(DEBUG, "Ignoring query plan directive for unknown database {0}", database);
+      return;
+    }
+    capture.arm(init);
+  }
+
+  /**
+   * Advance the capture of each database inline (lambdaMode) until the deadline,
+   * the databases not reached are progressed first next time.
+   *
+   * @param deadlineMillis the epoch millis to complete by, Long.MAX_VALUE for no limit
+   */
+  void progress(long deadlineMillis) {
+    final int size = captures.size();
+    final int first;
+    synchronized (this) {
+      first = next;
+    }
+    int done = 0;
+    while (done < size) {
+      long remaining = deadlineMillis == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineMillis - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      captures.get((first + done) % size).progress(remaining);
+      done++;
+    }
+    synchronized (this) {
+      // those not reached go first next time, otherwise rotate so none are starved
+      next = (first + (done == size ? 1 : done)) % size;
+    }
+  }
+}
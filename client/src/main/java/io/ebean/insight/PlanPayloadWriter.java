@@ -0,0 +1,156 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the query plans payload one plan at a time straight into the
+ * (optionally gzipped) request body.
+ * <p>
+ * Only the JSON of the current plan and the compressed body are held in
+ * memory, rather than one string holding every SQL, bind and plan text. The
+ * plan, sql and bind text of each plan can be truncated to a maximum number of
+ * characters, in which case the plan has a {@code "truncated":true} entry.
+ * With {@code plansPerRequest} the plans are split into several requests each
+ * with the same header.
+ * <p>
+ * A plan that is the same as the plan of the query hash last uploaded in full
+ * (see {@link PlanCache}) is sent with only its identity, timings and
+ * {@code "samePlan":true}, without the sql, bind and plan text.
+ */
+final class PlanPayloadWriter {
+
+  private final String environment;
+  private final String appName;
+  private final int maxPlanChars;
+  private final int maxSqlChars;
+  private final int maxBindChars;
+  private final int plansPerRequest;
+
+  /**
+   * Create the writer, a max of 0 means no limit.
+   */
+  PlanPayloadWriter(String environment, String appName, int maxPlanChars, int maxSqlChars, int maxBindChars, int plansPerRequest) {
+    this.environment = environment;
+    this.appName = appName;
+    this.maxPlanChars = maxPlanChars;
+    this.maxSqlChars = maxSqlChars;
+    this.maxBindChars = maxBindChars;
+    this.plansPerRequest = plansPerRequest;
+  }
+
+  /**
+   * Return the plans as a single uncompressed JSON payload.
+   */
+  String json(List<MetaQueryPlan> plans, Set<String> unchanged) {
+    var out = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+      write(writer, null, plans, unchanged, 0, plans.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write the request bodies passing each to the sink with the plans it holds.
+   *
+   * @param database  the name of the database the plans were captured on
+   * @param unchanged the hashes of the plans that are the same as previously sent
+   */
+  void write(String database, List<MetaQueryPlan> plans, Set<String> unchanged, boolean gzip, BiConsumer<byte[], List<MetaQueryPlan>> sink) throws IOException {
+    final int size = plans.size();
+    final int step = plansPerRequest > 0 ? plansPerRequest : Math.max(size, 1);
+    for (int from = 0; from < size; from += step) {
+      var body = new ByteArrayOutputStream(gzip ? 4096 : 16384);
+      OutputStream out = gzip ? new GZIPOutputStream(body) : body;
+      try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+        write(writer, database, plans, unchanged, from, Math.min(from + step, size));
+      }
+      sink.accept(body.toByteArray(), plans.subList(from, Math.min(from + step, size)));
+    }
+  }
+
+  private void write(Writer writer, String database, List<MetaQueryPlan> plans, Set<String> unchanged, int from, int to) throws IOException {
+    JsonSimple json = new JsonSimple();
+    json.begin('{');
+    json.keyVal("environment", environment);
+    json.keyVal("appName", appName);
+    json.keyVal("database", database);
+    json.key("plans");
+    json.begin('[');
+    writer.append(json.buffer());
+    for (int i = from; i < to; i++) {
+      if (i > from) {
+        writer.append(',');
+      }
+      json.reset();
+      MetaQueryPlan plan = plans.get(i);
+      writePlan(json, plan, unchanged.contains(plan.hash()));
+      writer.append(json.buffer());
+    }
+    writer.append("]}");
+  }
+
+  private void writePlan(JsonSimple json, MetaQueryPlan metaQueryPlan, boolean samePlan) {
+    json.begin('{');
+    json.keyVal("hash", metaQueryPlan.hash());
+    json.keyVal("whenCaptured", metaQueryPlan.whenCaptured().toString());
+    // v2 identity: kind (orm/dto/sql), bean type, and a prefix-free label
+    String flatLabel = metaQueryPlan.label();
+    int dot = QueryKind.prefixEnd(flatLabel);
+    String label = dot < 0 ? flatLabel : flatLabel.substring(dot + 1);
+    json.keyVal("kind", dot < 0 ? null : flatLabel.substring(0, dot));
+    Class<?> beanType = metaQueryPlan.beanType();
+    json.keyVal("type", beanType == null ? null : beanType.getSimpleName());
+    json.keyVal("label", label);
+    json.keyVal("queryTimeMicros", metaQueryPlan.queryTimeMicros());
+    json.keyVal("captureMicros", metaQueryPlan.captureMicros());
+    json.keyVal("captureCount", metaQueryPlan.captureCount());
+    if (samePlan) {
+      // the server already has the sql and plan for this hash
+      json.keyVal("samePlan", true);
+      json.end('}');
+      return;
+    }
+    String bind = metaQueryPlan.bind();
+    String plan = metaQueryPlan.plan();
+    String sql = metaQueryPlan.sql();
+    json.keyValEscape("bind", truncate(bind, maxBindChars));
+    json.keyValEscape("plan", truncate(plan, maxPlanChars));
+    json.keyValEscape("sql", truncate(sql, maxSqlChars));
+    if (truncated(bind, maxBindChars) || truncated(plan, maxPlanChars) || truncated(sql, maxSqlChars)) {
+      json.keyVal("truncated", true);
+    }
+    json.end('}');
+  }
+
+  private static boolean truncated(String value, int max) {
+    return max > 0 && value != null && value.length() > max;
+  }
+
+  /**
+   * Return the value truncated to max characters (not splitting a surrogate pair).
+   */
+  static String truncate(String value, int max) {
+    if (!truncated(value, max)) {
+      return value;
+    }
+    int end = max;
+    if (Character.isHighSurrogate(value.charAt(end - 1))) {
+      end--;
+    }
+    return value.substring(0, end);
+  }
+}
@@ -0,0 +1,111 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+import java.util.function.Consumer;
+
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * Compares each captured plan with the previous capture of the same query
+ * hash on the same database (via {@link PlanCache}) raising a
+ * {@link QueryPlanEvent}. The same query hash on different databases (for
+ * example the databases of each tenant) is tracked separately.
+ * <p>
+ * A changed plan is a regression when it now has a full table scan that it
+ * did not have before, or its query time went up by at least
+ * {@code regressionPercent}.
+ */
+final class PlanTracker {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final PlanCache cache;
+  private final boolean skipUnchanged;
+  private final int regressionPercent;
+  private final Consumer<QueryPlanEvent> listener;
+
+  /**
+   * Create the tracker.
+   *
+   * @param skipUnchanged true to send unchanged plans without their text
+   * @param listener      receives the events, can be null
+   */
+  PlanTracker(int cacheSize, boolean skipUnchanged, int regressionPercent, Consumer<QueryPlanEvent> listener) {
+    this.cache = new PlanCache(cacheSize);
+    this.skipUnchanged = skipUnchanged;
+    this.regressionPercent = regressionPercent;
+    this.listener = listener;
+  }
+
+  /**
+   * Return true if unchanged plans are sent without their sql, bind and plan text.
+   */
+  boolean skipUnchanged() {
+    return skipUnchanged;
+  }
+
+  /**
+   * Record the captured plan returning the event comparing it to the previous capture.
+   */
+  QueryPlanEvent track(String database, MetaQueryPlan plan) {
+    PlanCache.Entry entry = PlanCache.entry(plan);
+    PlanCache.Entry previous = cache.put(key(database, plan), entry);
+    if (previous == null) {
+      return new QueryPlanEvent(QueryPlanEvent.Type.NEW, plan, entry.fullScan(), false, 0);
+    }
+    QueryPlanEvent.Type type;
+    if (previous.fingerprint() == entry.fingerprint()) {
+      type = QueryPlanEvent.Type.UNCHANGED;
+    } else if (regressed(previous, entry)) {
+      type = QueryPlanEvent.Type.REGRESSED;
+    } else {
+      type = QueryPlanEvent.Type.CHANGED;
+    }
+    return new QueryPlanEvent(type, plan, entry.fullScan(), previous.fullScan(), previous.queryTimeMicros());
+  }
+
+  private boolean regressed(PlanCache.Entry previous, PlanCache.Entry entry) {
+    if (entry.fullScan() && !previous.fullScan()) {
+      return true;
+    }
+    long before = previous.queryTimeMicros();
+    return before > 0 && entry.queryTimeMicros() * 100 >= before * (100L + regressionPercent);
+  }
+
+  /**
+   * Return true if the captured plan is the same as the plan last uploaded in
+   * full, so it can be sent without its text.
+   */
+  boolean unchangedSinceSent(String database, MetaQueryPlan plan) {
+    return cache.unchangedSinceSent(key(database, plan));
+  }
+
+  /**
+   * Record that the plan was uploaded in full.
+   */
+  void sent(String database, MetaQueryPlan plan) {
+    cache.sent(key(database, plan), PlanCache.fingerprint(plan.plan()));
+  }
+
+  private static String key(String database, MetaQueryPlan plan) {
+    return database + ':' + plan.hash();
+  }
+
+  /**
+   * Notify the listener of the event.
+   */
+  void notify(QueryPlanEvent event) {
+    if (event.isRegression()) {
+      log.log(INFO, "Query plan regression {0}", event);
+    }
+    if (listener != null) {
+      try {
+        listener.accept(event);
+      } catch (Exception e) {
+        log.log(WARNING, "Error in query plan event listener for: " + event.plan().hash(), e);
+      }
+    }
+  }
+}
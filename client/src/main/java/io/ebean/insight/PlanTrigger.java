@@ -0,0 +1,98 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local policy selecting the queries to capture plans for from the query
+ * metrics of each period, without waiting for directives from the insight
+ * server.
+ * <p>
+ * A query is selected when its mean or max execution time reaches a threshold
+ * or it is in the top N by total time for the period. At most
+ * {@code maxPerCycle} queries are selected per period (slowest first) and a
+ * query is not selected again within {@code intervalMillis} of being selected.
+ * <p>
+ * Each selected query has the capture threshold of the criterion that
+ * selected it: the mean threshold when its mean reached it, otherwise (the
+ * max threshold or top N) its own mean for the period, so an execution that
+ * is typical of the query is captured rather than waiting for one that may
+ * not recur.
+ */
+final class PlanTrigger {
+
+  private final long meanMicros;
+  private final long maxMicros;
+  private final int topN;
+  private final int maxPerCycle;
+  private final long intervalMillis;
+  /** When each query (database and hash) was last selected. */
+  private final Map<String, Long> lastSelected = new HashMap<>();
+
+  PlanTrigger(long meanMicros, long maxMicros, int topN, int maxPerCycle, long intervalMillis) {
+    this.meanMicros = meanMicros;
+    this.maxMicros = maxMicros;
+    this.topN = topN;
+    this.maxPerCycle = maxPerCycle;
+    this.intervalMillis = intervalMillis;
+  }
+
+  /**
+   * Return the hashes of the queries of the database to capture plans for,
+   * with the capture threshold in micros of each.
+   */
+  synchronized Map<String, Long> select(List<ServerMetrics> databaseMetrics, String database, long now) {
+    List<MetaQueryMetric> candidates = new ArrayList<>();
+    if (databaseMetrics != null) {
+      for (ServerMetrics metrics : databaseMetrics) {
+        if (database.equals(metrics.name())) {
+          candidates.addAll(metrics.queryMetrics());
+        }
+      }
+    }
+    if (candidates.isEmpty()) {
+      return Map.of();
+    }
+    // slowest first, which also puts the top N by total first
+    candidates.sort((a, b) -> Long.compare(b.total(), a.total()));
+    expire(now);
+    Map<String, Long> selected = new LinkedHashMap<>();
+    for (int i = 0; i < candidates.size() && selected.size() < maxPerCycle; i++) {
+      MetaQueryMetric query = candidates.get(i);
+      String hash = query.hash();
+      if (hash != null && query.count() > 0 && (i < topN || slowMax(query) || slowMean(query)) && !lastSelected.containsKey(database + ':' + hash)) {
+        lastSelected.put(database + ':' + hash, now);
+        selected.put(hash, slowMean(query) ? meanMicros : mean(query));
+      }
+    }
+    return selected;
+  }
+
+  private boolean slowMean(MetaQueryMetric query) {
+    return meanMicros > 0 && mean(query) >= meanMicros;
+  }
+
+  private boolean slowMax(MetaQueryMetric query) {
+    return maxMicros > 0 && query.max() >= maxMicros;
+  }
+
+  private static long mean(MetaQueryMetric query) {
+    return query.total() / query.count();
+  }
+
+  private void expire(long now) {
+    Iterator<Long> iterator = lastSelected.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next() >= intervalMillis) {
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package io.ebean.insight;
+
+/**
+ * The query kind (orm, dto or sql) prefix of query metric names and plan labels.
+ */
+final class QueryKind {
+
+  private QueryKind() {
+  }
+
+  /**
+   * Return the index of the dot ending the kind prefix, or -1 when the name
+   * does not start with a kind.
+   */
+  static int prefixEnd(String name) {
+    if (name != null) {
+      int dot = name.indexOf('.');
+      if (dot == 3 && (name.startsWith("orm") || name.startsWith("dto") || name.startsWith("sql"))) {
+        return dot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return the kind prefix of the name, or null when it does not start with a kind.
+   */
+  static String of(String name) {
+    int dot = prefixEnd(name);
+    return dot < 0 ? null : name.substring(0, dot);
+  }
+}
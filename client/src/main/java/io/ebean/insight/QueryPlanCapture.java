@@ -1,113 +1,246 @@
 package io.ebean.insight;
 
+import io.ebean.BackgroundExecutor;
 import io.ebean.Database;
 import io.ebean.meta.MetaQueryPlan;
 import io.ebean.meta.QueryPlanInit;
 import io.ebean.meta.QueryPlanRequest;
 
 import java.time.Instant;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 import static java.lang.System.Logger.Level.*;
 
+/**
+ * Captures query plans requested by directives from the insight server (or
+ * armed locally) and sends them.
+ * <p>
+ * Rather than polling at a fixed rate, the next wake up is scheduled for when
+ * the earliest pending capture reaches the capture delay, or when pending
+ * initialisations are retried. With nothing pending no wake up is scheduled
+ * until new directives arrive.
+ */
 final class QueryPlanCapture {
 
   private static final System.Logger log = InsightClient.log;
 
-  private final Map<QueryPlanInit,Instant> pendingInit = new ConcurrentHashMap<>();
-  private final Map<String, Instant> pendingCapture = new ConcurrentHashMap<>();
   private final AtomicBoolean running = new AtomicBoolean();
+  private final Object scheduleLock = new Object();
+  private ScheduledFuture<?> scheduled;
+  /** When the scheduled wake up is due, 0 when none is scheduled. */
+  private long scheduledAt;
+  private volatile boolean started;
+  private volatile long lastInit;
+  private volatile long lastCollect;
 
   private final Database database;
-  private final InsightClient client;
+  private final BackgroundExecutor scheduler;
+  private final Sender sender;
   private final int freqSeconds;
   private final int captureDelaySecs;
   private final Consumer<MetaQueryPlan> listener;
+  private final PlanTracker tracker;
+  private final PendingPlans pending;
+  private final CaptureBudget budget;
 
-  QueryPlanCapture(Database database, InsightClient client, int freqSeconds, int captureDelaySecs, Consumer<MetaQueryPlan> listener) {
+  /**
+   * Create the capture of the database scheduled on its background executor.
+   *
+   * @param sender   sends the captured plans
+   * @param listener notified of each captured plan, can be null
+   * @param tracker  compares each captured plan to the previous capture, can be null
+   */
+  QueryPlanCapture(Database database, CaptureSettings settings, Sender sender, Consumer<MetaQueryPlan> listener, PlanTracker tracker) {
     this.database = database;
-    this.client = client;
-    this.freqSeconds = freqSeconds;
-    this.captureDelaySecs = captureDelaySecs;
+    this.scheduler = database.backgroundExecutor();
+    this.sender = sender;
+    this.freqSeconds = settings.freqSecs();
+    this.captureDelaySecs = settings.captureDelaySecs();
     this.listener = listener;
+    this.tracker = tracker;
+    this.pending = new PendingPlans(settings.maxPending(), settings.pendingTtlMillis());
+    this.budget = new CaptureBudget(settings.maxCount(), settings.maxTimeMillis());
+  }
+
+  /**
+   * Sends the plans captured on a database.
+   */
+  interface Sender {
+
+    /**
+     * Send the plans, those with their hash in unchanged without their text.
+     */
+    void send(String database, List<MetaQueryPlan> plans, Set<String> unchanged);
+  }
+
+  String databaseName() {
+    return database.name();
   }
 
   void start() {
-    database.backgroundExecutor().scheduleAtFixedRate(this::progress, freqSeconds, freqSeconds, TimeUnit.SECONDS);
+    started = true;
+    schedule();
   }
 
-  void process(String rawMessage) {
-    QueryPlanInit init = parseMessage(rawMessage);
-    initiatePlanCapture(init);
-    if (!init.isEmpty()) {
-      pendingInit.put(init, Instant.now());
+  /**
+   * Stop scheduling wake ups, cancelling any already scheduled.
+   */
+  void stop() {
+    started = false;
+    synchronized (scheduleLock) {
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+      scheduledAt = 0;
+    }
+  }
+
+  /**
+   * Schedule the next wake up unless one is already scheduled at or before
+   * it is due.
+   */
+  private void schedule() {
+    if (!started) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long delay = nextDelayMillis(now);
+    if (delay < 0) {
+      return;
+    }
+    synchronized (scheduleLock) {
+      if (scheduledAt > 0 && scheduledAt <= now + delay) {
+        return;
+      }
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      scheduledAt = now + delay;
+      scheduled = scheduler.schedule(this::wake, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void wake() {
+    synchronized (scheduleLock) {
+      scheduled = null;
+      scheduledAt = 0;
+    }
+    progress();
+  }
+
+  /**
+   * Return the millis until the next wake up is due, or -1 when nothing is pending.
+   * <p>
+   * A pending capture is due when it reaches the capture delay, captures that
+   * were not collected and initialisations that are still pending (the query
+   * has not executed yet) are retried at the poll frequency.
+   */
+  long nextDelayMillis(long now) {
+    long next = Long.MAX_VALUE;
+    long firstPending = pending.firstCapture();
+    if (firstPending >= 0) {
+      long due = firstPending + captureDelaySecs * 1000L;
+      next = Math.max(due, lastCollect + freqSeconds * 1000L);
+    }
+    if (pending.hasInit()) {
+      next = Math.min(next, lastInit + freqSeconds * 1000L);
     }
+    return next == Long.MAX_VALUE ? -1 : Math.max(0, next - now);
   }
 
-  private boolean hasPending() {
-    if (pendingCapture.isEmpty()) {
-      return false;
+  /**
+   * Initiate capture of the plans, those not yet executed are retried each cycle.
+   */
+  void arm(QueryPlanInit init) {
+    initiatePlanCapture(init);
+    if (!init.isEmpty()) {
+      pending.addInit(init, System.currentTimeMillis());
     }
-    Instant firstPending = pendingCapture.values().stream()
-      .min(Instant::compareTo)
-      .orElse(Instant.now());
+    schedule();
+  }
 
-    return firstPending.isBefore(Instant.now().minusSeconds(captureDelaySecs));
+  private boolean hasPending(long now) {
+    long firstPending = pending.firstCapture();
+    return firstPending >= 0 && firstPending + captureDelaySecs * 1000L <= now;
   }
 
   /**
    * Advance the query-plan capture state machine once: initialise pending
    * captures, and if any have been armed long enough, collect and send them.
    * <p>
-   * Driven by the background scheduler in normal mode, or inline from
+   * Driven by the deadline scheduled wake ups in normal mode, or inline from
    * {@link InsightClient#accept} in lambdaMode. A single-flight guard drops an
    * overlapping call (the next cycle picks the work up) so concurrent callers
    * never double-collect/double-send.
    */
   void progress() {
+    progress(Long.MAX_VALUE);
+  }
+
+  /**
+   * Advance the capture spending at most the given time collecting plans.
+   */
+  void progress(long maxTimeMillis) {
     if (!running.compareAndSet(false, true)) {
       return;
     }
     try {
+      long now = System.currentTimeMillis();
+      pending.expire(now);
       pendingCaptureInitialisation();
-      if (!hasPending()) {
+      if (!hasPending(now)) {
         return;
       }
 
+      lastCollect = now;
       QueryPlanRequest request = new QueryPlanRequest();
-      request.maxCount(10);
-      request.maxTimeMillis(10_000);
+      request.maxCount(budget.maxCount(pending.captureSize()));
+      request.maxTimeMillis(Math.min(budget.maxTimeMillis(), maxTimeMillis));
 
-      List<MetaQueryPlan> capturedPlans = database.metaInfo().queryPlanCollectNow(request);
+      List<MetaQueryPlan> capturedPlans = new ArrayList<>(database.metaInfo().queryPlanCollectNow(request));
       if (!capturedPlans.isEmpty()) {
+        budget.observe(capturedPlans);
+        // the most expensive queries notified and uploaded first (the
+        // request has no ordering so this does not change which are collected)
+        capturedPlans.sort(Comparator.comparingLong(MetaQueryPlan::queryTimeMicros).reversed());
+        Set<String> unchanged = tracker == null ? Set.of() : new HashSet<>();
         for (MetaQueryPlan metaQueryPlan : capturedPlans) {
-          Instant whenInitiated = pendingCapture.remove(metaQueryPlan.hash());
-          log.log(DEBUG, "Query plan captured for {0} initialised:{1}", metaQueryPlan.hash(), whenInitiated);
+          Long whenInitiated = pending.removeCapture(metaQueryPlan.hash());
+          log.log(DEBUG, "Query plan captured for {0} initialised:{1}", metaQueryPlan.hash(), whenInitiated == null ? null : Instant.ofEpochMilli(whenInitiated));
           notifyListener(metaQueryPlan);
+          if (tracker != null) {
+            QueryPlanEvent event = tracker.track(database.name(), metaQueryPlan);
+            if (tracker.skipUnchanged() && tracker.unchangedSinceSent(database.name(), metaQueryPlan)) {
+              unchanged.add(metaQueryPlan.hash());
+            }
+            tracker.notify(event);
+          }
         }
-        sendPlans(capturedPlans);
+        sender.send(database.name(), capturedPlans, unchanged);
       }
-      int stillPending = pendingCapture.size();
+      int stillPending = pending.captureSize();
       if (stillPending > 0) {
-        log.log(DEBUG, "{0} Pending query plan capture for plans - {1}", stillPending, pendingCapture.keySet());
+        log.log(DEBUG, "{0} Pending query plan capture for plans - {1}", stillPending, pending.captureHashes());
       }
     } catch (Exception e) {
       log.log(WARNING, "Error during query plan capture", e);
     } finally {
       running.set(false);
+      schedule();
     }
   }
 
-  private void sendPlans(List<MetaQueryPlan> plans) {
-    client.sendPlans(plans);
-  }
-
   void notifyListener(MetaQueryPlan plan) {
     if (listener != null) {
       try {
@@ -119,40 +252,55 @@ final class QueryPlanCapture {
   }
 
   private void pendingCaptureInitialisation() {
-    Iterator<Map.Entry<QueryPlanInit, Instant>> iterator = pendingInit.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<QueryPlanInit, Instant> entry = iterator.next();
-      QueryPlanInit pendingInit = entry.getKey();
+    lastInit = System.currentTimeMillis();
+    for (QueryPlanInit pendingInit : pending.inits()) {
       initiatePlanCapture(pendingInit);
       if (pendingInit.isEmpty()) {
-        iterator.remove();
+        pending.removeInit(pendingInit);
       }
     }
   }
 
   void initiatePlanCapture(QueryPlanInit planInit) {
     var initialisedPlans = database.metaInfo().queryPlanInit(planInit);
+    long now = System.currentTimeMillis();
     for (MetaQueryPlan metaQueryPlan : initialisedPlans) {
       planInit.remove(metaQueryPlan.hash());
-      pendingCapture.put(metaQueryPlan.hash(), Instant.now());
+      pending.addCapture(metaQueryPlan.hash(), now);
       log.log(DEBUG, "Initialised query plan capture for {0} {1}", metaQueryPlan.hash(), metaQueryPlan.label());
     }
   }
 
+  /**
+   * Parse the directives for the first database (those before any database line).
+   */
   static QueryPlanInit parseMessage(String rawMessage) {
-    var queryPlanInit = new QueryPlanInit();
+    QueryPlanInit init = parseDirectives(rawMessage).get(null);
+    return init != null ? init : new QueryPlanInit();
+  }
+
+  /**
+   * Parse the directives by target database name, null for the first database.
+   */
+  static Map<String, QueryPlanInit> parseDirectives(String rawMessage) {
+    Map<String, QueryPlanInit> directives = new LinkedHashMap<>();
     if (rawMessage == null || rawMessage.isEmpty()) {
-      return queryPlanInit;
+      return directives;
     }
     // version|messages ...
     String[] split = rawMessage.split("\\|");
     if (split.length < 2 || !"v1".equals(split[0])) {
-      return queryPlanInit;
+      return directives;
     }
+    String database = null;
     for (String msg : split) {
-      parseMessage(msg, queryPlanInit);
+      if (msg.startsWith("db:")) {
+        database = msg.substring(3);
+      } else if (msg.startsWith("qp:") || msg.startsWith("th:")) {
+        parseMessage(msg, directives.computeIfAbsent(database, name -> new QueryPlanInit()));
+      }
     }
-    return queryPlanInit;
+    return directives;
   }
 
   static void parseMessage(String msg, QueryPlanInit queryPlanInit) {
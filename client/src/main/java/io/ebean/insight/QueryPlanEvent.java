@@ -0,0 +1,113 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+/**
+ * Event raised when a query plan is captured, comparing it to the previous
+ * capture of the same query hash.
+ *
+ * <pre>{@code
+ *
+ *   InsightClient.builder()
+ *     .capturePlansFor(db)
+ *     .onQueryPlanEvent(event -> {
+ *       if (event.isRegression()) {
+ *         alerts.send("query plan regressed for " + event.plan().label());
+ *       }
+ *     })
+ *     .build();
+ *
+ * }</pre>
+ */
+public final class QueryPlanEvent {
+
+  /**
+   * The type of query plan event.
+   */
+  public enum Type {
+
+    /**
+     * The first capture of the query (or it was evicted since the previous capture).
+     */
+    NEW,
+
+    /**
+     * The plan is the same as the previous capture.
+     */
+    UNCHANGED,
+
+    /**
+     * The plan changed from the previous capture.
+     */
+    CHANGED,
+
+    /**
+     * The plan changed from the previous capture to a full scan or to a plan
+     * with a query time significantly higher than before.
+     */
+    REGRESSED
+  }
+
+  private final Type type;
+  private final MetaQueryPlan plan;
+  private final boolean fullScan;
+  private final boolean previousFullScan;
+  private final long previousQueryTimeMicros;
+
+  QueryPlanEvent(Type type, MetaQueryPlan plan, boolean fullScan, boolean previousFullScan, long previousQueryTimeMicros) {
+    this.type = type;
+    this.plan = plan;
+    this.fullScan = fullScan;
+    this.previousFullScan = previousFullScan;
+    this.previousQueryTimeMicros = previousQueryTimeMicros;
+  }
+
+  /**
+   * Return the type of the event.
+   */
+  public Type type() {
+    return type;
+  }
+
+  /**
+   * Return true if the plan changed for the worse.
+   */
+  public boolean isRegression() {
+    return type == Type.REGRESSED;
+  }
+
+  /**
+   * Return the captured plan.
+   */
+  public MetaQueryPlan plan() {
+    return plan;
+  }
+
+  /**
+   * Return true if the captured plan includes a full table scan.
+   */
+  public boolean fullScan() {
+    return fullScan;
+  }
+
+  /**
+   * Return true if the previously captured plan included a full table scan
+   * (false for a NEW plan).
+   */
+  public boolean previousFullScan() {
+    return previousFullScan;
+  }
+
+  /**
+   * Return the query time of the previously captured plan (0 for a NEW plan).
+   */
+  public long previousQueryTimeMicros() {
+    return previousQueryTimeMicros;
+  }
+
+  @Override
+  public String toString() {
+    return type + " hash:" + plan.hash() + " label:" + plan.label() + " queryTimeMicros:" + plan.queryTimeMicros()
+      + " previousQueryTimeMicros:" + previousQueryTimeMicros + " fullScan:" + fullScan + " previousFullScan:" + previousFullScan;
+  }
+}
@@ -0,0 +1,162 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In memory store of the recently captured query plans by database and hash,
+ * indexed by hash, label and bean type.
+ * <p>
+ * The store is bounded by the total size of the plan text (sql, bind, plan and
+ * label) rather than the number of plans, as plan text varies from a few
+ * hundred bytes to hundreds of kilobytes. When over the max the least recently
+ * used plans are evicted, where looking up a plan (by hash, label or bean
+ * type) counts as a use.
+ */
+final class RecentPlans {
+
+  private static final Comparator<MetaQueryPlan> NEWEST_FIRST = Comparator.comparing(MetaQueryPlan::whenCaptured, Comparator.nullsFirst(Comparator.<Instant>naturalOrder())).reversed();
+
+  private final long maxBytes;
+  /** The plans keyed by database and hash. */
+  private final LinkedHashMap<String, MetaQueryPlan> plans = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<String, Set<String>> byHash = new HashMap<>();
+  private final Map<String, Set<String>> byLabel = new HashMap<>();
+  private final Map<Class<?>, Set<String>> byType = new HashMap<>();
+  private long bytes;
+
+  RecentPlans(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Add the plan captured on the database replacing any previous plan for the
+   * same database and hash.
+   */
+  synchronized void add(String database, MetaQueryPlan plan) {
+    String key = database + ':' + plan.hash();
+    remove(key);
+    plans.put(key, plan);
+    bytes += bytes(plan);
+    index(byHash, plan.hash(), key);
+    index(byLabel, plan.label(), key);
+    index(byType, plan.beanType(), key);
+    Iterator<Map.Entry<String, MetaQueryPlan>> lru = plans.entrySet().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      Map.Entry<String, MetaQueryPlan> eldest = lru.next();
+      lru.remove();
+      unindex(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  /**
+   * Return the plan for the database and hash or null.
+   */
+  synchronized MetaQueryPlan get(String database, String hash) {
+    return plans.get(database + ':' + hash);
+  }
+
+  /**
+   * Return the newest plan for the hash on any database or null.
+   */
+  synchronized MetaQueryPlan get(String hash) {
+    List<MetaQueryPlan> list = lookup(byHash.get(hash));
+    return list.isEmpty() ? null : list.get(0);
+  }
+
+  /**
+   * Return the plans with the label, newest first.
+   */
+  synchronized List<MetaQueryPlan> byLabel(String label) {
+    return lookup(byLabel.get(label));
+  }
+
+  /**
+   * Return the plans for the bean type, newest first.
+   */
+  synchronized List<MetaQueryPlan> byType(Class<?> beanType) {
+    return lookup(byType.get(beanType));
+  }
+
+  /**
+   * Return all the plans, newest first.
+   */
+  synchronized List<MetaQueryPlan> all() {
+    List<MetaQueryPlan> list = new ArrayList<>(plans.values());
+    list.sort(NEWEST_FIRST);
+    return list;
+  }
+
+  synchronized int size() {
+    return plans.size();
+  }
+
+  /**
+   * Return the total size of the plan text held.
+   */
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  private List<MetaQueryPlan> lookup(Set<String> keys) {
+    if (keys == null) {
+      return List.of();
+    }
+    List<MetaQueryPlan> list = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      list.add(plans.get(key));
+    }
+    list.sort(NEWEST_FIRST);
+    return list;
+  }
+
+  private void remove(String key) {
+    MetaQueryPlan previous = plans.remove(key);
+    if (previous != null) {
+      unindex(key, previous);
+    }
+  }
+
+  private void unindex(String key, MetaQueryPlan plan) {
+    bytes -= bytes(plan);
+    unindex(byHash, plan.hash(), key);
+    unindex(byLabel, plan.label(), key);
+    unindex(byType, plan.beanType(), key);
+  }
+
+  private static <K> void index(Map<K, Set<String>> index, K value, String key) {
+    if (value != null) {
+      index.computeIfAbsent(value, k -> new LinkedHashSet<>()).add(key);
+    }
+  }
+
+  private static <K> void unindex(Map<K, Set<String>> index, K value, String key) {
+    if (value != null) {
+      Set<String> keys = index.get(value);
+      if (keys != null && keys.remove(key) && keys.isEmpty()) {
+        index.remove(value);
+      }
+    }
+  }
+
+  /**
+   * Return the approximate size of the plan text (2 bytes per char).
+   */
+  static long bytes(MetaQueryPlan plan) {
+    return 2L * (length(plan.sql()) + length(plan.bind()) + length(plan.plan()) + length(plan.label()));
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+}
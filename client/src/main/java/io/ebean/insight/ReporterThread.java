@@ -0,0 +1,110 @@
+package io.ebean.insight;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * A dedicated daemon thread that runs the reporting tasks (serialization,
+ * gzip and the POST) handed off by the callers.
+ * <p>
+ * Producers add to a lock-free queue and unpark the thread, so handing off a
+ * snapshot costs a queue insert. Tasks run one at a time in the order they were
+ * added. The queue is bounded to {@code capacity} tasks, beyond that
+ * {@link #offer(Runnable)} rejects the task rather than let a slow or
+ * unreachable server build up an unbounded backlog.
+ */
+final class ReporterThread implements Runnable {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final int capacity;
+  private final Thread thread;
+  private volatile boolean stopped;
+  private volatile boolean running;
+
+  ReporterThread(String name, int capacity) {
+    this.capacity = capacity;
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * Add the task returning false when the queue is full.
+   */
+  boolean offer(Runnable task) {
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    queue.offer(task);
+    LockSupport.unpark(thread);
+    return true;
+  }
+
+  /**
+   * Stop the thread once the tasks already added have run.
+   */
+  void stop() {
+    stopped = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Return the number of tasks waiting to run.
+   */
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Return true when no task is waiting or running.
+   */
+  boolean isIdle() {
+    // read size first, running is set before size is decremented
+    return size.get() == 0 && !running;
+  }
+
+  /**
+   * Return the number of tasks rejected because the queue was full.
+   */
+  long rejected() {
+    return rejected.get();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Runnable task = queue.poll();
+      if (task == null) {
+        if (stopped) {
+          return;
+        }
+        // spurious wake ups just loop around and poll again
+        LockSupport.park(this);
+        continue;
+      }
+      running = true;
+      size.decrementAndGet();
+      try {
+        task.run();
+      } catch (Throwable e) {
+        log.log(WARNING, "Error reporting metrics", e);
+      } finally {
+        running = false;
+      }
+    }
+  }
+}
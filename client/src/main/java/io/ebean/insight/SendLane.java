@@ -0,0 +1,261 @@
+package io.ebean.insight;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.WARNING;
+
+/**
+ * An independent lane for sending one kind of payload (metrics or query plans)
+ * with its own queue, in-flight limit and retry policy.
+ * <p>
+ * At most {@code maxInFlight} sends run at a time, the rest wait in a queue of
+ * at most {@code maxQueued} payloads. The payloads of a report (the parts of a
+ * split metrics payload) are submitted with the same report id and are only
+ * dropped together: when full the oldest report none of whose parts have been
+ * sent is dropped, and when there is no such report the queue is allowed to
+ * exceed {@code maxQueued} rather than send a report with parts missing. A send
+ * that fails, or completes with {@code false}, is retried up to
+ * {@code maxRetries} times with a linear backoff. A lane with a
+ * {@code priority} lane only starts a send when the priority lane is idle,
+ * and sends are spaced at least {@code minIntervalMillis} apart.
+ */
+final class SendLane<T> {
+
+  private static final System.Logger log = InsightClient.log;
+
+  private final String name;
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final int maxRetries;
+  private final long retryDelayMillis;
+  private final long minIntervalMillis;
+  private final SendLane<?> priority;
+  private final Function<T, CompletableFuture<Boolean>> sender;
+  private final ArrayDeque<Entry<T>> queue = new ArrayDeque<>();
+  private final List<SendLane<?>> waiting = new ArrayList<>(1);
+
+  private int inFlight;
+  private int retrying;
+  private long nextStartMillis;
+  private boolean dispatchScheduled;
+  private long dropped;
+  private long reports;
+  private long lastReport;
+  private long failed;
+
+  /**
+   * Create the lane.
+   *
+   * @param sender starts the send, completing with false (or exceptionally)
+   *               when it should be retried
+   */
+  SendLane(String name, int maxInFlight, int maxQueued, int maxRetries, long retryDelayMillis,
+           long minIntervalMillis, SendLane<?> priority, Function<T, CompletableFuture<Boolean>> sender) {
+    this.name = name;
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.maxRetries = maxRetries;
+    this.retryDelayMillis = retryDelayMillis;
+    this.minIntervalMillis = minIntervalMillis;
+    this.priority = priority;
+    this.sender = sender;
+    if (priority != null) {
+      priority.wakeWhenIdle(this);
+    }
+  }
+
+  private synchronized void wakeWhenIdle(SendLane<?> lane) {
+    waiting.add(lane);
+  }
+
+  /**
+   * Return a new report id for submitting the parts of a report.
+   */
+  synchronized long newReport() {
+    return ++reports;
+  }
+
+  /**
+   * Queue the payload to be sent as a report of its own.
+   */
+  void submit(T payload) {
+    submit(payload, newReport());
+  }
+
+  /**
+   * Queue a part of the report to be sent, in order of the parts.
+   */
+  void submit(T payload, long report) {
+    synchronized (this) {
+      // parts of a report interleaved with a newer report are never dropped
+      final boolean first = report > lastReport;
+      lastReport = Math.max(lastReport, report);
+      if (queue.size() >= maxQueued) {
+        dropReport(report);
+      }
+      queue.addLast(new Entry<>(payload, report, first));
+    }
+    dispatch();
+  }
+
+  /**
+   * Drop the oldest report that is entirely queued, other than the report
+   * being submitted.
+   */
+  private void dropReport(long current) {
+    for (Entry<T> entry : queue) {
+      if (entry.first && entry.attempt == 0 && entry.report != current) {
+        int parts = 0;
+        Iterator<Entry<T>> it = queue.iterator();
+        while (it.hasNext()) {
+          if (it.next().report == entry.report) {
+            it.remove();
+            parts++;
+          }
+        }
+        dropped += parts;
+        log.log(WARNING, "Dropped {0} report of {1} parts, {2} already waiting to be sent", name, parts, maxQueued);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Return true if nothing is being sent or waiting to be sent.
+   */
+  synchronized boolean isIdle() {
+    return inFlight == 0 && retrying == 0 && queue.isEmpty();
+  }
+
+  synchronized int inFlight() {
+    return inFlight;
+  }
+
+  synchronized int queued() {
+    return queue.size();
+  }
+
+  /**
+   * Return the number of payloads (report parts) dropped because the queue was full.
+   */
+  synchronized long dropped() {
+    return dropped;
+  }
+
+  /**
+   * Return the number of payloads that failed after all the retries.
+   */
+  synchronized long failed() {
+    return failed;
+  }
+
+  /**
+   * Start as many of the queued sends as the limits allow.
+   */
+  void dispatch() {
+    List<Entry<T>> start = new ArrayList<>(1);
+    synchronized (this) {
+      while (inFlight < maxInFlight && !queue.isEmpty()) {
+        if (priority != null && !priority.isIdle()) {
+          // woken by the priority lane when it is idle
+          break;
+        }
+        if (minIntervalMillis > 0) {
+          long now = System.currentTimeMillis();
+          if (now < nextStartMillis) {
+            scheduleDispatch(nextStartMillis - now);
+            break;
+          }
+          nextStartMillis = now + minIntervalMillis;
+        }
+        inFlight++;
+        start.add(queue.pollFirst());
+      }
+    }
+    for (Entry<T> entry : start) {
+      send(entry);
+    }
+  }
+
+  private void scheduleDispatch(long delayMillis) {
+    if (!dispatchScheduled) {
+      dispatchScheduled = true;
+      CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+        synchronized (this) {
+          dispatchScheduled = false;
+        }
+        dispatch();
+      });
+    }
+  }
+
+  private void send(Entry<T> entry) {
+    CompletableFuture<Boolean> future;
+    try {
+      future = sender.apply(entry.payload);
+    } catch (Throwable e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+    future.whenComplete((done, ex) -> complete(entry, ex == null && Boolean.TRUE.equals(done), ex));
+  }
+
+  private void complete(Entry<T> entry, boolean done, Throwable ex) {
+    if (!done) {
+      if (entry.attempt < maxRetries) {
+        entry.attempt++;
+        synchronized (this) {
+          retrying++;
+        }
+        if (log.isLoggable(DEBUG)) {
+          log.log(DEBUG, "Retry {0} send attempt {1} - {2}", name, entry.attempt, ex == null ? "" : ex.toString());
+        }
+        CompletableFuture.delayedExecutor(retryDelayMillis * entry.attempt, TimeUnit.MILLISECONDS).execute(() -> retry(entry));
+      } else {
+        synchronized (this) {
+          failed++;
+        }
+        log.log(WARNING, "Failed to send {0} - {1}", name, ex == null ? "server error" : ex.toString());
+      }
+    }
+    List<SendLane<?>> wake;
+    synchronized (this) {
+      inFlight--;
+      wake = isIdle() ? waiting : List.of();
+    }
+    dispatch();
+    for (SendLane<?> lane : wake) {
+      lane.dispatch();
+    }
+  }
+
+  private void retry(Entry<T> entry) {
+    synchronized (this) {
+      retrying--;
+      // ahead of newer payloads
+      queue.addFirst(entry);
+    }
+    dispatch();
+  }
+
+  private static final class Entry<T> {
+
+    private final T payload;
+    private final long report;
+    /** True when the first part of the report, so no part has been sent before it. */
+    private final boolean first;
+    private int attempt;
+
+    Entry(T payload, long report, boolean first) {
+      this.payload = payload;
+      this.report = report;
+      this.first = first;
+    }
+  }
+}
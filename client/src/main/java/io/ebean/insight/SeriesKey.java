@@ -0,0 +1,61 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.ebean.meta.MetaMetric;
+import io.ebean.meta.MetaQueryMetric;
+
+/**
+ * 64 bit identity of a metric series (name plus tags, or database plus name
+ * and query hash) computed without allocating, for use as a primitive key
+ * of per series state.
+ */
+final class SeriesKey {
+
+  private static final long OFFSET = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private SeriesKey() {
+  }
+
+  /**
+   * Return the key of an Avaje metric series.
+   */
+  static long of(Metric.ID id) {
+    long h = hash(OFFSET, id.name());
+    for (String tag : id.tags().array()) {
+      h = hash(h, tag);
+    }
+    return finish(h);
+  }
+
+  /**
+   * Return the key of a database metric series.
+   */
+  static long of(String db, MetaMetric metric) {
+    long h = hash(hash(OFFSET, db), metric.name());
+    if (metric instanceof MetaQueryMetric) {
+      h = hash(h, ((MetaQueryMetric) metric).hash());
+    }
+    return finish(h);
+  }
+
+  private static long hash(long h, String value) {
+    if (value != null) {
+      for (int i = 0; i < value.length(); i++) {
+        h ^= value.charAt(i);
+        h *= PRIME;
+      }
+    }
+    // separator so that ("ab","c") and ("a","bc") differ
+    h ^= 0xff;
+    h *= PRIME;
+    return h;
+  }
+
+  private static long finish(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
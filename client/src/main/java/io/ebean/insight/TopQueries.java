@@ -0,0 +1,170 @@
+package io.ebean.insight;
+
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetaTimedMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the query metrics of each database to the top N by total time (or by
+ * count), collapsing the remaining queries into one {@code <kind>.other} metric
+ * per query kind (orm, dto, sql) so that the totals still reconcile.
+ * <p>
+ * The other metrics have placeholder location, type and sql values, see
+ * {@link DbQueryMetric#aggregate}.
+ * <p>
+ * Selection uses a bounded min heap of indexes so it is O(n log N) with no
+ * sorting of the full list.
+ */
+final class TopQueries {
+
+  static final String OTHER = "other";
+
+  private final int limit;
+  private final boolean byCount;
+
+  TopQueries(int limit, boolean byCount) {
+    this.limit = limit;
+    this.byCount = byCount;
+  }
+
+  List<ServerMetrics> apply(List<ServerMetrics> databaseMetrics) {
+    if (databaseMetrics == null || databaseMetrics.isEmpty()) {
+      return databaseMetrics;
+    }
+    List<ServerMetrics> result = new ArrayList<>(databaseMetrics.size());
+    for (ServerMetrics metrics : databaseMetrics) {
+      result.add(apply(metrics));
+    }
+    return result;
+  }
+
+  /**
+   * Return the snapshot limited to the top queries. The same instance is
+   * returned when it has no more than the limit of query metrics.
+   */
+  ServerMetrics apply(ServerMetrics metrics) {
+    List<MetaQueryMetric> queries = metrics.queryMetrics();
+    if (queries.size() <= limit) {
+      return metrics;
+    }
+    boolean[] top = select(queries);
+    var result = new BasicMetricVisitor(metrics.name(), MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (MetaTimedMetric metric : metrics.timedMetrics()) {
+      result.visitTimed(metric);
+    }
+    Map<String, Other> others = new LinkedHashMap<>();
+    for (int i = 0; i < queries.size(); i++) {
+      MetaQueryMetric query = queries.get(i);
+      if (top[i]) {
+        result.visitQuery(query);
+      } else {
+        others.computeIfAbsent(kind(query.name()), Other::new).add(query);
+      }
+    }
+    for (Other other : others.values()) {
+      result.visitQuery(other.metric());
+    }
+    for (MetaCountMetric metric : metrics.countMetrics()) {
+      result.visitCount(metric);
+    }
+    return result;
+  }
+
+  /**
+   * Return the flags of the top queries using a min heap bounded to the limit.
+   */
+  private boolean[] select(List<MetaQueryMetric> queries) {
+    int[] heap = new int[limit];
+    long[] heapValue = new long[limit];
+    int heapSize = 0;
+    for (int i = 0; i < queries.size(); i++) {
+      long value = value(queries.get(i));
+      if (heapSize < limit) {
+        // sift up
+        int pos = heapSize++;
+        while (pos > 0) {
+          int parent = (pos - 1) >>> 1;
+          if (heapValue[parent] <= value) {
+            break;
+          }
+          heap[pos] = heap[parent];
+          heapValue[pos] = heapValue[parent];
+          pos = parent;
+        }
+        heap[pos] = i;
+        heapValue[pos] = value;
+      } else if (value > heapValue[0]) {
+        // replace the smallest and sift down
+        int pos = 0;
+        while (true) {
+          int child = 2 * pos + 1;
+          if (child >= heapSize) {
+            break;
+          }
+          if (child + 1 < heapSize && heapValue[child + 1] < heapValue[child]) {
+            child++;
+          }
+          if (heapValue[child] >= value) {
+            break;
+          }
+          heap[pos] = heap[child];
+          heapValue[pos] = heapValue[child];
+          pos = child;
+        }
+        heap[pos] = i;
+        heapValue[pos] = value;
+      }
+    }
+    boolean[] top = new boolean[queries.size()];
+    for (int i = 0; i < heapSize; i++) {
+      top[heap[i]] = true;
+    }
+    return top;
+  }
+
+  private long value(MetaQueryMetric query) {
+    return byCount ? query.count() : query.total();
+  }
+
+  /**
+   * Return the query kind (orm, dto or sql) from the metric name prefix.
+   */
+  static String kind(String name) {
+    String kind = QueryKind.of(name);
+    return kind == null ? "query" : kind;
+  }
+
+  /**
+   * Aggregate of the queries outside the top N for one query kind.
+   */
+  private static final class Other {
+
+    private final String kind;
+    private long count;
+    private long total;
+    private long max;
+
+    Other(String kind) {
+      this.kind = kind;
+    }
+
+    void add(MetaQueryMetric query) {
+      count += query.count();
+      total += query.total();
+      max = Math.max(max, query.max());
+    }
+
+    DbQueryMetric metric() {
+      String name = kind + "." + OTHER;
+      return DbQueryMetric.aggregate(name, OTHER, "-- other " + kind + " queries", count, total, max);
+    }
+  }
+}
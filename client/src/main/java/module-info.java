@@ -3,6 +3,7 @@ module io.ebean.insight {
   exports io.ebean.insight;
 
   requires transitive java.net.http;
+  requires java.management;
   requires transitive io.avaje.applog;
   requires transitive io.avaje.config;
 
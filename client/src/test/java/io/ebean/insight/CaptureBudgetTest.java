@@ -0,0 +1,79 @@
+package io.ebean.insight;
+
+import io.ebean.ProfileLocation;
+import io.ebean.meta.MetaQueryPlan;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CaptureBudgetTest {
+
+  @Test
+  void maxCount_followsBacklog() {
+    var budget = new CaptureBudget(50, 10_000);
+    assertThat(budget.maxCount(0)).isEqualTo(10);
+    assertThat(budget.maxCount(30)).isEqualTo(30);
+    assertThat(budget.maxCount(500)).isEqualTo(50);
+  }
+
+  @Test
+  void maxTimeMillis_expensiveCapture_halvedToMin() {
+    var budget = new CaptureBudget(50, 10_000);
+    assertThat(budget.maxTimeMillis()).isEqualTo(10_000L);
+
+    List<MetaQueryPlan> expensive = List.of(new Plan(100, 500));
+    budget.observe(expensive);
+    assertThat(budget.maxTimeMillis()).isEqualTo(5_000L);
+    for (int i = 0; i < 10; i++) {
+      budget.observe(expensive);
+    }
+    assertThat(budget.maxTimeMillis()).isEqualTo(1_000L);
+  }
+
+  @Test
+  void maxTimeMillis_cheapCapture_growsBackToMax() {
+    var budget = new CaptureBudget(50, 10_000);
+    budget.observe(List.of(new Plan(100, 500)));
+    assertThat(budget.maxTimeMillis()).isEqualTo(5_000L);
+
+    List<MetaQueryPlan> cheap = List.of(new Plan(1000, 100), new Plan(2000, 100));
+    budget.observe(cheap);
+    assertThat(budget.maxTimeMillis()).isEqualTo(6_250L);
+    for (int i = 0; i < 10; i++) {
+      budget.observe(cheap);
+    }
+    assertThat(budget.maxTimeMillis()).isEqualTo(10_000L);
+  }
+
+  @Test
+  void observe_noPlans_unchanged() {
+    var budget = new CaptureBudget(50, 10_000);
+    budget.observe(List.of());
+    assertThat(budget.maxTimeMillis()).isEqualTo(10_000L);
+  }
+
+  static final class Plan implements MetaQueryPlan {
+    private final long queryTimeMicros;
+    private final long captureMicros;
+
+    Plan(long queryTimeMicros, long captureMicros) {
+      this.queryTimeMicros = queryTimeMicros;
+      this.captureMicros = captureMicros;
+    }
+
+    @Override public Class<?> beanType() { return null; }
+    @Override public String label() { return "la"; }
+    @Override public ProfileLocation profileLocation() { return null; }
+    @Override public String sql() { return "select 1"; }
+    @Override public String hash() { return "h"; }
+    @Override public String bind() { return "bi"; }
+    @Override public String plan() { return "pl"; }
+    @Override public long queryTimeMicros() { return queryTimeMicros; }
+    @Override public long captureCount() { return 1; }
+    @Override public long captureMicros() { return captureMicros; }
+    @Override public Instant whenCaptured() { return Instant.EPOCH; }
+  }
+}
@@ -0,0 +1,100 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Counter;
+import io.avaje.metrics.Meter;
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Tags;
+import io.avaje.metrics.stats.GaugeLongStats;
+import io.avaje.metrics.stats.MeterStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static io.ebean.insight.TopQueriesTest.database;
+import static io.ebean.insight.TopQueriesTest.query;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CardinalityGuardTest {
+
+  @Test
+  void guardDatabases_underCap_sameInstance() {
+    var guard = new CardinalityGuard(3, 0);
+    ServerMetrics db = database(query("orm.A", "a", 1, 10), query("orm.B", "b", 1, 10));
+    assertThat(guard.guardDatabases(List.of(db)).get(0)).isSameAs(db);
+  }
+
+  @Test
+  void guardDatabases_foldsNewSeriesOverCap() {
+    var guard = new CardinalityGuard(2, 0);
+    ServerMetrics first = database(query("orm.A", "a", 1, 10), query("orm.B", "b", 1, 10));
+    guard.guardDatabases(List.of(first));
+
+    ServerMetrics second = database(query("orm.A", "a", 2, 20), query("orm.C", "c", 3, 30), query("orm.D", "d", 4, 40));
+    ServerMetrics result = guard.guardDatabases(List.of(second)).get(0);
+
+    List<MetaQueryMetric> queries = result.queryMetrics();
+    assertThat(queries).hasSize(2);
+    assertThat(queries.get(0).hash()).isEqualTo("a");
+    assertThat(queries.get(1).hash()).isEqualTo(CardinalityGuard.OVERFLOW);
+    assertThat(queries.get(1).count()).isEqualTo(7L);
+    assertThat(queries.get(1).total()).isEqualTo(70L);
+    assertThat(queries.get(1).max()).isEqualTo(40L);
+    assertThat(queries.get(1).location()).isEqualTo(CardinalityGuard.OVERFLOW);
+    assertThat(queries.get(1).type()).isEqualTo(Object.class);
+    assertThat(queries.get(1).sql()).isNotNull();
+
+    MetaCountMetric dropped = result.countMetrics().get(0);
+    assertThat(dropped.name()).isEqualTo(CardinalityGuard.DROPPED);
+    assertThat(dropped.count()).isEqualTo(2L);
+  }
+
+  @Test
+  void guardDatabases_newSeriesFitCap_noDroppedCount() {
+    var guard = new CardinalityGuard(3, 0);
+    guard.guardDatabases(List.of(database(query("orm.A", "a", 1, 10), query("orm.B", "b", 1, 10))));
+
+    ServerMetrics second = database(query("orm.A", "a", 2, 20), query("orm.C", "c", 3, 30));
+    ServerMetrics result = guard.guardDatabases(List.of(second)).get(0);
+    assertThat(result).isSameAs(second);
+    assertThat(result.countMetrics()).isEmpty();
+  }
+
+  @Test
+  void guardDatabases_capIsPerDatabase() {
+    var guard = new CardinalityGuard(1, 0);
+    var one = new BasicMetricVisitor("one", MetricNamingMatch.INSTANCE, false, true, true, true);
+    one.visitQuery(query("orm.A", "a", 1, 1));
+    var two = new BasicMetricVisitor("two", MetricNamingMatch.INSTANCE, false, true, true, true);
+    two.visitQuery(query("orm.A", "a", 1, 1));
+
+    List<ServerMetrics> result = guard.guardDatabases(List.of(one, two));
+    assertThat(result.get(0)).isSameAs(one);
+    assertThat(result.get(1)).isSameAs(two);
+  }
+
+  @Test
+  void guardMetrics_foldsNewSeriesOverCap() {
+    var guard = new CardinalityGuard(0, 2);
+    var a = new MeterStats(Metric.ID.of("a", Tags.of()), 1, 10, 10);
+    var b = new GaugeLongStats(Metric.ID.of("b", Tags.of()), 5);
+    assertThat(guard.guardMetrics(List.of(a, b))).containsExactly(a, b);
+
+    var c = new MeterStats(Metric.ID.of("c", Tags.of("q:1")), 2, 30, 20);
+    var d = new GaugeLongStats(Metric.ID.of("d", Tags.of()), 5);
+    List<Metric.Statistics> result = guard.guardMetrics(List.of(a, c, d));
+
+    assertThat(result).hasSize(3);
+    assertThat(result.get(0)).isSameAs(a);
+    var overflow = (Meter.Stats) result.get(1);
+    assertThat(overflow.id().name()).isEqualTo(CardinalityGuard.OVERFLOW);
+    assertThat(overflow.count()).isEqualTo(2L);
+    var dropped = (Counter.Stats) result.get(2);
+    assertThat(dropped.id().name()).isEqualTo(CardinalityGuard.DROPPED);
+    assertThat(dropped.count()).isEqualTo(2L);
+  }
+}
@@ -0,0 +1,111 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Tags;
+import io.avaje.metrics.stats.CounterStats;
+import io.avaje.metrics.stats.GaugeDoubleStats;
+import io.avaje.metrics.stats.GaugeLongStats;
+import io.avaje.metrics.stats.TimerStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetricNamingMatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChangeSuppressionTest {
+
+  private static final Metric.ID POOL = Metric.ID.of("pool.size", Tags.of("db:h2"));
+  private static final Metric.ID LOAD = Metric.ID.of("cpu.load", Tags.of());
+
+  @Test
+  void filterMetrics_skipsZeroCounts() {
+    var suppression = new ChangeSuppression();
+    var busy = new TimerStats(Metric.ID.of("busy", Tags.of()), 2, 100, 60);
+    var idle = new TimerStats(Metric.ID.of("idle", Tags.of()), 0, 0, 0);
+    var counter = new CounterStats(Metric.ID.of("count", Tags.of()), 0);
+
+    assertThat(suppression.filterMetrics(List.of(busy, idle, counter))).containsExactly(busy);
+  }
+
+  @Test
+  void filterMetrics_skipsUnchangedGauges() {
+    var suppression = new ChangeSuppression();
+
+    var first = new GaugeLongStats(POOL, 10);
+    var load = new GaugeDoubleStats(LOAD, 0.5);
+    assertThat(suppression.filterMetrics(List.of(first, load))).containsExactly(first, load);
+
+    var same = new GaugeLongStats(POOL, 10);
+    var sameLoad = new GaugeDoubleStats(LOAD, 0.5);
+    assertThat(suppression.filterMetrics(List.of(same, sameLoad))).isEmpty();
+
+    var changed = new GaugeLongStats(POOL, 11);
+    assertThat(suppression.filterMetrics(List.of(changed, sameLoad))).containsExactly(changed);
+  }
+
+  @Test
+  void lost_gaugesSentAgain() {
+    var suppression = new ChangeSuppression();
+    var gauge = new GaugeLongStats(POOL, 10);
+    suppression.lost(0);
+    assertThat(suppression.filterMetrics(List.of(gauge))).containsExactly(gauge);
+
+    suppression.lost(0);
+    assertThat(suppression.filterMetrics(List.of(gauge))).isEmpty();
+
+    // the payload with the gauge was dropped or failed
+    suppression.lost(1);
+    assertThat(suppression.filterMetrics(List.of(gauge))).containsExactly(gauge);
+    suppression.lost(1);
+    assertThat(suppression.filterMetrics(List.of(gauge))).isEmpty();
+  }
+
+  @Test
+  void filterMetrics_gaugeFirstValueZero_isReported() {
+    var suppression = new ChangeSuppression();
+    var zero = new GaugeLongStats(POOL, 0);
+    assertThat(suppression.filterMetrics(List.of(zero))).containsExactly(zero);
+    assertThat(suppression.filterMetrics(List.of(zero))).isEmpty();
+  }
+
+  @Test
+  void filterDatabases_dropsZeroCountsAndEmptyDatabases() {
+    var suppression = new ChangeSuppression();
+
+    var idleDb = new BasicMetricVisitor("idle", MetricNamingMatch.INSTANCE, false, true, true, true);
+    idleDb.visitCount(new Count("txn.main", 0));
+
+    var busyDb = new BasicMetricVisitor("busy", MetricNamingMatch.INSTANCE, false, true, true, true);
+    MetaCountMetric used = new Count("txn.main", 3);
+    busyDb.visitCount(used);
+    busyDb.visitCount(new Count("l2.hit", 0));
+
+    var result = suppression.filterDatabases(List.of(idleDb, busyDb));
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).name()).isEqualTo("busy");
+    assertThat(result.get(0).countMetrics()).containsExactly(used);
+  }
+
+  static final class Count implements MetaCountMetric {
+    private final String name;
+    private final long count;
+
+    Count(String name, long count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    @Override
+    public String name() {
+      return name;
+    }
+
+    @Override
+    public long count() {
+      return count;
+    }
+  }
+}
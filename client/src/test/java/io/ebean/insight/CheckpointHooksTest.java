@@ -0,0 +1,65 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CheckpointHooksTest {
+
+  private static final String PREFIX = CheckpointHooksTest.class.getName() + "$";
+
+  @Test
+  void register_cracNotAvailable_null() {
+    assertThat(CheckpointHooks.register("org.example.nocrac.", () -> {}, () -> {})).isNull();
+  }
+
+  @Test
+  void register_invokesHooks() throws Exception {
+    List<String> calls = new ArrayList<>();
+    CheckpointHooks hooks = CheckpointHooks.register(PREFIX, () -> calls.add("before"), () -> calls.add("after"));
+    assertThat(hooks).isNotNull();
+
+    Resource resource = Core.CONTEXT.resources.get(Core.CONTEXT.resources.size() - 1);
+    resource.beforeCheckpoint(Core.CONTEXT);
+    resource.afterRestore(Core.CONTEXT);
+    assertThat(calls).containsExactly("before", "after");
+  }
+
+  @Test
+  void hookException_notPropagated() throws Exception {
+    CheckpointHooks.register(PREFIX, () -> {
+      throw new IllegalStateException("boom");
+    }, () -> {});
+
+    Resource resource = Core.CONTEXT.resources.get(Core.CONTEXT.resources.size() - 1);
+    resource.beforeCheckpoint(Core.CONTEXT);
+  }
+
+  /** Stand-in for org.crac.Resource. */
+  public interface Resource {
+    void beforeCheckpoint(Context context) throws Exception;
+
+    void afterRestore(Context context) throws Exception;
+  }
+
+  /** Stand-in for org.crac.Context. */
+  public static class Context {
+    final List<Resource> resources = new ArrayList<>();
+
+    public void register(Resource resource) {
+      resources.add(resource);
+    }
+  }
+
+  /** Stand-in for org.crac.Core. */
+  public static class Core {
+    static final Context CONTEXT = new Context();
+
+    public static Context getGlobalContext() {
+      return CONTEXT;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package io.ebean.insight;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DirectiveChannelTest {
+
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+  private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+  private final CountDownLatch release = new CountDownLatch(1);
+  private HttpServer server;
+  private DirectiveChannel channel;
+
+  @AfterEach
+  void tearDown() {
+    if (channel != null) {
+      channel.stop();
+    }
+    release.countDown();
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  private URI serve(Handler handler) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/ingest/directives", exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        exchange.close();
+      }
+    });
+    server.start();
+    return URI.create("http://localhost:" + server.getAddress().getPort() + "/api/ingest/directives");
+  }
+
+  private static void events(HttpExchange exchange, String... events) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    for (String event : events) {
+      out.write(event.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+  }
+
+  @Test
+  void line_parsesEvents() {
+    List<String> messages = new ArrayList<>();
+    var channel = new DirectiveChannel(() -> httpClient, URI.create("http://localhost"), "key", 1000, messages::add);
+    channel.line(": keep alive");
+    channel.line("");
+    channel.line("event: directive");
+    channel.line("data: v1|qp:h1");
+    channel.line("");
+    channel.line("data:v1|qp:h2");
+    channel.line("data: db:other");
+    channel.line("id: 42");
+    channel.line("");
+    channel.line("");
+
+    assertThat(messages).containsExactly("v1|qp:h1", "v1|qp:h2\ndb:other");
+  }
+
+  @Test
+  void line_listenerThrows_continues() {
+    List<String> messages = new ArrayList<>();
+    var channel = new DirectiveChannel(() -> httpClient, URI.create("http://localhost"), "key", 1000, message -> {
+      if (message.equals("bad")) {
+        throw new IllegalStateException("bad");
+      }
+      messages.add(message);
+    });
+    channel.line("data: bad");
+    channel.line("");
+    channel.line("data: good");
+    channel.line("");
+
+    assertThat(messages).containsExactly("good");
+  }
+
+  @Test
+  void subscribe_receivesPushedDirectives() throws Exception {
+    List<String> headers = new CopyOnWriteArrayList<>();
+    URI uri = serve(exchange -> {
+      headers.add(exchange.getRequestHeaders().getFirst("Accept"));
+      headers.add(exchange.getRequestHeaders().getFirst("Insight-Key"));
+      events(exchange, ": hi\n\n", "data: v1|qp:h1\n\n", "data: v1|qp:h2\n\n");
+      release.await();
+    });
+    channel = new DirectiveChannel(() -> httpClient, uri, "myKey", 50, received::add);
+    channel.start();
+
+    assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("v1|qp:h1");
+    assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("v1|qp:h2");
+    assertThat(headers).containsExactly("text/event-stream", "myKey");
+  }
+
+  @Test
+  void subscribe_endedByServer_reconnects() throws Exception {
+    AtomicInteger connections = new AtomicInteger();
+    URI uri = serve(exchange -> events(exchange, "data: v1|qp:h" + connections.incrementAndGet() + "\n\n"));
+    channel = new DirectiveChannel(() -> httpClient, uri, "key", 50, received::add);
+    channel.start();
+
+    assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("v1|qp:h1");
+    assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("v1|qp:h2");
+  }
+
+  @Test
+  void stop_closesSubscription() throws Exception {
+    AtomicInteger connections = new AtomicInteger();
+    URI uri = serve(exchange -> {
+      connections.incrementAndGet();
+      events(exchange, "data: v1|qp:h1\n\n");
+      release.await();
+    });
+    channel = new DirectiveChannel(() -> httpClient, uri, "key", 50, received::add);
+    channel.start();
+    assertThat(received.poll(5, TimeUnit.SECONDS)).isEqualTo("v1|qp:h1");
+
+    channel.stop();
+    assertThat(channel.isRunning()).isFalse();
+    release.countDown();
+    Thread.sleep(300);
+    assertThat(connections.get()).isEqualTo(1);
+    assertThat(received).isEmpty();
+  }
+
+  interface Handler {
+    void handle(HttpExchange exchange) throws IOException, InterruptedException;
+  }
+}
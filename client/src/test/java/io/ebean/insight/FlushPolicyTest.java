@@ -0,0 +1,59 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FlushPolicyTest {
+
+  @Test
+  void due_everyInvocations() {
+    var policy = new FlushPolicy(3, 0, 0, 0);
+    assertThat(policy.due(0, 0)).isFalse();
+    assertThat(policy.due(0, 0)).isFalse();
+    assertThat(policy.due(0, 0)).isTrue();
+    // reset after the flush
+    assertThat(policy.due(0, 0)).isFalse();
+  }
+
+  @Test
+  void of_secsOnly_flushesByTimeNotEveryInvocation() {
+    var policy = FlushPolicy.of(0, 10_000, 0, 1_000);
+    assertThat(policy).isNotNull();
+    assertThat(policy.due(0, 2_000)).isFalse();
+    assertThat(policy.due(0, 5_000)).isFalse();
+    assertThat(policy.due(0, 11_000)).isTrue();
+  }
+
+  @Test
+  void of_noTrigger_null() {
+    assertThat(FlushPolicy.of(0, 0, 0, 0)).isNull();
+    assertThat(FlushPolicy.of(1, 0, 0, 0)).isNull();
+    assertThat(FlushPolicy.of(2, 0, 0, 0)).isNotNull();
+  }
+
+  @Test
+  void due_everyMillis() {
+    var policy = new FlushPolicy(0, 10_000, 0, 1_000);
+    assertThat(policy.due(0, 5_000)).isFalse();
+    assertThat(policy.due(0, 11_000)).isTrue();
+    assertThat(policy.due(0, 20_000)).isFalse();
+    assertThat(policy.due(0, 21_000)).isTrue();
+  }
+
+  @Test
+  void due_maxBytes() {
+    var policy = new FlushPolicy(0, 0, 1_000, 0);
+    assertThat(policy.due(999, 0)).isFalse();
+    assertThat(policy.due(1_000, 0)).isTrue();
+  }
+
+  @Test
+  void reset_explicitFlush() {
+    var policy = new FlushPolicy(2, 10_000, 0, 0);
+    assertThat(policy.due(0, 0)).isFalse();
+    policy.reset(9_000);
+    assertThat(policy.due(0, 10_000)).isFalse();
+    assertThat(policy.due(0, 10_000)).isTrue();
+  }
+}
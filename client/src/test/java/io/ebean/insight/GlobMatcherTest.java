@@ -0,0 +1,80 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GlobMatcherTest {
+
+  @Test
+  void of_empty_returnsNull() {
+    assertThat(GlobMatcher.of(List.of())).isNull();
+    assertThat(GlobMatcher.of(null)).isNull();
+  }
+
+  @Test
+  void literal() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("jvm.memory"));
+    assertThat(matcher.matches("jvm.memory")).isTrue();
+    assertThat(matcher.matches("jvm.memor")).isFalse();
+    assertThat(matcher.matches("jvm.memory.used")).isFalse();
+  }
+
+  @Test
+  void prefixStar() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("db.query.*"));
+    assertThat(matcher.matches("db.query.")).isTrue();
+    assertThat(matcher.matches("db.query.Customer.findList")).isTrue();
+    assertThat(matcher.matches("db.queryx")).isFalse();
+    assertThat(matcher.matches("txn.main")).isFalse();
+  }
+
+  @Test
+  void innerStarAndQuestion() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("orm.*.find?ist"));
+    assertThat(matcher.matches("orm.Customer.findList")).isTrue();
+    assertThat(matcher.matches("orm.a.b.findList")).isTrue();
+    assertThat(matcher.matches("orm.Customer.findCount")).isFalse();
+    assertThat(matcher.matches("orm..findList")).isTrue();
+  }
+
+  @Test
+  void multiplePatterns() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("a*", "*z", "m?m"));
+    assertThat(matcher.matches("abc")).isTrue();
+    assertThat(matcher.matches("xyz")).isTrue();
+    assertThat(matcher.matches("mom")).isTrue();
+    assertThat(matcher.matches("moom")).isFalse();
+    assertThat(matcher.matches("b")).isFalse();
+  }
+
+  @Test
+  void starMatchesEverything() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("*"));
+    assertThat(matcher.matches("")).isTrue();
+    assertThat(matcher.matches("anything at all")).isTrue();
+  }
+
+  @Test
+  void matches_prefixAndValue() {
+    GlobMatcher matcher = GlobMatcher.of(List.of("db:tenant*"));
+    assertThat(matcher.matches("db:", "tenant42")).isTrue();
+    assertThat(matcher.matches("db:", "main")).isFalse();
+  }
+
+  @Test
+  void tooManyStates_matchesWithoutAutomaton() {
+    // '*a' followed by 14 '?' needs 2^15 states as a deterministic automaton
+    String anyChars = "??????????????";
+    GlobMatcher matcher = GlobMatcher.of(List.of("*a" + anyChars, "jvm.*"));
+    assertThat(matcher).isNotNull();
+
+    assertThat(matcher.matches("zza" + "b".repeat(14))).isTrue();
+    assertThat(matcher.matches("zza" + "b".repeat(13))).isFalse();
+    assertThat(matcher.matches("jvm.memory")).isTrue();
+    assertThat(matcher.matches("jvm.", "threads")).isTrue();
+    assertThat(matcher.matches("db.", "query")).isFalse();
+  }
+}
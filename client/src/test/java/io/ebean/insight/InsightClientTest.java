@@ -237,6 +237,66 @@ class InsightClientTest {
       .contains("\"metrics\":[{\"name\":\"datasource.pool.size\",\"value\":10,\"tags\":[\"db:h2\",\"type:main\"]}]");
   }
 
+  @Test
+  void buildExternalMetricsJson_metricsExclude() {
+    InsightClient client = InsightClient.builder()
+      .metricsExclude("datasource.*")
+      .build();
+
+    var stats = List.<Metric.Statistics>of(
+      new GaugeLongStats(Metric.ID.of("datasource.pool.size", Tags.of("db:h2")), 10),
+      new GaugeLongStats(Metric.ID.of("jvm.threads", Tags.of()), 5));
+
+    String json = client.buildJson(Collections.emptyList(), stats);
+
+    assertThat(json)
+      .contains("\"name\":\"jvm.threads\"")
+      .doesNotContain("datasource.pool.size");
+  }
+
+  @Test
+  void buildExternalMetricsJson_suppressUnchanged_heartbeat() {
+    InsightClient client = InsightClient.builder()
+      .environment("e")
+      .appName("a")
+      .suppressUnchanged(true)
+      .resourceAttribute("service.name", "s")
+      .build();
+
+    var stats = List.<Metric.Statistics>of(
+      new GaugeLongStats(Metric.ID.of("datasource.pool.size", Tags.of("db:h2")), 10));
+
+    assertThat(client.buildJson(Collections.emptyList(), stats))
+      .contains("\"metrics\":[")
+      .contains("\"resAttrs\"")
+      .doesNotContain("\"heartbeat\"");
+
+    // the same header as the collected metrics
+    assertThat(client.buildJson(Collections.emptyList(), stats))
+      .contains("\"heartbeat\":true")
+      .contains("\"resAttrs\"")
+      .contains("\"latency\"")
+      .doesNotContain("\"metrics\":[");
+  }
+
+  @Test
+  void suppressUnchanged_defaultFalse() {
+    assertThat(InsightClient.builder().suppressUnchanged()).isFalse();
+    assertThat(InsightClient.builder().suppressUnchanged(true).suppressUnchanged()).isTrue();
+  }
+
+  @Test
+  void uploadEveryPeriods_defaultsTo1() {
+    assertThat(InsightClient.builder().uploadEveryPeriods()).isEqualTo(1);
+    assertThat(InsightClient.builder().uploadEveryPeriods(6).uploadEveryPeriods()).isEqualTo(6);
+  }
+
+  @Test
+  void metricsInclude_configPatterns() {
+    assertThat(InsightClient.Builder.patterns(" db.* , ,jvm.?c ")).containsExactly("db.*", "jvm.?c");
+    assertThat(InsightClient.Builder.patterns(null)).isEmpty();
+  }
+
   @Test
   void buildExternalMetricsJson_v2_usesCanonicalTags() {
     InsightClient client = InsightClient.builder()
@@ -455,6 +515,18 @@ class InsightClientTest {
       .doesNotContain("orm.Customer.findList");
   }
 
+  @Test
+  void restoredInstanceId() {
+    assertThat(InsightClient.restoredInstanceId("pod-1", "pod-2")).isEqualTo("pod-2");
+
+    // same as in the snapshot, made unique
+    String restored = InsightClient.restoredInstanceId("pod-1", "pod-1");
+    assertThat(restored).startsWith("pod-1-");
+    assertThat(restored.length()).isEqualTo(14);
+    assertThat(InsightClient.restoredInstanceId("pod-1", "pod-1")).isNotEqualTo(restored);
+    assertThat(InsightClient.restoredInstanceId(null, null).length()).isEqualTo(8);
+  }
+
   static class Customer {
   }
 
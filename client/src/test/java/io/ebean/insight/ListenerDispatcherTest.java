@@ -0,0 +1,123 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ListenerDispatcherTest {
+
+  @Test
+  void async_deliveredOnListenerThread() throws InterruptedException {
+    var dispatcher = new ListenerDispatcher("test-listener", 10, ListenerOverflow.DROP_NEWEST);
+    dispatcher.start();
+    List<String> threads = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(2);
+    Consumer<String> listener = dispatcher.async(value -> {
+      threads.add(Thread.currentThread().getName() + ":" + value);
+      latch.countDown();
+    });
+
+    listener.accept("a");
+    listener.accept("b");
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(threads).containsExactly("test-listener:a", "test-listener:b");
+  }
+
+  @Test
+  void dispatch_full_dropNewest() {
+    // not started so the queue fills up
+    var dispatcher = new ListenerDispatcher("test", 2, ListenerOverflow.DROP_NEWEST);
+    List<String> ran = new ArrayList<>();
+    dispatcher.dispatch(() -> ran.add("a"));
+    dispatcher.dispatch(() -> ran.add("b"));
+    dispatcher.dispatch(() -> ran.add("c"));
+
+    assertThat(dispatcher.size()).isEqualTo(2);
+    assertThat(dispatcher.dropped()).isEqualTo(1L);
+    assertThat(ran).isEmpty();
+  }
+
+  @Test
+  void dispatch_full_dropOldest() throws InterruptedException {
+    var dispatcher = new ListenerDispatcher("test", 2, ListenerOverflow.DROP_OLDEST);
+    List<String> ran = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(2);
+    for (String value : List.of("a", "b", "c")) {
+      dispatcher.dispatch(() -> {
+        ran.add(value);
+        latch.countDown();
+      });
+    }
+    assertThat(dispatcher.dropped()).isEqualTo(1L);
+
+    dispatcher.start();
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran).containsExactly("b", "c");
+  }
+
+  @Test
+  void dispatch_full_callerRuns() {
+    var dispatcher = new ListenerDispatcher("test", 1, ListenerOverflow.CALLER_RUNS);
+    List<String> ran = new ArrayList<>();
+    dispatcher.dispatch(() -> ran.add("a"));
+    dispatcher.dispatch(() -> ran.add("b"));
+
+    assertThat(ran).containsExactly("b");
+    assertThat(dispatcher.dropped()).isEqualTo(0L);
+  }
+
+  @Test
+  void stop_listenerNotInterrupted_queuedNotDelivered() throws InterruptedException {
+    var dispatcher = new ListenerDispatcher("test-stop", 10, ListenerOverflow.DROP_NEWEST);
+    dispatcher.start();
+    var running = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var done = new CountDownLatch(1);
+    var interrupted = new AtomicBoolean();
+    var delivered = new AtomicBoolean();
+    dispatcher.dispatch(() -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        interrupted.set(true);
+      }
+      done.countDown();
+    });
+    dispatcher.dispatch(() -> delivered.set(true));
+    assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+
+    dispatcher.stop();
+    release.countDown();
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    Thread.sleep(50);
+    assertThat(interrupted.get()).isFalse();
+    assertThat(delivered.get()).isFalse();
+  }
+
+  @Test
+  void all_exceptionDoesNotStopOthers() {
+    List<String> received = new ArrayList<>();
+    Consumer<String> all = ListenerDispatcher.all(List.of(
+      value -> {
+        throw new RuntimeException("boom");
+      },
+      received::add));
+
+    all.accept("a");
+    assertThat(received).containsExactly("a");
+  }
+
+  @Test
+  void all_none_null() {
+    assertThat(ListenerDispatcher.<String>all(List.of())).isNull();
+  }
+}
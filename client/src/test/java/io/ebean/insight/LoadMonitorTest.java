@@ -0,0 +1,68 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LoadMonitorTest {
+
+  private final AtomicLong clock = new AtomicLong(1_000_000);
+  private final AtomicLong gc = new AtomicLong();
+  private double cpu;
+
+  private LoadMonitor monitor(int cpuPercent, int gcPercent, long budgetMillis, int maxDeferred) {
+    return new LoadMonitor(cpuPercent, gcPercent, budgetMillis, maxDeferred, () -> cpu, gc::get, clock::get);
+  }
+
+  @Test
+  void defer_cpuOverThreshold() {
+    LoadMonitor monitor = monitor(80, 0, 0, 3);
+    cpu = 0.5;
+    assertThat(monitor.defer()).isFalse();
+    cpu = 0.9;
+    assertThat(monitor.defer()).isTrue();
+    cpu = 0.2;
+    assertThat(monitor.defer()).isFalse();
+    assertThat(monitor.deferredCount()).isEqualTo(1L);
+  }
+
+  @Test
+  void defer_gcTimeSinceLastCheck() {
+    LoadMonitor monitor = monitor(0, 20, 0, 3);
+    clock.addAndGet(10_000);
+    gc.addAndGet(1_000);
+    assertThat(monitor.defer()).isFalse();
+
+    clock.addAndGet(10_000);
+    gc.addAndGet(3_000);
+    assertThat(monitor.defer()).isTrue();
+  }
+
+  @Test
+  void defer_slowCycle_defersTheNextOnly() {
+    LoadMonitor monitor = monitor(0, 0, 100, 3);
+    monitor.cycleTime(50_000);
+    assertThat(monitor.defer()).isFalse();
+    monitor.cycleTime(250_000);
+    assertThat(monitor.defer()).isTrue();
+    assertThat(monitor.defer()).isFalse();
+  }
+
+  @Test
+  void defer_limitedToMaxInARow() {
+    LoadMonitor monitor = monitor(50, 0, 0, 2);
+    cpu = 1.0;
+    assertThat(monitor.defer()).isTrue();
+    assertThat(monitor.defer()).isTrue();
+    assertThat(monitor.defer()).isFalse();
+    assertThat(monitor.defer()).isTrue();
+  }
+
+  @Test
+  void platformSignals() {
+    assertThat(LoadMonitor.gcMillis()).isGreaterThanOrEqualTo(0);
+    assertThat(LoadMonitor.processCpuLoad()).isBetween(-1, 1);
+  }
+}
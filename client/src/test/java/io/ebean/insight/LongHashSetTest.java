@@ -0,0 +1,33 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongHashSetTest {
+
+  @Test
+  void add_contains() {
+    LongHashSet set = new LongHashSet(2);
+    assertThat(set.add(5L)).isTrue();
+    assertThat(set.add(5L)).isFalse();
+    assertThat(set.add(0L)).isTrue();
+    assertThat(set.add(0L)).isFalse();
+    assertThat(set.contains(5L)).isTrue();
+    assertThat(set.contains(0L)).isTrue();
+    assertThat(set.contains(6L)).isFalse();
+    assertThat(set.size()).isEqualTo(2);
+  }
+
+  @Test
+  void resize_keepsValues() {
+    LongHashSet set = new LongHashSet(2);
+    for (long i = 1; i <= 500; i++) {
+      set.add(i << 20);
+    }
+    assertThat(set.size()).isEqualTo(500);
+    for (long i = 1; i <= 500; i++) {
+      assertThat(set.contains(i << 20)).isTrue();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongLongMapTest {
+
+  @Test
+  void putGet() {
+    LongLongMap map = new LongLongMap(4);
+    map.put(42L, 7L);
+    map.put(-3L, 9L);
+
+    assertThat(map.get(42L, -1)).isEqualTo(7L);
+    assertThat(map.get(-3L, -1)).isEqualTo(9L);
+    assertThat(map.get(5L, -1)).isEqualTo(-1L);
+    assertThat(map.containsKey(42L)).isTrue();
+    assertThat(map.containsKey(5L)).isFalse();
+    assertThat(map.size()).isEqualTo(2);
+
+    map.put(42L, 8L);
+    assertThat(map.get(42L, -1)).isEqualTo(8L);
+    assertThat(map.size()).isEqualTo(2);
+  }
+
+  @Test
+  void zeroKey() {
+    LongLongMap map = new LongLongMap(4);
+    assertThat(map.containsKey(0L)).isFalse();
+    map.put(0L, 1L);
+    assertThat(map.containsKey(0L)).isTrue();
+    assertThat(map.get(0L, -1)).isEqualTo(1L);
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test
+  void resize_keepsEntries() {
+    LongLongMap map = new LongLongMap(2);
+    for (long i = 1; i <= 1000; i++) {
+      map.put(i * 31, i);
+    }
+    assertThat(map.size()).isEqualTo(1000);
+    for (long i = 1; i <= 1000; i++) {
+      assertThat(map.get(i * 31, -1)).isEqualTo(i);
+    }
+    map.clear();
+    assertThat(map.size()).isEqualTo(0);
+    assertThat(map.containsKey(31L)).isFalse();
+  }
+}
@@ -0,0 +1,107 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Tags;
+import io.avaje.metrics.stats.GaugeLongStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaCountMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetricFilterTest {
+
+  @Test
+  void of_noPatterns_returnsNull() {
+    assertThat(MetricFilter.of(List.of(), List.of())).isNull();
+  }
+
+  @Test
+  void include_byNameOrTag() {
+    MetricFilter filter = MetricFilter.of(List.of("jvm.*", "db:h2"), List.of());
+
+    assertThat(filter.include(gauge("jvm.memory.used"))).isTrue();
+    assertThat(filter.include(gauge("pool.size", "db:h2"))).isTrue();
+    assertThat(filter.include(gauge("pool.size", "db:pg"))).isFalse();
+    assertThat(filter.include(gauge("other"))).isFalse();
+  }
+
+  @Test
+  void include_tagMatchedAsKeyValue() {
+    MetricFilter filter = MetricFilter.of(List.of("h2"), List.of());
+    assertThat(filter.include(gauge("pool.size", "db:h2"))).isFalse();
+
+    filter = MetricFilter.of(List.of("*:h2"), List.of());
+    assertThat(filter.include(gauge("pool.size", "db:h2"))).isTrue();
+  }
+
+  @Test
+  void exclude_winsOverInclude() {
+    MetricFilter filter = MetricFilter.of(List.of("jvm.*"), List.of("jvm.gc.*"));
+
+    assertThat(filter.include(gauge("jvm.memory.used"))).isTrue();
+    assertThat(filter.include(gauge("jvm.gc.time"))).isFalse();
+  }
+
+  @Test
+  void filterMetrics() {
+    MetricFilter filter = MetricFilter.of(List.of(), List.of("*.skip"));
+    var keep = gauge("a.keep");
+    var result = filter.filterMetrics(List.of(keep, gauge("a.skip")));
+    assertThat(result).containsExactly(keep);
+  }
+
+  @Test
+  void filter_databaseMetrics() {
+    MetricFilter filter = MetricFilter.of(List.of(), List.of("txn.*"));
+
+    var db = new BasicMetricVisitor("main", MetricNamingMatch.INSTANCE, false, true, true, true);
+    MetaCountMetric txn = new Count("txn.main");
+    MetaCountMetric l2 = new Count("l2.hit");
+    db.visitCount(txn);
+    db.visitCount(l2);
+
+    ServerMetrics filtered = filter.filter(db);
+    assertThat(filtered.name()).isEqualTo("main");
+    assertThat(filtered.countMetrics()).containsExactly(l2);
+  }
+
+  @Test
+  void filter_databaseMetrics_byDbTag() {
+    MetricFilter filter = MetricFilter.of(List.of(), List.of("db:tenant*"));
+
+    var tenant = new BasicMetricVisitor("tenant1", MetricNamingMatch.INSTANCE, false, true, true, true);
+    tenant.visitCount(new Count("txn.main"));
+    var main = new BasicMetricVisitor("main", MetricNamingMatch.INSTANCE, false, true, true, true);
+    main.visitCount(new Count("txn.main"));
+
+    assertThat(filter.filter(tenant).countMetrics()).isEmpty();
+    assertThat(filter.filter(main)).isSameAs(main);
+  }
+
+  private static Metric.Statistics gauge(String name, String... tags) {
+    return new GaugeLongStats(Metric.ID.of(name, Tags.of(tags)), 1);
+  }
+
+  private static final class Count implements MetaCountMetric {
+    private final String name;
+
+    Count(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String name() {
+      return name;
+    }
+
+    @Override
+    public long count() {
+      return 1;
+    }
+  }
+}
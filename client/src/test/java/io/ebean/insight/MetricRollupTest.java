@@ -0,0 +1,125 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Counter;
+import io.avaje.metrics.GaugeLong;
+import io.avaje.metrics.Meter;
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.Tags;
+import io.avaje.metrics.stats.CounterStats;
+import io.avaje.metrics.stats.GaugeLongStats;
+import io.avaje.metrics.stats.MeterStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetricRollupTest {
+
+  private static final Metric.ID TIMER = Metric.ID.of("web.api", Tags.of());
+  private static final Metric.ID COUNTER = Metric.ID.of("events", Tags.of());
+  private static final Metric.ID GAUGE = Metric.ID.of("pool.size", Tags.of("db:h2"));
+
+  @Test
+  void add_mergesPeriodsIntoOneWindow() {
+    MetricRollup rollup = new MetricRollup(3, 10, 2);
+    long start = System.currentTimeMillis();
+
+    assertThat(rollup.add(null, period(2, 100, 70, 5, 10), start + 10_000)).isNull();
+    assertThat(rollup.add(null, period(1, 20, 20, 0, 12), start + 20_000)).isNull();
+    MetricRollup.Window window = rollup.add(null, period(3, 90, 50, 1, 11), start + 30_000);
+
+    assertThat(window).isNotNull();
+    List<Metric.Statistics> metrics = window.avajeMetrics();
+    assertThat(metrics).hasSize(3);
+
+    var timer = (Meter.Stats) metrics.get(0);
+    assertThat(timer.id()).isSameAs(TIMER);
+    assertThat(timer.count()).isEqualTo(6L);
+    assertThat(timer.total()).isEqualTo(210L);
+    assertThat(timer.max()).isEqualTo(70L);
+    assertThat(((Counter.Stats) metrics.get(1)).count()).isEqualTo(6L);
+    assertThat(((GaugeLong.Stats) metrics.get(2)).value()).isEqualTo(11L);
+  }
+
+  @Test
+  void merge_thenDrain() {
+    MetricRollup rollup = new MetricRollup(1, 10, 2);
+    assertThat(rollup.isEmpty()).isTrue();
+
+    rollup.merge(null, period(1, 10, 10, 1, 1));
+    rollup.merge(null, period(2, 30, 20, 2, 5));
+    assertThat(rollup.isEmpty()).isFalse();
+
+    MetricRollup.Window window = rollup.drain(System.currentTimeMillis());
+    assertThat(((Meter.Stats) window.avajeMetrics().get(0)).count()).isEqualTo(3L);
+    assertThat(((Counter.Stats) window.avajeMetrics().get(1)).count()).isEqualTo(3L);
+    assertThat(rollup.isEmpty()).isTrue();
+  }
+
+  @Test
+  void estimatedBytes_perSeries() {
+    MetricRollup rollup = new MetricRollup(1, 10, 2);
+    assertThat(rollup.estimatedBytes()).isEqualTo(0L);
+
+    rollup.merge(List.of(TopQueriesTest.database(TopQueriesTest.query("orm.A", "ha", 1, 10))), period(1, 10, 10, 1, 1));
+    // three avaje series and one query series with its sql "select ha"
+    assertThat(rollup.estimatedBytes()).isEqualTo(4 * 80 + 9L);
+
+    // the same series again
+    rollup.merge(List.of(TopQueriesTest.database(TopQueriesTest.query("orm.A", "ha", 1, 10))), period(1, 10, 10, 1, 1));
+    assertThat(rollup.estimatedBytes()).isEqualTo(4 * 80 + 9L);
+
+    rollup.drain(System.currentTimeMillis());
+    assertThat(rollup.estimatedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  void add_resetsForNextWindow() {
+    MetricRollup rollup = new MetricRollup(2, 10, 2);
+    long start = System.currentTimeMillis();
+
+    assertThat(rollup.add(null, period(1, 10, 10, 1, 1), start + 10_000)).isNull();
+    assertThat(rollup.add(null, period(1, 10, 10, 1, 1), start + 20_000)).isNotNull();
+
+    assertThat(rollup.add(null, period(4, 40, 10, 1, 1), start + 30_000)).isNull();
+    MetricRollup.Window window = rollup.add(null, List.of(), start + 40_000);
+    assertThat(((Meter.Stats) window.avajeMetrics().get(0)).count()).isEqualTo(4L);
+  }
+
+  @Test
+  void add_mergesDatabaseMetrics() {
+    MetricRollup rollup = new MetricRollup(2, 10, 8);
+    long start = System.currentTimeMillis();
+
+    assertThat(rollup.add(List.of(database("one", 2, 30), database("two", 1, 5)), null, start + 10_000)).isNull();
+    MetricRollup.Window window = rollup.add(List.of(database("one", 3, 10)), null, start + 20_000);
+
+    List<ServerMetrics> databases = window.databaseMetrics();
+    assertThat(databases).hasSize(2);
+    ServerMetrics one = databases.get(0);
+    assertThat(one.name()).isEqualTo("one");
+    assertThat(one.timedMetrics().get(0).count()).isEqualTo(5L);
+    assertThat(one.timedMetrics().get(0).total()).isEqualTo(40L);
+    assertThat(one.timedMetrics().get(0).max()).isEqualTo(30L);
+    assertThat(one.countMetrics().get(0).count()).isEqualTo(5L);
+    assertThat(databases.get(1).name()).isEqualTo("two");
+  }
+
+  private static List<Metric.Statistics> period(long count, long total, long max, long events, long gauge) {
+    return List.of(
+      new MeterStats(TIMER, count, total, max),
+      new CounterStats(COUNTER, events),
+      new GaugeLongStats(GAUGE, gauge));
+  }
+
+  private static ServerMetrics database(String name, long count, long max) {
+    var db = new BasicMetricVisitor(name, MetricNamingMatch.INSTANCE, false, true, true, true);
+    db.visitTimed(new DbTimedMetric("txn.main", null, count, count * 8, max));
+    db.visitCount(new DbCountMetric("l2.hit", count));
+    return db;
+  }
+}
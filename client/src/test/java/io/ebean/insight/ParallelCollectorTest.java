@@ -0,0 +1,122 @@
+package io.ebean.insight;
+
+import io.ebean.Database;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParallelCollectorTest {
+
+  static Database database(String name) {
+    return (Database) Proxy.newProxyInstance(Database.class.getClassLoader(), new Class<?>[]{Database.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "name":
+          case "toString":
+            return name;
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "equals":
+            return proxy == args[0];
+          default:
+            return null;
+        }
+      });
+  }
+
+  @Test
+  void collect_inDatabaseOrder() {
+    List<Database> dbs = List.of(database("a"), database("b"), database("c"), database("d"));
+    var collector = new ParallelCollector<String>(3, 5000, db -> {
+      if (db.name().equals("a")) {
+        sleep(50);
+      }
+      return db.name() + ":" + Thread.currentThread().getName().startsWith("ebeanInsightCollect-");
+    });
+    try {
+      assertThat(collector.collect(dbs)).containsExactly("a:true", "b:true", "c:true", "d:true");
+      assertThat(collector.collect(dbs)).containsExactly("a:true", "b:true", "c:true", "d:true");
+    } finally {
+      collector.shutdown();
+    }
+  }
+
+  @Test
+  void collect_slowDatabase_lateResultDropped() throws InterruptedException {
+    Database slow = database("slow");
+    Database fast = database("fast");
+    var release = new CountDownLatch(1);
+    var slowCollects = new AtomicInteger();
+    var collector = new ParallelCollector<String>(2, 50, db -> {
+      if (db == slow) {
+        await(release);
+        return "slow" + slowCollects.incrementAndGet();
+      }
+      return db.name();
+    });
+    try {
+      assertThat(collector.collect(List.of(slow, fast))).containsExactly("fast");
+      // still running, not collected again
+      assertThat(collector.collect(List.of(slow, fast))).containsExactly("fast");
+
+      release.countDown();
+      Thread.sleep(50);
+      // the late result is dropped and the database collected again
+      assertThat(collector.collect(List.of(slow, fast))).containsExactly("slow2", "fast");
+    } finally {
+      collector.shutdown();
+    }
+  }
+
+  @Test
+  void collect_budgetPerDatabase() {
+    List<Database> dbs = List.of(database("a"), database("b"), database("c"));
+    // one thread so b and c are queued behind a, together longer than one budget
+    var collector = new ParallelCollector<String>(1, 200, db -> {
+      sleep(120);
+      return db.name();
+    });
+    try {
+      assertThat(collector.collect(dbs)).containsExactly("a", "b", "c");
+    } finally {
+      collector.shutdown();
+    }
+  }
+
+  @Test
+  void collect_error_skipsDatabase() {
+    var collector = new ParallelCollector<String>(2, 5000, db -> {
+      if (db.name().equals("bad")) {
+        throw new IllegalStateException("expected");
+      }
+      return db.name();
+    });
+    try {
+      assertThat(collector.collect(List.of(database("bad"), database("good")))).containsExactly("good");
+    } finally {
+      collector.shutdown();
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package io.ebean.insight;
+
+import io.avaje.metrics.Metric;
+import io.avaje.metrics.stats.CounterStats;
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.ebean.insight.TopQueriesTest.database;
+import static io.ebean.insight.TopQueriesTest.query;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PayloadWriterTest {
+
+  private static void header(JsonSimple json) {
+    json.keyVal("appName", "app");
+    json.keyVal("eventTime", 42L);
+  }
+
+  private static List<Metric.Statistics> counters(int size) {
+    List<Metric.Statistics> metrics = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      metrics.add(new CounterStats(Metric.ID.of("app.counter" + i), i + 1));
+    }
+    return metrics;
+  }
+
+  @Test
+  void write_noLimit_singlePart() {
+    List<String> parts = new ArrayList<>();
+    new PayloadWriter(0, false, PayloadWriterTest::header, parts::add)
+      .write(List.of(database(query("orm.A", "a", 1, 10))), counters(20));
+
+    assertThat(parts).hasSize(1);
+    String json = parts.get(0);
+    assertThat(json).startsWith("{\"appName\":\"app\" ,\"eventTime\":42 ,\"dbs\":[");
+    assertThat(json).contains("app.counter19");
+    assertThat(json).doesNotContain("\"part\"");
+    assertThat(json).doesNotContain("lastPart");
+  }
+
+  @Test
+  void write_nothing_headerOnly() {
+    List<String> parts = new ArrayList<>();
+    new PayloadWriter(100, false, PayloadWriterTest::header, parts::add).write(null, List.of());
+
+    assertThat(parts).containsExactly("{\"appName\":\"app\" ,\"eventTime\":42}");
+  }
+
+  @Test
+  void write_overLimit_splitsIntoParts() {
+    List<String> parts = new ArrayList<>();
+    new PayloadWriter(300, false, PayloadWriterTest::header, parts::add).write(null, counters(50));
+
+    assertThat(parts.size()).isGreaterThan(1);
+    StringBuilder all = new StringBuilder();
+    for (int i = 0; i < parts.size(); i++) {
+      String part = parts.get(i);
+      assertThat(part.length()).isLessThanOrEqualTo(300);
+      assertThat(part).startsWith("{\"appName\":\"app\" ,\"eventTime\":42 ,\"metrics\":[");
+      assertThat(part).contains("\"part\":" + i);
+      if (i == parts.size() - 1) {
+        assertThat(part).endsWith(",\"lastPart\":true}");
+      } else {
+        assertThat(part).doesNotContain("lastPart");
+      }
+      all.append(part);
+    }
+    for (int i = 0; i < 50; i++) {
+      assertThat(all.toString()).contains("app.counter" + i + "\"");
+    }
+  }
+
+  @Test
+  void write_databasesBeforeMetrics_acrossParts() {
+    List<ServerMetrics> dbs = List.of(
+      database(query("orm.A", "a", 1, 10)),
+      database(query("orm.B", "b", 1, 10)));
+
+    List<String> parts = new ArrayList<>();
+    new PayloadWriter(200, true, PayloadWriterTest::header, parts::add).write(dbs, counters(3));
+
+    assertThat(parts.size()).isGreaterThan(1);
+    assertThat(parts.get(0)).contains("\"dbs\":[");
+    assertThat(parts.get(0)).contains("\"hash\":\"a\"");
+    String last = parts.get(parts.size() - 1);
+    assertThat(last).contains("app.counter2");
+    assertThat(last).endsWith("\"lastPart\":true}");
+  }
+
+  @Test
+  void write_oversizedDatabase_splitIntoEntriesOfSameDatabase() {
+    var db = new BasicMetricVisitor("big", MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (int i = 0; i < 8; i++) {
+      db.visitQuery(query("orm.Query" + i, "h" + i, 1, 10));
+    }
+    List<String> parts = new ArrayList<>();
+    new PayloadWriter(250, false, PayloadWriterTest::header, parts::add).write(List.of(db), null);
+
+    assertThat(parts.size()).isGreaterThan(1);
+    StringBuilder all = new StringBuilder();
+    for (String part : parts) {
+      assertThat(part).contains("\"db\":\"big\"");
+      all.append(part);
+    }
+    for (int i = 0; i < 8; i++) {
+      assertThat(all.toString()).contains("\"hash\":\"h" + i + "\"");
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package io.ebean.insight;
+
+import io.ebean.meta.QueryPlanInit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PendingPlansTest {
+
+  private static QueryPlanInit init(String hash) {
+    var init = new QueryPlanInit();
+    init.add(hash, 0);
+    return init;
+  }
+
+  @Test
+  void firstCapture_deadlineOrder() {
+    var pending = new PendingPlans(10, 60_000);
+    assertThat(pending.firstCapture()).isEqualTo(-1L);
+
+    pending.addCapture("b", 200);
+    pending.addCapture("a", 100);
+    pending.addCapture("c", 300);
+    assertThat(pending.firstCapture()).isEqualTo(100L);
+
+    assertThat(pending.removeCapture("a")).isEqualTo(100L);
+    assertThat(pending.removeCapture("a")).isNull();
+    assertThat(pending.firstCapture()).isEqualTo(200L);
+  }
+
+  @Test
+  void addCapture_again_movesDeadline() {
+    var pending = new PendingPlans(10, 60_000);
+    pending.addCapture("a", 100);
+    pending.addCapture("b", 200);
+    pending.addCapture("a", 300);
+
+    assertThat(pending.captureSize()).isEqualTo(2);
+    assertThat(pending.firstCapture()).isEqualTo(200L);
+  }
+
+  @Test
+  void addCapture_full_evictsOldest() {
+    var pending = new PendingPlans(2, 60_000);
+    pending.addCapture("a", 100);
+    pending.addCapture("b", 200);
+    pending.addCapture("c", 300);
+
+    assertThat(pending.captureHashes()).containsExactlyInAnyOrder("b", "c");
+    assertThat(pending.captureEvicted()).isEqualTo(1L);
+  }
+
+  @Test
+  void addInit_full_evictsOldest() {
+    var pending = new PendingPlans(2, 60_000);
+    QueryPlanInit first = init("a");
+    pending.addInit(first, 100);
+    pending.addInit(init("b"), 200);
+    pending.addInit(init("c"), 300);
+
+    assertThat(pending.inits()).hasSize(2);
+    assertThat(pending.inits()).doesNotContain(first);
+    assertThat(pending.initEvicted()).isEqualTo(1L);
+  }
+
+  @Test
+  void expire_evictsOlderThanTtl() {
+    var pending = new PendingPlans(10, 1_000);
+    pending.addInit(init("a"), 100);
+    pending.addInit(init("b"), 2_000);
+    pending.addCapture("c", 100);
+    pending.addCapture("d", 2_000);
+
+    pending.expire(2_500);
+    assertThat(pending.inits()).hasSize(1);
+    assertThat(pending.captureHashes()).containsExactly("d");
+    assertThat(pending.initEvicted()).isEqualTo(1L);
+    assertThat(pending.captureEvicted()).isEqualTo(1L);
+
+    pending.expire(10_000);
+    assertThat(pending.hasInit()).isFalse();
+    assertThat(pending.firstCapture()).isEqualTo(-1L);
+  }
+}
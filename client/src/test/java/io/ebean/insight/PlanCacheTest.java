@@ -0,0 +1,77 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanCacheTest {
+
+  @Test
+  void fingerprint_ignoresNumbersAndWhitespace() {
+    long a = PlanCache.fingerprint("Index Scan using ix_customer on customer  (cost=0.29..8.31 rows=1 width=40)");
+    long b = PlanCache.fingerprint("Index Scan using ix_customer on customer (cost=0.42..12.5 rows=120 width=40)\n");
+    assertThat(a).isEqualTo(b);
+  }
+
+  @Test
+  void fingerprint_planShapeChange_differs() {
+    long index = PlanCache.fingerprint("Index Scan using ix_customer on customer (cost=0.29..8.31 rows=1 width=40)");
+    long seq = PlanCache.fingerprint("Seq Scan on customer (cost=0.00..1234.00 rows=1 width=40)");
+    assertThat(index).isNotEqualTo(seq);
+  }
+
+  @Test
+  void fingerprint_separateNumbers_notMerged() {
+    assertThat(PlanCache.fingerprint("a 1 2")).isNotEqualTo(PlanCache.fingerprint("a 1"));
+    assertThat(PlanCache.fingerprint("x 1")).isEqualTo(PlanCache.fingerprint("x 2"));
+    assertThat(PlanCache.fingerprint(null)).isEqualTo(0L);
+  }
+
+  @Test
+  void fingerprint_identifierDigits_kept() {
+    long a = PlanCache.fingerprint("Index Scan using idx_order_1 on t_2024 (cost=0.29..8.31 rows=1)");
+    assertThat(a).isNotEqualTo(PlanCache.fingerprint("Index Scan using idx_order_2 on t_2024 (cost=0.29..8.31 rows=1)"));
+    assertThat(a).isNotEqualTo(PlanCache.fingerprint("Index Scan using idx_order_1 on t_2025 (cost=0.29..8.31 rows=1)"));
+    assertThat(a).isEqualTo(PlanCache.fingerprint("Index Scan using idx_order_1 on t_2024 (cost=1.5..90.2 rows=12)"));
+    assertThat(PlanCache.fingerprint("t1 x")).isNotEqualTo(PlanCache.fingerprint("t2 x"));
+  }
+
+  @Test
+  void unchangedSinceSent_onlyAfterSent() {
+    var cache = new PlanCache(10);
+    cache.put("h", new PlanCache.Entry(1, 100, false));
+    assertThat(cache.unchangedSinceSent("h")).isFalse();
+
+    // captured again, the first upload not (yet) accepted
+    cache.put("h", new PlanCache.Entry(1, 100, false));
+    assertThat(cache.unchangedSinceSent("h")).isFalse();
+
+    cache.sent("h", 1);
+    assertThat(cache.unchangedSinceSent("h")).isTrue();
+    cache.put("h", new PlanCache.Entry(1, 120, false));
+    assertThat(cache.unchangedSinceSent("h")).isTrue();
+    cache.put("h", new PlanCache.Entry(2, 120, false));
+    assertThat(cache.unchangedSinceSent("h")).isFalse();
+  }
+
+  @Test
+  void put_returnsPrevious() {
+    var cache = new PlanCache(10);
+    var first = new PlanCache.Entry(1, 100, false);
+    assertThat(cache.put("h", first)).isNull();
+    assertThat(cache.put("h", new PlanCache.Entry(1, 200, false))).isSameAs(first);
+  }
+
+  @Test
+  void put_evictsLeastRecentlyUsed() {
+    var cache = new PlanCache(2);
+    cache.put("a", new PlanCache.Entry(1, 1, false));
+    cache.put("b", new PlanCache.Entry(2, 2, false));
+    // touch a so b is the eldest
+    cache.put("a", new PlanCache.Entry(1, 1, false));
+    cache.put("c", new PlanCache.Entry(3, 3, false));
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.put("b", new PlanCache.Entry(2, 2, false))).isNull();
+  }
+}
@@ -0,0 +1,58 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static io.ebean.insight.QueryPlanCaptureTest.capture;
+import static io.ebean.insight.QueryPlanCaptureTest.database;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanCaptureRouterTest {
+
+  private final QueryPlanCapture first = capture(database("a", Set.of("h1"), new ArrayList<>()));
+  private final QueryPlanCapture second = capture(database("b", Set.of("h2"), new ArrayList<>()));
+  private final PlanCaptureRouter router = new PlanCaptureRouter(List.of(first, second));
+
+  @Test
+  void process_routesByDatabase() {
+    long now = System.currentTimeMillis();
+    router.process("v1|qp:h1|db:b|qp:h2");
+
+    // each is pending capture, rather than a pending init of a hash that does not execute
+    assertThat(first.nextDelayMillis(now)).isBetween(59_000L, 61_000L);
+    assertThat(second.nextDelayMillis(now)).isBetween(59_000L, 61_000L);
+  }
+
+  @Test
+  void process_noDatabase_first() {
+    router.process("v1|qp:h2");
+
+    assertThat(first.nextDelayMillis(System.currentTimeMillis())).isEqualTo(0L);
+    assertThat(second.nextDelayMillis(System.currentTimeMillis())).isEqualTo(-1L);
+  }
+
+  @Test
+  void process_unknownDatabase_ignored() {
+    router.process("v1|db:other|qp:h1");
+
+    assertThat(first.nextDelayMillis(System.currentTimeMillis())).isEqualTo(-1L);
+    assertThat(second.nextDelayMillis(System.currentTimeMillis())).isEqualTo(-1L);
+  }
+
+  @Test
+  void progress_deadlinePassed_carriedOver() {
+    router.process("v1|qp:h3|db:b|qp:h3");
+
+    router.progress(System.currentTimeMillis() - 1);
+    // pending initialisation not retried yet
+    assertThat(first.nextDelayMillis(System.currentTimeMillis())).isEqualTo(0L);
+    assertThat(second.nextDelayMillis(System.currentTimeMillis())).isEqualTo(0L);
+
+    router.progress(Long.MAX_VALUE);
+    assertThat(first.nextDelayMillis(System.currentTimeMillis())).isBetween(9_000L, 10_000L);
+    assertThat(second.nextDelayMillis(System.currentTimeMillis())).isBetween(9_000L, 10_000L);
+  }
+}
@@ -0,0 +1,100 @@
+package io.ebean.insight;
+
+import io.ebean.meta.MetaQueryPlan;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanPayloadWriterTest {
+
+  private static final Instant WHEN = Instant.parse("2025-01-02T03:04:05.123Z");
+
+  private static List<MetaQueryPlan> plans(int count) {
+    List<MetaQueryPlan> plans = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      plans.add(new InsightClientTest.Plan("select " + i, "h" + i, WHEN));
+    }
+    return plans;
+  }
+
+  @Test
+  void json_sameAsSinglePayload() {
+    var writer = new PlanPayloadWriter("e", "a", 0, 0, 0, 0);
+    assertThat(writer.json(plans(1), Set.of())).isEqualTo("{\"environment\":\"e\" ,\"appName\":\"a\" ,\"plans\":[{\"hash\":\"h0\" ,\"whenCaptured\":\"2025-01-02T03:04:05.123Z\" ,\"label\":\"la\" ,\"queryTimeMicros\":0 ,\"captureMicros\":0 ,\"captureCount\":0 ,\"bind\":\"bi\" ,\"plan\":\"pl\" ,\"sql\":\"select 0\"}]}");
+  }
+
+  @Test
+  void json_truncatesSql() {
+    var writer = new PlanPayloadWriter("e", "a", 0, 10, 0, 0);
+    String json = writer.json(List.of(new InsightClientTest.Plan("select id, name, version from customer", "h", WHEN)), Set.of());
+    assertThat(json).contains("\"sql\":\"select id,\" ,\"truncated\":true}");
+  }
+
+  @Test
+  void json_notTruncated_noFlag() {
+    var writer = new PlanPayloadWriter("e", "a", 2, 100, 2, 0);
+    assertThat(writer.json(plans(1), Set.of())).doesNotContain("truncated");
+  }
+
+  @Test
+  void json_unchangedPlan_samePlanMarkerOnly() {
+    var writer = new PlanPayloadWriter("e", "a", 0, 0, 0, 0);
+    String json = writer.json(plans(2), Set.of("h1"));
+    assertThat(json).contains("\"sql\":\"select 0\"");
+    assertThat(json).contains("{\"hash\":\"h1\" ,\"whenCaptured\":\"2025-01-02T03:04:05.123Z\" ,\"label\":\"la\" ,\"queryTimeMicros\":0 ,\"captureMicros\":0 ,\"captureCount\":0 ,\"samePlan\":true}");
+    assertThat(json).doesNotContain("select 1");
+  }
+
+  @Test
+  void truncate_surrogatePair_notSplit() {
+    String value = "ab😀cd";
+    assertThat(PlanPayloadWriter.truncate(value, 3)).isEqualTo("ab");
+    assertThat(PlanPayloadWriter.truncate(value, 4)).isEqualTo("ab😀");
+    assertThat(PlanPayloadWriter.truncate(value, 10)).isSameAs(value);
+    assertThat(PlanPayloadWriter.truncate(null, 10)).isNull();
+  }
+
+  @Test
+  void write_plansPerRequest_splitsRequests() throws IOException {
+    var writer = new PlanPayloadWriter("e", "a", 0, 0, 0, 2);
+    List<byte[]> bodies = new ArrayList<>();
+    List<List<MetaQueryPlan>> sent = new ArrayList<>();
+    writer.write("db", plans(5), Set.of(), false, (body, plans) -> {
+      bodies.add(body);
+      sent.add(plans);
+    });
+
+    assertThat(bodies).hasSize(3);
+    assertThat(sent.get(0)).hasSize(2);
+    assertThat(sent.get(2)).hasSize(1);
+    String first = new String(bodies.get(0), StandardCharsets.UTF_8);
+    String last = new String(bodies.get(2), StandardCharsets.UTF_8);
+    assertThat(first).startsWith("{\"environment\":\"e\" ,\"appName\":\"a\" ,\"database\":\"db\" ,\"plans\":[{\"hash\":\"h0\"");
+    assertThat(first).contains("\"hash\":\"h1\"");
+    assertThat(first).doesNotContain("\"hash\":\"h2\"");
+    assertThat(last).startsWith("{\"environment\":\"e\" ,\"appName\":\"a\" ,\"database\":\"db\" ,\"plans\":[{\"hash\":\"h4\"");
+    assertThat(last).endsWith("}]}");
+  }
+
+  @Test
+  void write_gzip() throws IOException {
+    var writer = new PlanPayloadWriter("e", "a", 0, 0, 0, 0);
+    List<MetaQueryPlan> plans = plans(3);
+    List<byte[]> bodies = new ArrayList<>();
+    writer.write(null, plans, Set.of(), true, (body, sent) -> bodies.add(body));
+
+    assertThat(bodies).hasSize(1);
+    try (var in = new GZIPInputStream(new ByteArrayInputStream(bodies.get(0)))) {
+      assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(writer.json(plans, Set.of()));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package io.ebean.insight;
+
+import io.ebean.ProfileLocation;
+import io.ebean.meta.MetaQueryPlan;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanTrackerTest {
+
+  private static final String INDEX_SCAN = "Index Scan using ix_customer_name on customer  (cost=0.29..8.31 rows=1 width=40)";
+  private static final String SEQ_SCAN = "Seq Scan on customer  (cost=0.00..1834.00 rows=1 width=40)";
+  private static final String BITMAP_SCAN = "Bitmap Heap Scan on customer  (cost=4.29..12.31 rows=1 width=40)";
+
+  private final PlanTracker tracker = new PlanTracker(100, true, 100, null);
+
+  @Test
+  void track_firstCapture_new() {
+    QueryPlanEvent event = tracker.track("db", new Plan("h", INDEX_SCAN, 100));
+    assertThat(event.type()).isEqualTo(QueryPlanEvent.Type.NEW);
+    assertThat(event.previousQueryTimeMicros()).isEqualTo(0L);
+  }
+
+  @Test
+  void track_samePlanDifferentCosts_unchanged() {
+    tracker.track("db", new Plan("h", INDEX_SCAN, 100));
+    QueryPlanEvent event = tracker.track("db", new Plan("h", INDEX_SCAN.replace("8.31", "9.87"), 120));
+    assertThat(event.type()).isEqualTo(QueryPlanEvent.Type.UNCHANGED);
+    assertThat(event.previousQueryTimeMicros()).isEqualTo(100L);
+  }
+
+  @Test
+  void track_indexToSeqScan_regressed() {
+    tracker.track("db", new Plan("h", INDEX_SCAN, 100));
+    QueryPlanEvent event = tracker.track("db", new Plan("h", SEQ_SCAN, 90));
+    assertThat(event.type()).isEqualTo(QueryPlanEvent.Type.REGRESSED);
+    assertThat(event.isRegression()).isTrue();
+    assertThat(event.fullScan()).isTrue();
+    assertThat(event.previousFullScan()).isFalse();
+  }
+
+  @Test
+  void track_changedSlower_regressed() {
+    tracker.track("db", new Plan("h", INDEX_SCAN, 100));
+    assertThat(tracker.track("db", new Plan("h", BITMAP_SCAN, 250)).type()).isEqualTo(QueryPlanEvent.Type.REGRESSED);
+  }
+
+  @Test
+  void track_changedNotMuchSlower_changed() {
+    tracker.track("db", new Plan("h", INDEX_SCAN, 100));
+    assertThat(tracker.track("db", new Plan("h", BITMAP_SCAN, 150)).type()).isEqualTo(QueryPlanEvent.Type.CHANGED);
+  }
+
+  @Test
+  void unchangedSinceSent_requiresSuccessfulUpload() {
+    Plan first = new Plan("h", INDEX_SCAN, 100);
+    tracker.track("db", first);
+    Plan second = new Plan("h", INDEX_SCAN.replace("8.31", "9.87"), 120);
+    assertThat(tracker.track("db", second).type()).isEqualTo(QueryPlanEvent.Type.UNCHANGED);
+    // the first upload was not accepted, so send the text again
+    assertThat(tracker.unchangedSinceSent("db", second)).isFalse();
+
+    tracker.sent("db", second);
+    tracker.track("db", new Plan("h", INDEX_SCAN, 90));
+    assertThat(tracker.unchangedSinceSent("db", second)).isTrue();
+  }
+
+  @Test
+  void track_sameHashOtherDatabase_trackedSeparately() {
+    tracker.track("tenant1", new Plan("h", INDEX_SCAN, 100));
+    assertThat(tracker.track("tenant2", new Plan("h", SEQ_SCAN, 900)).type()).isEqualTo(QueryPlanEvent.Type.NEW);
+    assertThat(tracker.track("tenant1", new Plan("h", INDEX_SCAN, 100)).type()).isEqualTo(QueryPlanEvent.Type.UNCHANGED);
+
+    tracker.sent("tenant1", new Plan("h", INDEX_SCAN, 100));
+    assertThat(tracker.unchangedSinceSent("tenant1", new Plan("h", INDEX_SCAN, 100))).isTrue();
+    assertThat(tracker.unchangedSinceSent("tenant2", new Plan("h", SEQ_SCAN, 900))).isFalse();
+  }
+
+  @Test
+  void notify_listenerReceivesEvents_exceptionSwallowed() {
+    List<QueryPlanEvent> events = new ArrayList<>();
+    var tracker = new PlanTracker(10, false, 100, event -> {
+      events.add(event);
+      throw new IllegalStateException("expected");
+    });
+    QueryPlanEvent event = tracker.track("db", new Plan("h", INDEX_SCAN, 1));
+    tracker.notify(event);
+    assertThat(events).containsExactly(event);
+    assertThat(tracker.skipUnchanged()).isFalse();
+  }
+
+  @Test
+  void fullScan_formats() {
+    assertThat(PlanCache.fullScan(SEQ_SCAN)).isTrue();
+    assertThat(PlanCache.fullScan("TABLE ACCESS FULL CUSTOMER")).isTrue();
+    assertThat(PlanCache.fullScan("SCAN customer")).isTrue();
+    assertThat(PlanCache.fullScan(INDEX_SCAN)).isFalse();
+    assertThat(PlanCache.fullScan(null)).isFalse();
+  }
+
+  static final class Plan implements MetaQueryPlan {
+    private final String hash;
+    private final String plan;
+    private final long queryTimeMicros;
+
+    Plan(String hash, String plan, long queryTimeMicros) {
+      this.hash = hash;
+      this.plan = plan;
+      this.queryTimeMicros = queryTimeMicros;
+    }
+
+    @Override public Class<?> beanType() { return null; }
+    @Override public String label() { return "orm.Customer.findList"; }
+    @Override public ProfileLocation profileLocation() { return null; }
+    @Override public String sql() { return "select id, name from customer where name = ?"; }
+    @Override public String hash() { return hash; }
+    @Override public String bind() { return "Rob"; }
+    @Override public String plan() { return plan; }
+    @Override public long queryTimeMicros() { return queryTimeMicros; }
+    @Override public long captureCount() { return 1; }
+    @Override public long captureMicros() { return 0; }
+    @Override public Instant whenCaptured() { return Instant.EPOCH; }
+  }
+}
@@ -0,0 +1,84 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static io.ebean.insight.TopQueriesTest.database;
+import static io.ebean.insight.TopQueriesTest.query;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PlanTriggerTest {
+
+  @Test
+  void select_meanThreshold() {
+    var trigger = new PlanTrigger(1000, 0, 0, 5, 60_000);
+    var metrics = List.of(database(
+      query("a", "ha", 10, 5_000),
+      query("b", "hb", 2, 4_000),
+      query("c", "hc", 0, 0)));
+
+    Map<String, Long> selected = trigger.select(metrics, "db", 0);
+    assertThat(selected.keySet()).containsExactly("hb");
+    assertThat(selected).containsEntry("hb", 1000L);
+  }
+
+  @Test
+  void select_maxThreshold() {
+    var trigger = new PlanTrigger(0, 4_500, 0, 5, 60_000);
+    var metrics = List.of(database(
+      query("a", "ha", 10, 5_000),
+      query("b", "hb", 2, 4_000)));
+
+    // captured at the query's own mean rather than the max threshold
+    Map<String, Long> selected = trigger.select(metrics, "db", 0);
+    assertThat(selected.keySet()).containsExactly("ha");
+    assertThat(selected).containsEntry("ha", 500L);
+  }
+
+  @Test
+  void select_topN() {
+    var trigger = new PlanTrigger(0, 0, 2, 5, 60_000);
+    var metrics = List.of(database(
+      query("a", "ha", 10, 100),
+      query("b", "hb", 10, 300),
+      query("c", "hc", 10, 200)));
+
+    Map<String, Long> selected = trigger.select(metrics, "db", 0);
+    assertThat(selected.keySet()).containsExactly("hb", "hc");
+    assertThat(selected).containsEntry("hb", 30L).containsEntry("hc", 20L);
+  }
+
+  @Test
+  void select_maxPerCycle() {
+    var trigger = new PlanTrigger(1, 0, 0, 2, 60_000);
+    var metrics = List.of(database(
+      query("a", "ha", 1, 100),
+      query("b", "hb", 1, 300),
+      query("c", "hc", 1, 200)));
+
+    assertThat(trigger.select(metrics, "db", 0).keySet()).containsExactly("hb", "hc");
+    // the rest are selected in the next cycle
+    assertThat(trigger.select(metrics, "db", 1_000).keySet()).containsExactly("ha");
+  }
+
+  @Test
+  void select_notAgainWithinInterval() {
+    var trigger = new PlanTrigger(1, 0, 0, 5, 60_000);
+    var metrics = List.of(database(query("a", "ha", 1, 100)));
+
+    assertThat(trigger.select(metrics, "db", 0).keySet()).containsExactly("ha");
+    assertThat(trigger.select(metrics, "db", 59_999)).isEmpty();
+    assertThat(trigger.select(metrics, "db", 60_000).keySet()).containsExactly("ha");
+  }
+
+  @Test
+  void select_otherDatabase_none() {
+    var trigger = new PlanTrigger(1, 0, 0, 5, 60_000);
+    var metrics = List.of(database(query("a", "ha", 1, 100)));
+
+    assertThat(trigger.select(metrics, "other", 0)).isEmpty();
+    assertThat(trigger.select(null, "db", 0)).isEmpty();
+  }
+}
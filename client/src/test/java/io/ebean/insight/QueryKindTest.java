@@ -0,0 +1,25 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryKindTest {
+
+  @Test
+  void of() {
+    assertThat(QueryKind.of("orm.Customer.findList")).isEqualTo("orm");
+    assertThat(QueryKind.of("dto.CustomerDto")).isEqualTo("dto");
+    assertThat(QueryKind.of("sql.byName")).isEqualTo("sql");
+    assertThat(QueryKind.of("ormx.Customer")).isNull();
+    assertThat(QueryKind.of("Customer.findList")).isNull();
+    assertThat(QueryKind.of("orm")).isNull();
+    assertThat(QueryKind.of(null)).isNull();
+  }
+
+  @Test
+  void prefixEnd() {
+    assertThat(QueryKind.prefixEnd("orm.Customer.findList")).isEqualTo(3);
+    assertThat(QueryKind.prefixEnd("Customer.findList")).isEqualTo(-1);
+  }
+}
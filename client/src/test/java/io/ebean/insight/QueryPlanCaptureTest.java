@@ -1,14 +1,22 @@
 package io.ebean.insight;
 
+import io.ebean.BackgroundExecutor;
+import io.ebean.Database;
 import io.ebean.ProfileLocation;
+import io.ebean.meta.MetaInfoManager;
 import io.ebean.meta.MetaQueryPlan;
 import io.ebean.meta.QueryPlanInit;
 import org.junit.jupiter.api.Test;
 
+import java.lang.reflect.Proxy;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
+import static io.ebean.insight.QueryPlanCapture.parseDirectives;
 import static io.ebean.insight.QueryPlanCapture.parseMessage;
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -17,7 +25,7 @@ class QueryPlanCaptureTest {
   @Test
   void notifyListener_invokesListenerWithPlan() {
     List<MetaQueryPlan> received = new ArrayList<>();
-    QueryPlanCapture capture = new QueryPlanCapture(null, null, 10, 60, received::add);
+    QueryPlanCapture capture = capture(database(Set.of(), new ArrayList<>()), received::add);
 
     MetaQueryPlan plan = new Plan("h1");
     capture.notifyListener(plan);
@@ -27,7 +35,7 @@ class QueryPlanCaptureTest {
 
   @Test
   void notifyListener_swallowsListenerException() {
-    QueryPlanCapture capture = new QueryPlanCapture(null, null, 10, 60, p -> {
+    QueryPlanCapture capture = capture(database(Set.of(), new ArrayList<>()), p -> {
       throw new RuntimeException("boom");
     });
 
@@ -37,7 +45,7 @@ class QueryPlanCaptureTest {
 
   @Test
   void notifyListener_nullListener_noop() {
-    QueryPlanCapture capture = new QueryPlanCapture(null, null, 10, 60, null);
+    QueryPlanCapture capture = capture(database(Set.of(), new ArrayList<>()));
     capture.notifyListener(new Plan("h1"));
   }
 
@@ -88,6 +96,134 @@ class QueryPlanCaptureTest {
     assertThat(init.thresholdMicros("myHash3")).isEqualTo(200L);
   }
 
+  @Test
+  void parseDirectives_byDatabase() {
+    Map<String, QueryPlanInit> directives = parseDirectives("v1|qp:100:h1|db:other|th:500|qp:h2|qp:200:h3");
+    assertThat(directives.keySet()).containsExactly(null, "other");
+
+    QueryPlanInit first = directives.get(null);
+    assertThat(first.includeHash("h1")).isTrue();
+    assertThat(first.includeHash("h2")).isFalse();
+
+    QueryPlanInit other = directives.get("other");
+    assertThat(other.includeHash("h1")).isFalse();
+    assertThat(other.thresholdMicros("h2")).isEqualTo(500L);
+    assertThat(other.thresholdMicros("h3")).isEqualTo(200L);
+  }
+
+  @Test
+  void parseMessage_ignoresOtherDatabases() {
+    QueryPlanInit init = parseMessage("v1|db:other|qp:h2");
+    assertThat(init.isEmpty()).isTrue();
+  }
+
+  @Test
+  void nextDelayMillis_nothingPending_idle() {
+    QueryPlanCapture capture = capture(database(Set.of(), new ArrayList<>()));
+    assertThat(capture.nextDelayMillis(System.currentTimeMillis())).isEqualTo(-1L);
+  }
+
+  @Test
+  void nextDelayMillis_pendingCapture_dueAfterCaptureDelay() {
+    QueryPlanCapture capture = capture(database(Set.of("h1"), new ArrayList<>()));
+    long now = System.currentTimeMillis();
+    capture.arm(parseMessage("v1|qp:h1"));
+
+    assertThat(capture.nextDelayMillis(now)).isBetween(60_000L, 61_000L);
+    assertThat(capture.nextDelayMillis(now + 70_000)).isEqualTo(0L);
+  }
+
+  @Test
+  void nextDelayMillis_pendingInit_retriedAtFrequency() {
+    QueryPlanCapture capture = capture(database(Set.of(), new ArrayList<>()));
+    capture.arm(parseMessage("v1|qp:h1"));
+    // the query has not executed yet, initialisation retried right away
+    assertThat(capture.nextDelayMillis(System.currentTimeMillis())).isEqualTo(0L);
+
+    capture.progress();
+    assertThat(capture.nextDelayMillis(System.currentTimeMillis())).isBetween(9_000L, 10_000L);
+  }
+
+  @Test
+  void start_schedulesOnlyWhenDue() {
+    List<Long> delays = new ArrayList<>();
+    QueryPlanCapture capture = capture(database(Set.of("h1", "h2"), delays));
+    capture.start();
+    assertThat(delays).isEmpty();
+
+    capture.arm(parseMessage("v1|qp:h1"));
+    assertThat(delays).hasSize(1);
+    assertThat(delays.get(0)).isBetween(59_000L, 60_000L);
+
+    // a later deadline does not reschedule the wake up
+    capture.arm(parseMessage("v1|qp:h2"));
+    assertThat(delays).hasSize(1);
+  }
+
+  @Test
+  void stop_noLongerSchedules() {
+    List<Long> delays = new ArrayList<>();
+    QueryPlanCapture capture = capture(database(Set.of("h1"), delays));
+    capture.start();
+    capture.stop();
+
+    capture.arm(parseMessage("v1|qp:h1"));
+    assertThat(delays).isEmpty();
+  }
+
+  static QueryPlanCapture capture(Database database) {
+    return capture(database, null);
+  }
+
+  static QueryPlanCapture capture(Database database, Consumer<MetaQueryPlan> listener) {
+    return new QueryPlanCapture(database, new CaptureSettings().captureDelaySecs(60), (db, plans, unchanged) -> { }, listener, null);
+  }
+
+  /**
+   * Database where the given hashes have executed (so initialise) and the
+   * delays of scheduled wake ups are recorded.
+   */
+  static Database database(Set<String> executed, List<Long> delays) {
+    return database("db", executed, delays);
+  }
+
+  static Database database(String name, Set<String> executed, List<Long> delays) {
+    MetaInfoManager metaInfo = (MetaInfoManager) Proxy.newProxyInstance(MetaInfoManager.class.getClassLoader(), new Class<?>[]{MetaInfoManager.class},
+      (proxy, method, args) -> {
+        if (method.getName().equals("queryPlanInit")) {
+          QueryPlanInit init = (QueryPlanInit) args[0];
+          List<MetaQueryPlan> plans = new ArrayList<>();
+          for (String hash : executed) {
+            if (init.includeHash(hash)) {
+              plans.add(new Plan(hash));
+            }
+          }
+          return plans;
+        }
+        return List.of();
+      });
+    BackgroundExecutor executor = (BackgroundExecutor) Proxy.newProxyInstance(BackgroundExecutor.class.getClassLoader(), new Class<?>[]{BackgroundExecutor.class},
+      (proxy, method, args) -> {
+        if (method.getName().equals("schedule")) {
+          delays.add((Long) args[1]);
+        }
+        return null;
+      });
+    return (Database) Proxy.newProxyInstance(Database.class.getClassLoader(), new Class<?>[]{Database.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "name":
+            return name;
+          case "metaInfo":
+            return metaInfo;
+          case "backgroundExecutor":
+            return executor;
+          default:
+            return null;
+        }
+      });
+  }
+
   static final class Plan implements MetaQueryPlan {
     private final String hash;
 
@@ -0,0 +1,112 @@
+package io.ebean.insight;
+
+import io.ebean.ProfileLocation;
+import io.ebean.meta.MetaQueryPlan;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentPlansTest {
+
+  @Test
+  void add_getByHashLabelAndType() {
+    var recent = new RecentPlans(10_000);
+    Plan a = new Plan("a", "orm.Customer.findList", String.class, 1);
+    Plan b = new Plan("b", "orm.Customer.findList", Integer.class, 2);
+    Plan c = new Plan("c", "orm.Order.findList", String.class, 3);
+    recent.add("db", a);
+    recent.add("db", b);
+    recent.add("db", c);
+
+    assertThat(recent.get("b")).isSameAs(b);
+    assertThat(recent.get("x")).isNull();
+    assertThat(recent.byLabel("orm.Customer.findList")).containsExactly(b, a);
+    assertThat(recent.byType(String.class)).containsExactly(c, a);
+    assertThat(recent.byType(Long.class)).isEmpty();
+    assertThat(recent.all()).containsExactly(c, b, a);
+  }
+
+  @Test
+  void add_sameHashOtherDatabase_heldSeparately() {
+    var recent = new RecentPlans(10_000);
+    Plan a1 = new Plan("a", "orm.Customer.findList", String.class, 1);
+    Plan a2 = new Plan("a", "orm.Customer.findList", String.class, 2);
+    recent.add("tenant1", a1);
+    recent.add("tenant2", a2);
+
+    assertThat(recent.size()).isEqualTo(2);
+    assertThat(recent.get("tenant1", "a")).isSameAs(a1);
+    assertThat(recent.get("tenant2", "a")).isSameAs(a2);
+    assertThat(recent.get("a")).isSameAs(a2);
+    assertThat(recent.byLabel("orm.Customer.findList")).containsExactly(a2, a1);
+  }
+
+  @Test
+  void add_sameHash_replaces() {
+    var recent = new RecentPlans(10_000);
+    recent.add("db", new Plan("a", "orm.Customer.findList", String.class, 1));
+    Plan replacement = new Plan("a", "orm.Customer.findCount", String.class, 2);
+    recent.add("db", replacement);
+
+    assertThat(recent.size()).isEqualTo(1);
+    assertThat(recent.bytes()).isEqualTo(RecentPlans.bytes(replacement));
+    assertThat(recent.byLabel("orm.Customer.findList")).isEmpty();
+    assertThat(recent.byLabel("orm.Customer.findCount")).containsExactly(replacement);
+  }
+
+  @Test
+  void add_overMaxBytes_evictsLeastRecentlyUsed() {
+    Plan a = new Plan("a", "la", String.class, 1);
+    Plan b = new Plan("b", "la", String.class, 2);
+    Plan c = new Plan("c", "la", String.class, 3);
+    var recent = new RecentPlans(2 * RecentPlans.bytes(a));
+    recent.add("db", a);
+    recent.add("db", b);
+    // a used more recently than b
+    recent.get("a");
+    recent.add("db", c);
+
+    assertThat(recent.get("b")).isNull();
+    assertThat(recent.all()).containsExactly(c, a);
+    assertThat(recent.byLabel("la")).containsExactly(c, a);
+    assertThat(recent.bytes()).isEqualTo(2 * RecentPlans.bytes(a));
+  }
+
+  @Test
+  void add_largerThanMax_notHeld() {
+    var recent = new RecentPlans(10);
+    recent.add("db", new Plan("a", "la", String.class, 1));
+
+    assertThat(recent.size()).isEqualTo(0);
+    assertThat(recent.bytes()).isEqualTo(0L);
+    assertThat(recent.byType(String.class)).isEmpty();
+  }
+
+  static final class Plan implements MetaQueryPlan {
+    private final String hash;
+    private final String label;
+    private final Class<?> beanType;
+    private final Instant whenCaptured;
+
+    Plan(String hash, String label, Class<?> beanType, long second) {
+      this.hash = hash;
+      this.label = label;
+      this.beanType = beanType;
+      this.whenCaptured = Instant.ofEpochSecond(second);
+    }
+
+    @Override public Class<?> beanType() { return beanType; }
+    @Override public String label() { return label; }
+    @Override public ProfileLocation profileLocation() { return null; }
+    @Override public String sql() { return "select t0.id from customer t0"; }
+    @Override public String hash() { return hash; }
+    @Override public String bind() { return "1"; }
+    @Override public String plan() { return "Seq Scan on customer"; }
+    @Override public long queryTimeMicros() { return 0; }
+    @Override public long captureCount() { return 1; }
+    @Override public long captureMicros() { return 0; }
+    @Override public Instant whenCaptured() { return whenCaptured; }
+  }
+}
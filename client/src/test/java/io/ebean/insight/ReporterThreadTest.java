@@ -0,0 +1,111 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReporterThreadTest {
+
+  @Test
+  void offer_runsInOrderOnReporterThread() throws InterruptedException {
+    var reporter = new ReporterThread("testReporter", 10);
+    reporter.start();
+
+    List<String> ran = new CopyOnWriteArrayList<>();
+    var done = new CountDownLatch(1);
+    for (int i = 0; i < 5; i++) {
+      int task = i;
+      assertThat(reporter.offer(() -> ran.add(task + ":" + Thread.currentThread().getName()))).isTrue();
+    }
+    reporter.offer(done::countDown);
+
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(ran).containsExactly("0:testReporter", "1:testReporter", "2:testReporter", "3:testReporter", "4:testReporter");
+    assertThat(reporter.size()).isEqualTo(0);
+  }
+
+  @Test
+  void offer_whenFull_rejected() throws InterruptedException {
+    var reporter = new ReporterThread("testReporterFull", 2);
+    reporter.start();
+
+    var blocked = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    reporter.offer(() -> {
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(reporter.offer(() -> { })).isTrue();
+    assertThat(reporter.offer(() -> { })).isTrue();
+    assertThat(reporter.offer(() -> { })).isFalse();
+    assertThat(reporter.rejected()).isEqualTo(1L);
+    release.countDown();
+  }
+
+  @Test
+  void stop_runsQueuedTasksThenExits() throws InterruptedException {
+    var reporter = new ReporterThread("testReporterStop", 10);
+    var ran = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      reporter.offer(ran::countDown);
+    }
+    reporter.stop();
+    reporter.start();
+
+    assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(reporter.size()).isEqualTo(0);
+  }
+
+  @Test
+  void isIdle_falseWhileTaskRuns() throws InterruptedException {
+    var reporter = new ReporterThread("testReporterIdle", 10);
+    reporter.start();
+    assertThat(reporter.isIdle()).isTrue();
+
+    var running = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    reporter.offer(() -> {
+      running.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+    // taken from the queue but still running
+    assertThat(reporter.size()).isEqualTo(0);
+    assertThat(reporter.isIdle()).isFalse();
+
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!reporter.isIdle() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(reporter.isIdle()).isTrue();
+  }
+
+  @Test
+  void run_taskThrows_continues() throws InterruptedException {
+    var reporter = new ReporterThread("testReporterError", 10);
+    reporter.start();
+
+    var done = new CountDownLatch(1);
+    reporter.offer(() -> {
+      throw new IllegalStateException("expected");
+    });
+    reporter.offer(done::countDown);
+    assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+}
@@ -0,0 +1,175 @@
+package io.ebean.insight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SendLaneTest {
+
+  @Test
+  void submit_limitsInFlight_thenDispatchesQueued() {
+    List<CompletableFuture<Boolean>> pending = new CopyOnWriteArrayList<>();
+    List<String> sent = new CopyOnWriteArrayList<>();
+    var lane = new SendLane<String>("test", 2, 10, 0, 0, 0, null, payload -> {
+      sent.add(payload);
+      var future = new CompletableFuture<Boolean>();
+      pending.add(future);
+      return future;
+    });
+
+    lane.submit("a");
+    lane.submit("b");
+    lane.submit("c");
+    assertThat(sent).containsExactly("a", "b");
+    assertThat(lane.inFlight()).isEqualTo(2);
+    assertThat(lane.queued()).isEqualTo(1);
+
+    pending.get(0).complete(true);
+    assertThat(sent).containsExactly("a", "b", "c");
+    pending.get(1).complete(true);
+    pending.get(2).complete(true);
+    assertThat(lane.isIdle()).isTrue();
+  }
+
+  @Test
+  void submit_queueFull_dropsOldest() {
+    List<String> sent = new CopyOnWriteArrayList<>();
+    var block = new CompletableFuture<Boolean>();
+    var lane = new SendLane<String>("test", 1, 2, 0, 0, 0, null, payload -> {
+      sent.add(payload);
+      return payload.equals("a") ? block : CompletableFuture.completedFuture(true);
+    });
+
+    lane.submit("a");
+    lane.submit("b");
+    lane.submit("c");
+    lane.submit("d");
+    assertThat(lane.dropped()).isEqualTo(1L);
+
+    block.complete(true);
+    assertThat(sent).containsExactly("a", "c", "d");
+  }
+
+  @Test
+  void submit_queueFull_dropsWholeReport() {
+    List<String> sent = new CopyOnWriteArrayList<>();
+    var block = new CompletableFuture<Boolean>();
+    var lane = new SendLane<String>("test", 1, 2, 0, 0, 0, null, payload -> {
+      sent.add(payload);
+      return payload.equals("a") ? block : CompletableFuture.completedFuture(true);
+    });
+
+    lane.submit("a");
+    long first = lane.newReport();
+    lane.submit("b0", first);
+    lane.submit("b1", first);
+    // the parts of the report being submitted are never dropped
+    lane.submit("b2", first);
+    assertThat(lane.queued()).isEqualTo(3);
+    assertThat(lane.dropped()).isEqualTo(0L);
+
+    long second = lane.newReport();
+    lane.submit("c0", second);
+    lane.submit("c1", second);
+    assertThat(lane.dropped()).isEqualTo(3L);
+
+    block.complete(true);
+    assertThat(sent).containsExactly("a", "c0", "c1");
+  }
+
+  @Test
+  void submit_queueFull_partSentReportNotDropped() {
+    List<String> sent = new CopyOnWriteArrayList<>();
+    var block = new CompletableFuture<Boolean>();
+    var lane = new SendLane<String>("test", 1, 1, 0, 0, 0, null, payload -> {
+      sent.add(payload);
+      return payload.equals("b0") ? block : CompletableFuture.completedFuture(true);
+    });
+
+    long first = lane.newReport();
+    lane.submit("b0", first);
+    lane.submit("b1", first);
+    lane.submit("c0", lane.newReport());
+    assertThat(lane.dropped()).isEqualTo(0L);
+
+    block.complete(true);
+    assertThat(sent).containsExactly("b0", "b1", "c0");
+  }
+
+  @Test
+  void failure_retried_thenGivesUp() throws InterruptedException {
+    var attempts = new AtomicInteger();
+    var lane = new SendLane<String>("test", 1, 10, 2, 1, 0, null, payload -> {
+      attempts.incrementAndGet();
+      return CompletableFuture.failedFuture(new RuntimeException("expected"));
+    });
+
+    lane.submit("a");
+    waitUntilIdle(lane);
+    assertThat(attempts.get()).isEqualTo(3);
+    assertThat(lane.failed()).isEqualTo(1L);
+  }
+
+  @Test
+  void serverError_retriedUntilDone() throws InterruptedException {
+    var attempts = new AtomicInteger();
+    var lane = new SendLane<String>("test", 1, 10, 3, 1, 0, null,
+      payload -> CompletableFuture.completedFuture(attempts.incrementAndGet() == 2));
+
+    lane.submit("a");
+    waitUntilIdle(lane);
+    assertThat(attempts.get()).isEqualTo(2);
+    assertThat(lane.failed()).isEqualTo(0L);
+  }
+
+  @Test
+  void priorityLane_busy_lowerLaneWaits() {
+    List<String> sent = new CopyOnWriteArrayList<>();
+    var metricsDone = new CompletableFuture<Boolean>();
+    var metrics = new SendLane<String>("metrics", 2, 10, 0, 0, 0, null, payload -> {
+      sent.add(payload);
+      return metricsDone;
+    });
+    var plans = new SendLane<String>("plans", 1, 10, 0, 0, 0, metrics, payload -> {
+      sent.add(payload);
+      return CompletableFuture.completedFuture(true);
+    });
+
+    metrics.submit("metrics");
+    plans.submit("plans");
+    assertThat(sent).containsExactly("metrics");
+    assertThat(plans.queued()).isEqualTo(1);
+
+    metricsDone.complete(true);
+    assertThat(sent).containsExactly("metrics", "plans");
+    assertThat(plans.isIdle()).isTrue();
+  }
+
+  @Test
+  void minInterval_spacesSends() throws InterruptedException {
+    List<Long> times = new CopyOnWriteArrayList<>();
+    var lane = new SendLane<String>("test", 5, 10, 0, 0, 100, null, payload -> {
+      times.add(System.nanoTime());
+      return CompletableFuture.completedFuture(true);
+    });
+
+    lane.submit("a");
+    lane.submit("b");
+    assertThat(times).hasSize(1);
+    waitUntilIdle(lane);
+    assertThat(times).hasSize(2);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(times.get(1) - times.get(0))).isGreaterThanOrEqualTo(90);
+  }
+
+  private static void waitUntilIdle(SendLane<?> lane) throws InterruptedException {
+    for (int i = 0; i < 200 && !lane.isIdle(); i++) {
+      Thread.sleep(10);
+    }
+  }
+}
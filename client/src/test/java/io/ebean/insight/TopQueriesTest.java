@@ -0,0 +1,104 @@
+package io.ebean.insight;
+
+import io.ebean.meta.BasicMetricVisitor;
+import io.ebean.meta.MetaQueryMetric;
+import io.ebean.meta.MetricNamingMatch;
+import io.ebean.meta.ServerMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopQueriesTest {
+
+  @Test
+  void apply_underLimit_sameInstance() {
+    ServerMetrics db = database(query("orm.A.findList", "a", 1, 10));
+    assertThat(new TopQueries(2, false).apply(db)).isSameAs(db);
+  }
+
+  @Test
+  void apply_keepsTopByTotal_collapsesOtherPerKind() {
+    ServerMetrics db = database(
+      query("orm.A.findList", "a", 1, 10),
+      query("orm.B.findList", "b", 5, 500),
+      query("dto.C", "c", 2, 20),
+      query("orm.D.findCount", "d", 9, 300),
+      query("sql.E", "e", 100, 5));
+
+    ServerMetrics result = new TopQueries(2, false).apply(db);
+    List<String> hashes = hashes(result.queryMetrics());
+    assertThat(hashes).containsExactly("b", "d", "orm.other", "dto.other", "sql.other");
+
+    MetaQueryMetric ormOther = result.queryMetrics().get(2);
+    assertThat(ormOther.count()).isEqualTo(1L);
+    assertThat(ormOther.total()).isEqualTo(10L);
+    assertThat(ormOther.sql()).isEqualTo("-- other orm queries");
+    assertThat(ormOther.location()).isEqualTo("other");
+    assertThat(ormOther.type()).isNotNull();
+    assertThat(totalOf(result.queryMetrics())).isEqualTo(totalOf(db.queryMetrics()));
+  }
+
+  @Test
+  void apply_byCount() {
+    ServerMetrics db = database(
+      query("orm.A.findList", "a", 1, 1000),
+      query("orm.B.findList", "b", 50, 10),
+      query("orm.C.findList", "c", 20, 20));
+
+    ServerMetrics result = new TopQueries(1, true).apply(db);
+    assertThat(hashes(result.queryMetrics())).containsExactly("b", "orm.other");
+    assertThat(result.queryMetrics().get(1).count()).isEqualTo(21L);
+    assertThat(result.queryMetrics().get(1).max()).isEqualTo(1000L);
+  }
+
+  @Test
+  void apply_manyQueries_selectsHighest() {
+    var db = new BasicMetricVisitor("db", MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (int i = 0; i < 1000; i++) {
+      // totals in a scrambled order
+      long total = (i * 7919L) % 1000;
+      db.visitQuery(query("orm.Q" + i, "h" + total, 1, total));
+    }
+    ServerMetrics result = new TopQueries(5, false).apply(db);
+    assertThat(hashes(result.queryMetrics())).containsExactlyInAnyOrder("h999", "h998", "h997", "h996", "h995", "orm.other");
+  }
+
+  @Test
+  void kind() {
+    assertThat(TopQueries.kind("orm.Customer.findList")).isEqualTo("orm");
+    assertThat(TopQueries.kind("dto.Foo")).isEqualTo("dto");
+    assertThat(TopQueries.kind("sql.query")).isEqualTo("sql");
+    assertThat(TopQueries.kind("Customer")).isEqualTo("query");
+  }
+
+  private static long totalOf(List<MetaQueryMetric> queries) {
+    long total = 0;
+    for (MetaQueryMetric query : queries) {
+      total += query.total();
+    }
+    return total;
+  }
+
+  private static List<String> hashes(List<MetaQueryMetric> queries) {
+    List<String> hashes = new ArrayList<>();
+    for (MetaQueryMetric query : queries) {
+      hashes.add(query.hash());
+    }
+    return hashes;
+  }
+
+  static ServerMetrics database(MetaQueryMetric... queries) {
+    var db = new BasicMetricVisitor("db", MetricNamingMatch.INSTANCE, false, true, true, true);
+    for (MetaQueryMetric query : queries) {
+      db.visitQuery(query);
+    }
+    return db;
+  }
+
+  static MetaQueryMetric query(String name, String hash, long count, long total) {
+    return new DbQueryMetric(name, null, null, name, "select " + hash, hash, count, total, total);
+  }
+}